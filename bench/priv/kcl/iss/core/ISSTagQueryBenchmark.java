@@ -0,0 +1,185 @@
+package priv.kcl.iss.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import priv.kcl.iss.index.ISSRoaringBitmap;
+
+/**
+ * Measure how long {@code ISSTagQuery} takes on a large generated image system. Nothing is read from
+ * or written to disk.<p>
+ * Usage: {@code java priv.kcl.iss.core.ISSTagQueryBenchmark [images] [terms] [queries]}, 1000000 images,
+ * 20 terms and 200 queries of each shape by default. Tags are given to images with a skewed
+ * distribution, so some posting lists are dense and most are sparse, like a real tagtree. Every query
+ * is checked against a scan of every image before it's timed.<p>
+ * It's kept in {@code bench} instead of {@code src}, so it's not shipped. Compile it together with
+ * {@code src}, since it's in the same package.
+ */
+public class ISSTagQueryBenchmark {
+
+    private static final int GROUPS = 20;
+    private static final int TAGS_PER_GROUP = 30;
+    private static final int TAGS_PER_IMAGE = 8;
+
+    public static void main(String[] args) {
+        int imageCount = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+        int termCount = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+        int queryCount = (args.length > 2 ? Integer.parseInt(args[2]) : 200);
+        Random random = new Random(42);
+
+        ISSTagTreeUnit tree = new ISSTagTreeUnit(null, "TagTree");
+        ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>();
+        for (int group = 0; group < GROUPS; group++) {
+            ISSTagTreeUnit groupTag = new ISSTagTreeUnit(tree, "Group"+group);
+            tree.append(groupTag);
+            for (int index = 0; index < TAGS_PER_GROUP; index++) {
+                ISSTagTreeUnit tag = new ISSTagTreeUnit(groupTag, "Tag"+group+"-"+index);
+                groupTag.append(tag);
+                tags.add(tag);
+            }
+        }
+
+        long start = System.nanoTime();
+        ISSImageSystem imageSystem = new ISSImageSystem(tree, null);
+        ISSFolderNode[] folders = new ISSFolderNode[1000];
+        for (int index = 0; index < folders.length; index++)
+            folders[index] = ISSFolderNode.fromRelativePath("."+File.separator+"Benchmark"+File.separator+index);
+        for (int index = 0; index < imageCount; index++) {
+            ArrayList<ISSTagTreeUnit> imageTags = new ArrayList<ISSTagTreeUnit>(TAGS_PER_IMAGE);
+            for (int count = 0; count < TAGS_PER_IMAGE; count++) {
+                ISSTagTreeUnit tag = tags.get(skewedIndex(random, tags.size()));
+                if (!imageTags.contains(tag))
+                    imageTags.add(tag);
+            }
+            imageSystem.addImage(new ISSImageFileUnit(folders[index % folders.length], "img"+index+".jpg", "2026/01/01 00:00:00",
+                                                      imageTags, 0, 0, null, null));
+        }
+        long bytes = 0;
+        int[] sizes = new int[tags.size()];
+        for (int index = 0; index < tags.size(); index++) {
+            ISSRoaringBitmap posting = imageSystem.getPostingList(tags.get(index));
+            bytes += posting.getSizeInBytes();
+            sizes[index] = (int) posting.getCardinality();
+        }
+        Arrays.sort(sizes);
+        System.out.printf("%d images indexed in %d ms, posting lists %.1f MB, smallest %d, median %d, largest %d%n",
+                          imageCount, (System.nanoTime() - start) / 1000000, bytes / 1048576.0,
+                          sizes[0], sizes[sizes.length / 2], sizes[sizes.length - 1]);
+
+        run(imageSystem, "AND of every term", queryCount, random, termCount, (r, n) -> andQuery(r, tags, n, 0));
+        run(imageSystem, "AND of 2 terms, NOT of the rest", queryCount, random, termCount, (r, n) -> andQuery(r, tags, 2, n - 2));
+        run(imageSystem, "NOT of every term", queryCount, random, termCount, (r, n) -> andQuery(r, tags, 0, n));
+        run(imageSystem, "OR of pairs of AND", queryCount, random, termCount, (r, n) -> orOfPairs(r, tags, n));
+        run(imageSystem, "OR of every term", queryCount, random, termCount, (r, n) -> orQuery(r, tags, n));
+        run(imageSystem, "AND of 2 groups, NOT of the rest", queryCount, random, termCount, (r, n) -> groupQuery(r, tree, tags, n));
+    }
+
+    /** A query with a predicate which matches the same images. */
+    private static class Generated {
+        final ISSTagQuery query;
+        final Predicate<ISSImageFileUnit> predicate;
+
+        Generated(ISSTagQuery query, Predicate<ISSImageFileUnit> predicate) {
+            this.query = query;
+            this.predicate = predicate;
+        }
+    }
+    private interface Generator {
+        Generated generate(Random random, int termCount);
+    }
+
+    private static void run(ISSImageSystem imageSystem, String shape, int queryCount, Random random, int termCount, Generator generator) {
+        Generated[] queries = new Generated[queryCount];
+        for (int index = 0; index < queryCount; index++)
+            queries[index] = generator.generate(random, termCount);
+
+        // Check a few queries against a scan, which also warms up the JIT.
+        for (int index = 0; index < Math.min(5, queryCount); index++) {
+            ArrayList<ISSImageFileUnit> found = imageSystem.findImages(queries[index].query);
+            long expected = imageSystem.getImages().stream().filter(queries[index].predicate).count();
+            if (found.size() != expected || !found.stream().allMatch(queries[index].predicate))
+                throw new IllegalStateException("Wrong result of "+queries[index].query+": "+found.size()+" instead of "+expected);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (Generated generated: queries)
+                imageSystem.findOrdinals(generated.query);
+        }
+
+        long[] nanos = new long[queryCount];
+        long matched = 0;
+        for (int index = 0; index < queryCount; index++) {
+            long start = System.nanoTime();
+            matched += imageSystem.findOrdinals(queries[index].query).getCardinality();
+            nanos[index] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-32s %d terms: median %.3f ms, p99 %.3f ms, max %.3f ms, %d images matched on average%n",
+                          shape, termCount, nanos[queryCount / 2] / 1e6, nanos[Math.min(queryCount - 1, queryCount * 99 / 100)] / 1e6,
+                          nanos[queryCount - 1] / 1e6, matched / queryCount);
+    }
+
+    private static Generated andQuery(Random random, ArrayList<ISSTagTreeUnit> tags, int includedCount, int excludedCount) {
+        ISSTagQuery[] operands = new ISSTagQuery[includedCount + excludedCount];
+        Predicate<ISSImageFileUnit> predicate = ifu -> true;
+        for (int index = 0; index < operands.length; index++) {
+            ISSTagTreeUnit tag = tags.get(skewedIndex(random, tags.size()));
+            if (index < includedCount) {
+                operands[index] = ISSTagQuery.tag(tag);
+                predicate = predicate.and(ifu -> ifu.getTags().contains(tag));
+            }
+            else {
+                operands[index] = ISSTagQuery.not(ISSTagQuery.tag(tag));
+                predicate = predicate.and(ifu -> !ifu.getTags().contains(tag));
+            }
+        }
+        return new Generated(ISSTagQuery.and(operands), predicate);
+    }
+    private static Generated orQuery(Random random, ArrayList<ISSTagTreeUnit> tags, int termCount) {
+        ISSTagQuery[] operands = new ISSTagQuery[termCount];
+        Predicate<ISSImageFileUnit> predicate = ifu -> false;
+        for (int index = 0; index < termCount; index++) {
+            ISSTagTreeUnit tag = tags.get(random.nextInt(tags.size()));
+            operands[index] = ISSTagQuery.tag(tag);
+            predicate = predicate.or(ifu -> ifu.getTags().contains(tag));
+        }
+        return new Generated(ISSTagQuery.or(operands), predicate);
+    }
+    private static Generated orOfPairs(Random random, ArrayList<ISSTagTreeUnit> tags, int termCount) {
+        ISSTagQuery[] operands = new ISSTagQuery[Math.max(1, termCount / 2)];
+        Predicate<ISSImageFileUnit> predicate = ifu -> false;
+        for (int index = 0; index < operands.length; index++) {
+            Generated pair = andQuery(random, tags, 2, 0);
+            operands[index] = pair.query;
+            predicate = predicate.or(pair.predicate);
+        }
+        return new Generated(ISSTagQuery.or(operands), predicate);
+    }
+
+    /** Every group matches the images with any tag in it, which are united from a range of the tagtree. */
+    private static Generated groupQuery(Random random, ISSTagTreeUnit tree, ArrayList<ISSTagTreeUnit> tags, int termCount) {
+        ISSTagQuery[] operands = new ISSTagQuery[Math.max(2, termCount)];
+        Predicate<ISSImageFileUnit> predicate = ifu -> true;
+        for (int index = 0; index < operands.length; index++) {
+            if (index < 2) {
+                ISSTagTreeUnit group = tree.getChild(random.nextInt(GROUPS));
+                operands[index] = ISSTagQuery.tag(group);
+                predicate = predicate.and(ifu -> ifu.getTags().stream().anyMatch(tag -> tag.isUnder(group)));
+            }
+            else {
+                ISSTagTreeUnit tag = tags.get(skewedIndex(random, tags.size()));
+                operands[index] = ISSTagQuery.not(ISSTagQuery.tag(tag));
+                predicate = predicate.and(ifu -> !ifu.getTags().contains(tag));
+            }
+        }
+        return new Generated(ISSTagQuery.and(operands), predicate);
+    }
+
+    /** Pick a tag so the first tags are picked far more often than the last ones. */
+    private static int skewedIndex(Random random, int size) {
+        double value = random.nextDouble();
+        return (int) (size * value * value * value);
+    }
+}
@@ -2,13 +2,13 @@ package priv.kcl.iss;
 
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.logging.Logger;
 
 import priv.kcl.iss.core.ISSCore;
-import priv.kcl.iss.core.ISSException;
-import priv.kcl.iss.core.ISSImageFileUnit;
+import priv.kcl.iss.core.ISSImageSystem;
+import priv.kcl.iss.core.ISSIngestPipeline;
+import priv.kcl.iss.core.ISSScanDelta;
 
 public class Main {
     public static void main(String[] args) {
@@ -19,19 +19,42 @@ public class Main {
 
         ISSCore.logger.info("Working_folder="+ISSCore.getWorkingFolderPathname());
 
-        ArrayList<File> fileList = ISSCore.makeFileCollection(ISSCore.getWorkingFolder().listFiles());
-        ArrayList<ISSImageFileUnit> ifuList = new ArrayList<ISSImageFileUnit>();
-
-        for (Iterator<File> iterator = fileList.iterator(); iterator.hasNext(); ) {
-            File tmpFile = iterator.next();
+        ISSScanDelta delta = ISSCore.getLastScanDelta();
+        if (delta != null) {
+            // The info folder exists, so the Image System is loaded and only the changed files are applied.
+            ISSImageSystem imageSystem = ISSCore.loadImageSystem();
             try {
-                ISSImageFileUnit ifu = new ISSImageFileUnit(tmpFile);
-                ifuList.add(ifu);
+                try {
+                    ISSCore.logger.info("Replayed "+imageSystem.openTagJournal()+" tag edits");
+                }
+                catch (IOException e) {
+                    ISSCore.logger.severe("Failed to open tag journal: "+e.getMessage());
+                }
+
+                ArrayList<File> changedFiles = new ArrayList<File>();
+                for (String relativePathname: delta.getAddedFiles())
+                    changedFiles.add(ISSCore.getFileFromRelativePath(relativePathname));
+                for (String relativePathname: delta.getModifiedFiles())
+                    changedFiles.add(ISSCore.getFileFromRelativePath(relativePathname));
+                delta.getDeletedFiles().forEach(relativePathname -> ISSCore.logger.fine("deleted=\""+relativePathname+"\""));
+                ISSCore.logger.info("Applied "+imageSystem.applyChanges(changedFiles, delta.getDeletedFiles())+" changes");
+                ISSCore.saveScanManifest();
+            }
+            finally {
+                ISSCore.shutDownISS(imageSystem);
+            }
+        }
+        else {
+            // Units are walked, probed and hashed by the staged pipeline.
+            ISSIngestPipeline pipeline = new ISSIngestPipeline(ifu -> {
                 // ISSCore.logger.fine("Filename="+ifu.getFilename()+"\tFile_ext="+ifu.getFileExtension()+"\tFile_without_ext="+ifu.getFilenameWithoutExtension());
                 ISSCore.logger.fine("absPath=\""+ifu.getFileAbsolutePath()+"\"\trltPath=\""+ifu.getFileRelativePath()+"\"");
+            });
+            try {
+                pipeline.run(ISSCore.getWorkingFolder().toPath());
             }
-            catch (Exception e) {
-                ISSCore.logger.severe(e.getMessage());
+            catch (InterruptedException e) {
+                ISSCore.logger.severe("Ingest interrupted: "+pipeline.getStatistics());
             }
         }
 
@@ -0,0 +1,200 @@
+package priv.kcl.iss.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A BK-tree of 64-bit hashes under Hamming distance, used to find near-duplicate images by their
+ * perceptual hash (see {@code ISSPerceptualHash}).<p>
+ * Every child of a node is stored under it's distance to that node. By the triangle inequality, a
+ * search for hashes within distance {@code k} of {@code h} only needs to enter the children whose
+ * distance {@code d} to the current node satisfies {@code |d - distance(h, node)| <= k}, so most of the
+ * tree is never visited when {@code k} is small.
+ *
+ * @param <T> the type of values stored with the hashes
+ */
+public class ISSBKTree<T> {
+
+    private static class Node<T> {
+        private final long hash;
+        /** Values with exactly this hash. */
+        private final ArrayList<T> values = new ArrayList<T>(1);
+        /** Distances of children, kept sorted. Aligned with {@code children}. */
+        private byte[] childDistances = new byte[0];
+        private Node<T>[] children = newNodeArray(0);
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+
+        Node<T> getChild(int distance) {
+            int index = Arrays.binarySearch(childDistances, (byte) distance);
+            return (index >= 0 ? children[index] : null);
+        }
+        void putChild(int distance, Node<T> child) {
+            int index = -(Arrays.binarySearch(childDistances, (byte) distance) + 1);
+            byte[] newDistances = new byte[childDistances.length + 1];
+            Node<T>[] newChildren = newNodeArray(children.length + 1);
+            System.arraycopy(childDistances, 0, newDistances, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newDistances[index] = (byte) distance;
+            newChildren[index] = child;
+            System.arraycopy(childDistances, index, newDistances, index + 1, childDistances.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            childDistances = newDistances;
+            children = newChildren;
+        }
+
+        /** Arrays of a generic type can't be created directly. */
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newNodeArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+    }
+
+    /**
+     * A value found by {@link ISSBKTree#search(long, int)}.
+     *
+     * @param <T> the type of the value
+     */
+    public static class Match<T> {
+        private final T value;
+        private final long hash;
+        private final int distance;
+
+        Match(T value, long hash, int distance) {
+            this.value = value;
+            this.hash = hash;
+            this.distance = distance;
+        }
+
+        /**
+         * Get the value found.
+         * @return the value
+         */
+        public T getValue() {
+            return value;
+        }
+        /**
+         * Get the hash stored with the value.
+         * @return the hash
+         */
+        public long getHash() {
+            return hash;
+        }
+        /**
+         * Get the distance between the hash of the value and the searched hash.
+         * @return the Hamming distance
+         */
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    private Node<T> root;
+    private int size = 0;
+
+    /**
+     * Create an empty tree.
+     */
+    public ISSBKTree() {
+    }
+
+    /**
+     * Add a value with it's hash.
+     *
+     * @param hash the hash
+     * @param value the value
+     */
+    public synchronized void add(long hash, T value) {
+        size++;
+        if (root == null) {
+            root = new Node<T>(hash);
+            root.values.add(value);
+            return;
+        }
+        Node<T> node = root;
+        while (true) {
+            int distance = ISSPerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                node.values.add(value);
+                return;
+            }
+            Node<T> child = node.getChild(distance);
+            if (child == null) {
+                child = new Node<T>(hash);
+                child.values.add(value);
+                node.putChild(distance, child);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Remove a value. The node of it's hash is kept since it's still needed to reach it's children.
+     *
+     * @param hash the hash the value was added with
+     * @param value the value
+     * @return {@code true} if the value was in this tree
+     */
+    public synchronized boolean remove(long hash, T value) {
+        Node<T> node = root;
+        while (node != null) {
+            int distance = ISSPerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                boolean removed = node.values.remove(value);
+                if (removed)
+                    size--;
+                return removed;
+            }
+            node = node.getChild(distance);
+        }
+        return false;
+    }
+
+    /**
+     * Find every value whose hash is within {@code maxDistance} of the given hash.
+     *
+     * @param hash the hash to look for
+     * @param maxDistance the largest Hamming distance allowed
+     * @return the values found, with their distances
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized ArrayList<Match<T>> search(long hash, int maxDistance) {
+        ArrayList<Match<T>> result = new ArrayList<Match<T>>();
+        if (root == null)
+            return result;
+
+        ArrayDeque<Node<T>> stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<T> node = stack.pop();
+            int distance = ISSPerceptualHash.distance(hash, node.hash);
+            if (distance <= maxDistance) {
+                for (T value: node.values)
+                    result.add(new Match<T>(value, node.hash, distance));
+            }
+            // Children are sorted by distance, so only a slice of them needs to be checked.
+            int lowerBound = distance - maxDistance;
+            int upperBound = distance + maxDistance;
+            for (int index = 0; index < node.childDistances.length; index++) {
+                int childDistance = node.childDistances[index];
+                if (childDistance > upperBound)
+                    break;
+                if (childDistance >= lowerBound)
+                    stack.push(node.children[index]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of values in this tree.
+     * @return the number of values
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,280 @@
+package priv.kcl.iss.core;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+import priv.kcl.iss.index.ISSBPlusTree;
+
+/**
+ * An on-disk catalog of images, for libraries which are too large to be held in memory.<p>
+ * Two {@code ISSBPlusTree}s are stored in {@code .issinfos\index}:
+ * <ul>
+ * <li><b>Paths.idx</b> maps the relative pathname (UTF-8) to the record of the image.</li>
+ * <li><b>Identities.idx</b> maps the identity (8 bytes, big-endian) followed by the relative pathname to
+ * nothing, so every copy of the same image is found by scanning the identity as a prefix.</li>
+ * </ul>
+ * Because keys are sorted as UTF-8, every image under a folder is found by a prefix scan of it's relative
+ * pathname (see {@link #scanFolder(String, ISSTagTreeUnit)}).
+ */
+public class ISSCatalogIndex implements AutoCloseable {
+
+    private static final byte FLAG_HAS_SIZE = 1;
+    private static final byte FLAG_HAS_PHASH = 2;
+
+    /**
+     * Open the index in a folder. A new index is created if it doesn't exist.
+     *
+     * @param indexFolder the folder of the index files
+     * @return the opened index
+     * @throws IOException thrown if the index can't be opened
+     */
+    public static ISSCatalogIndex open(File indexFolder) throws IOException {
+        indexFolder.mkdirs();
+        ISSBPlusTree paths = ISSBPlusTree.open(new File(indexFolder, "Paths.idx"));
+        try {
+            return new ISSCatalogIndex(paths, ISSBPlusTree.open(new File(indexFolder, "Identities.idx")));
+        }
+        catch (IOException e) {
+            paths.close();
+            throw e;
+        }
+    }
+
+
+    private final ISSBPlusTree paths;
+    private final ISSBPlusTree identities;
+
+    private ISSCatalogIndex(ISSBPlusTree paths, ISSBPlusTree identities) {
+        this.paths = paths;
+        this.identities = identities;
+    }
+
+    /**
+     * Put an image into the index. The old record of the same relative pathname is replaced.
+     *
+     * @param ifu the image
+     * @throws ISSBPlusTree.EntryTooLargeException thrown if the record of the image (mostly it's tags)
+     *         doesn't fit in a page. The index is not changed.
+     * @throws IOException thrown if the index can't be written
+     */
+    public synchronized void put(ISSImageFileUnit ifu) throws IOException {
+        String relativePathname = ifu.getFileRelativePath();
+        long identity = ifu.getSavedIdentity();
+        byte[] oldRecord = paths.put(pathKey(relativePathname), encode(ifu, identity));
+        if (oldRecord != null) {
+            long oldIdentity = ByteBuffer.wrap(oldRecord).getLong(0);
+            if (oldIdentity == identity)
+                return;
+            identities.remove(identityKey(oldIdentity, relativePathname));
+        }
+        // An image which isn't hashed yet is only found by it's pathname.
+        if (identity != ISSContentHash.UNKNOWN)
+            identities.put(identityKey(identity, relativePathname), new byte[0]);
+    }
+
+    /**
+     * Remove an image from the index.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     * @return {@code false} if there's no such image
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized boolean remove(String relativePathname) throws IOException {
+        byte[] record = paths.remove(pathKey(relativePathname));
+        if (record == null)
+            return false;
+        identities.remove(identityKey(ByteBuffer.wrap(record).getLong(0), relativePathname));
+        return true;
+    }
+
+    /**
+     * Get an image from the index. Nothing is read from the file system.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     * @param standardTagTree the tags are found by this tagtree
+     * @return the unit, or {@code null} if there's no such image
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized ISSImageFileUnit get(String relativePathname, ISSTagTreeUnit standardTagTree) throws IOException {
+        byte[] record = paths.get(pathKey(relativePathname));
+        return (record == null ? null : decode(relativePathname, record, standardTagTree));
+    }
+
+    /**
+     * Find every image with the same content.
+     *
+     * @param identity the identity of the image (see {@code ISSImageFileUnit.getIdentity()})
+     * @return the relative pathnames of the images
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized ArrayList<String> findByIdentity(long identity) throws IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        byte[] prefix = ByteBuffer.allocate(8).putLong(identity).array();
+        for (Iterator<ISSBPlusTree.Entry> iterator = identities.scanPrefix(prefix); iterator.hasNext(); ) {
+            byte[] key = iterator.next().getKey();
+            result.add(new String(key, 8, key.length - 8, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    /**
+     * Get every image under a folder, sorted by relative pathname. The index must not be changed while
+     * the iterator is used.
+     *
+     * @param relativeFolder the relative pathname of the folder started with ".\", or "." for every image
+     * @param standardTagTree the tags are found by this tagtree
+     * @return the iterator of units
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized Iterator<ISSImageFileUnit> scanFolder(String relativeFolder, ISSTagTreeUnit standardTagTree) throws IOException {
+        String prefix = (relativeFolder.endsWith(File.separator) ? relativeFolder : relativeFolder + File.separator);
+        Iterator<ISSBPlusTree.Entry> entries = paths.scanPrefix(pathKey(prefix));
+        return new Iterator<ISSImageFileUnit>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+            @Override
+            public ISSImageFileUnit next() {
+                ISSBPlusTree.Entry entry = entries.next();
+                try {
+                    return decode(new String(entry.getKey(), StandardCharsets.UTF_8), entry.getValue(), standardTagTree);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Load images into an empty index. The images are sorted and written page by page, which is much
+     * faster than putting them one by one. An image whose record doesn't fit in a page (see
+     * {@link #put(ISSImageFileUnit)}) is skipped with a warning.
+     *
+     * @param images the images
+     * @return the number of images loaded
+     * @throws IOException thrown if the index can't be written
+     * @throws IllegalStateException thrown if the index is not empty
+     */
+    public synchronized int bulkLoad(Collection<ISSImageFileUnit> images) throws IOException {
+        ArrayList<ISSBPlusTree.Entry> pathEntries = new ArrayList<ISSBPlusTree.Entry>(images.size());
+        ArrayList<ISSBPlusTree.Entry> identityEntries = new ArrayList<ISSBPlusTree.Entry>(images.size());
+        for (ISSImageFileUnit ifu: images) {
+            String relativePathname = ifu.getFileRelativePath();
+            long identity = ifu.getSavedIdentity();
+            byte[] key = pathKey(relativePathname);
+            byte[] record = encode(ifu, identity);
+            if (key.length + record.length > paths.getMaxEntrySize()) {
+                ISSCore.logger.warning("Skipped "+relativePathname+" in catalog index, it's record of "
+                                       +(key.length + record.length)+" bytes is too large");
+                continue;
+            }
+            pathEntries.add(new ISSBPlusTree.Entry(key, record));
+            if (identity != ISSContentHash.UNKNOWN)
+                identityEntries.add(new ISSBPlusTree.Entry(identityKey(identity, relativePathname), new byte[0]));
+        }
+        pathEntries.sort((a, b) -> ISSBPlusTree.compare(a.getKey(), b.getKey()));
+        identityEntries.sort((a, b) -> ISSBPlusTree.compare(a.getKey(), b.getKey()));
+        paths.bulkLoad(pathEntries.iterator());
+        identities.bulkLoad(identityEntries.iterator());
+        return pathEntries.size();
+    }
+
+    /**
+     * Get the number of images.
+     * @return the number of images
+     */
+    public synchronized long size() {
+        return paths.size();
+    }
+
+    /**
+     * Write every change to disk.
+     *
+     * @throws IOException thrown if the index can't be written
+     */
+    public synchronized void flush() throws IOException {
+        paths.flush();
+        identities.flush();
+    }
+
+    /**
+     * Flush and close the index.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            paths.close();
+        }
+        finally {
+            identities.close();
+        }
+    }
+
+
+    private static byte[] pathKey(String relativePathname) {
+        return relativePathname.getBytes(StandardCharsets.UTF_8);
+    }
+    private static byte[] identityKey(long identity, String relativePathname) {
+        byte[] path = pathKey(relativePathname);
+        return ByteBuffer.allocate(8 + path.length).putLong(identity).put(path).array();
+    }
+
+    /** The identity is always the first 8 bytes, so it can be read without decoding the record. */
+    private static byte[] encode(ISSImageFileUnit ifu, long identity) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Dimension imageSize = ifu.getKnownImageSize();
+        Long perceptualHash = ifu.getKnownPerceptualHash();
+        out.writeLong(identity);
+        out.writeLong(ifu.getFileLength());
+        out.writeLong(ifu.getFileLastModified());
+        out.writeByte((imageSize != null ? FLAG_HAS_SIZE : 0) | (perceptualHash != null ? FLAG_HAS_PHASH : 0));
+        if (imageSize != null) {
+            out.writeInt(imageSize.width);
+            out.writeInt(imageSize.height);
+        }
+        if (perceptualHash != null)
+            out.writeLong(perceptualHash);
+        out.writeUTF(ifu.getAddedTime());
+        out.writeShort(ifu.getTags().size());
+        for (ISSTagTreeUnit tag: ifu.getTags())
+            out.writeUTF(tag.getAllParentPath());
+        return bytes.toByteArray();
+    }
+
+    private static ISSImageFileUnit decode(String relativePathname, byte[] record, ISSTagTreeUnit standardTagTree) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long identity = in.readLong();
+        long fileLength = in.readLong();
+        long fileLastModified = in.readLong();
+        byte flags = in.readByte();
+        Dimension imageSize = ((flags & FLAG_HAS_SIZE) != 0 ? new Dimension(in.readInt(), in.readInt()) : null);
+        Long perceptualHash = ((flags & FLAG_HAS_PHASH) != 0 ? in.readLong() : null);
+        String addedTime = in.readUTF();
+        int tagCount = in.readUnsignedShort();
+        ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            ISSTagTreeUnit ttu = (standardTagTree == null ? null : standardTagTree.findByPathOrName(in.readUTF()));
+            if (ttu != null)
+                tags.add(ttu);
+        }
+
+        ISSImageFileUnit ifu = new ISSImageFileUnit(relativePathname, addedTime, tags,
+                                                    fileLength, fileLastModified, imageSize, perceptualHash);
+        ISSHashCache.getDefault().put(ifu.getFolder(), ifu.getFilename(), fileLength, fileLastModified, identity);
+        return ifu;
+    }
+}
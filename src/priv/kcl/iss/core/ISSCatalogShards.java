@@ -0,0 +1,205 @@
+package priv.kcl.iss.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * ImageDetails partitioned by the top-level folder of each image.<p>
+ * Every top-level folder of working folder has it's own shard (files directly in working folder are
+ * in the shard {@value #ROOT_SHARD}). A shard is a file in the same format as ImageDetails.json, stored
+ * under {@code .issinfos\shards}, so a shard can be loaded or saved without touching the others.<p>
+ * The manifest ({@code .issinfos\shards\Shards.json}) records the file and the number of images of every
+ * shard. It's written in the same batch as the shards, so it never points to a shard which isn't there.
+ */
+public class ISSCatalogShards {
+
+    /** The shard of files directly in working folder. */
+    public static final String ROOT_SHARD = ".";
+    /** The filename of the manifest in the folder of shards. */
+    public static final String MANIFEST_FILENAME = "Shards.json";
+
+    private static final String KEY_SHARDS = "SHARDS";
+    private static final String KEY_FILE = "FILE";
+    private static final String KEY_COUNT = "COUNT";
+    private static final String KEY_SAVEDTIME = "SAVEDTIME";
+
+    /**
+     * Get the shard of an image.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     * @return the name of the top-level folder, or {@value #ROOT_SHARD} if the file is directly in working folder
+     */
+    public static String getShardName(String relativePathname) {
+        // Skip ".\"
+        int start = relativePathname.startsWith(".") ? 2 : 0;
+        int end = relativePathname.indexOf(File.separatorChar, start);
+        return (end == -1 ? ROOT_SHARD : relativePathname.substring(start, end));
+    }
+
+    /**
+     * Open the shards in a folder. Only the manifest is read.
+     *
+     * @param shardFolder the folder of shards
+     * @return the shards. If there's no manifest yet, there's no shard
+     */
+    public static ISSCatalogShards open(File shardFolder) {
+        ISSCatalogShards shards = new ISSCatalogShards(shardFolder);
+        if (!shards.manifestFile.exists())
+            return shards;
+
+        try (BufferedReader br = ISSInfoFile.openReader(shards.manifestFile)) {
+            JSONObject jsonShards = new JSONObject(new JSONTokener(br)).getJSONObject(KEY_SHARDS);
+            for (Iterator<String> iterator = jsonShards.keys(); iterator.hasNext(); ) {
+                String name = iterator.next();
+                JSONObject jsonShard = jsonShards.getJSONObject(name);
+                shards.records.put(name, new ShardRecord(jsonShard.getString(KEY_FILE), jsonShard.getInt(KEY_COUNT),
+                                                         jsonShard.optLong(KEY_SAVEDTIME)));
+            }
+        }
+        catch (IOException | JSONException e) {
+            ISSCore.logger.severe("Failed to load shard manifest, shards are ignored: "+e.getMessage());
+            shards.records.clear();
+        }
+        return shards;
+    }
+
+
+    /** What the manifest knows about a shard. */
+    private static class ShardRecord {
+        final String filename;
+        final int count;
+        final long savedTime;
+
+        ShardRecord(String filename, int count, long savedTime) {
+            this.filename = filename;
+            this.count = count;
+            this.savedTime = savedTime;
+        }
+    }
+
+    private final File shardFolder;
+    private final File manifestFile;
+    /**
+     * Shard name to it's record, sorted by name. Locked by this object, since a compaction saves shards
+     * while the image system reads them.
+     */
+    private final TreeMap<String, ShardRecord> records = new TreeMap<String, ShardRecord>();
+
+    private ISSCatalogShards(File shardFolder) {
+        this.shardFolder = shardFolder;
+        this.manifestFile = new File(shardFolder, MANIFEST_FILENAME);
+    }
+
+    /**
+     * Get the name of every stored shard.
+     * @return the names, sorted
+     */
+    public synchronized ArrayList<String> getShardNames() {
+        return new ArrayList<String>(records.keySet());
+    }
+
+    /**
+     * Find out if a shard is stored.
+     * @param shardName the name of the shard
+     * @return {@code true} if it's in the manifest
+     */
+    public synchronized boolean contains(String shardName) {
+        return records.containsKey(shardName);
+    }
+
+    /**
+     * Get the number of images in a shard when it was saved, without loading it.
+     * @param shardName the name of the shard
+     * @return the number of images, or {@code 0} if there's no such shard
+     */
+    public synchronized int getImageCount(String shardName) {
+        ShardRecord record = records.get(shardName);
+        return (record == null ? 0 : record.count);
+    }
+
+    /**
+     * Open a shard for reading.
+     *
+     * @param shardName the name of the shard
+     * @param standardTagTree the tags are found by this tagtree
+     * @return the reader of the shard, or {@code null} if there's no such shard
+     * @throws IOException thrown if the shard can't be opened
+     */
+    public ISSImageDetailsReader openShard(String shardName, ISSTagTreeUnit standardTagTree) throws IOException {
+        ShardRecord record;
+        synchronized (this) {
+            record = records.get(shardName);
+        }
+        if (record == null)
+            return null;
+        return new ISSImageDetailsReader(new File(shardFolder, record.filename), standardTagTree);
+    }
+
+    /**
+     * Save some shards and the manifest in one batch. A shard without image is deleted.
+     *
+     * @param shards shard name to every image in that shard
+     * @throws IOException thrown if any file can't be written. Nothing is changed then.
+     */
+    public void save(Map<String, ? extends Collection<ISSImageFileUnit>> shards) throws IOException {
+        if (shards.isEmpty())
+            return;
+        shardFolder.mkdirs();
+
+        TreeMap<String, ShardRecord> newRecords;
+        synchronized (this) {
+            newRecords = new TreeMap<String, ShardRecord>(records);
+        }
+        ArrayList<File> deletedFiles = new ArrayList<File>();
+        ISSInfoFile.Batch batch = new ISSInfoFile.Batch();
+        long savedTime = System.currentTimeMillis();
+        for (Map.Entry<String, ? extends Collection<ISSImageFileUnit>> entry: shards.entrySet()) {
+            String filename = getShardFilename(entry.getKey());
+            Collection<ISSImageFileUnit> images = entry.getValue();
+            if (images.isEmpty()) {
+                if (newRecords.remove(entry.getKey()) != null)
+                    deletedFiles.add(new File(shardFolder, filename));
+                continue;
+            }
+            batch.addText(new File(shardFolder, filename), out -> ISSImageSystem.writeImageDetails(out, images));
+            newRecords.put(entry.getKey(), new ShardRecord(filename, images.size(), savedTime));
+        }
+
+        JSONObject jsonShards = new JSONObject();
+        for (Map.Entry<String, ShardRecord> entry: newRecords.entrySet()) {
+            JSONObject jsonShard = new JSONObject();
+            jsonShard.put(KEY_FILE, entry.getValue().filename);
+            jsonShard.put(KEY_COUNT, entry.getValue().count);
+            jsonShard.put(KEY_SAVEDTIME, entry.getValue().savedTime);
+            jsonShards.put(entry.getKey(), jsonShard);
+        }
+        batch.addText(manifestFile, new JSONObject().put(KEY_SHARDS, jsonShards).toString());
+        batch.commit();
+
+        synchronized (this) {
+            records.clear();
+            records.putAll(newRecords);
+        }
+        for (File file: deletedFiles)
+            file.delete();
+    }
+
+    /** The filename of a shard is the hash of it's name, so any folder name is a safe filename. */
+    private static String getShardFilename(String shardName) {
+        ISSContentHash hash = new ISSContentHash();
+        hash.update(ByteBuffer.wrap(shardName.getBytes(StandardCharsets.UTF_8)));
+        return ISSContentHash.toHexString(hash.digest()) + ".json";
+    }
+}
@@ -0,0 +1,193 @@
+package priv.kcl.iss.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A 64-bit non-cryptographic hash of file content (XXH64 with seed 0).<p>
+ * Small files are read through a {@code FileChannel} into a reusable buffer, and large files are
+ * memory-mapped, so hashing never copies the whole file into the heap.
+ */
+public class ISSContentHash {
+
+    /**
+     * Stands for a hash which isn't known, like the identity of a file which can't be read. It's never
+     * cached or stored as a real hash.
+     */
+    public static final long UNKNOWN = 0;
+    /** Files larger than this will be memory-mapped. */
+    public static final long MAPPING_THRESHOLD = 4L * 1024 * 1024;
+    /** The size of each mapped region. */
+    private static final long MAPPING_REGION_SIZE = 256L * 1024 * 1024;
+    /** The size of read buffer for small files. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /** Reuse one read buffer for each thread. */
+    private static final ThreadLocal<ByteBuffer> readBuffer =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+
+    /**
+     * Hash the content of a file.
+     *
+     * @param file the file to hash
+     * @return the 64-bit hash
+     * @throws IOException thrown if the file can't be read
+     */
+    public static long hashFile(File file) throws IOException {
+        ISSContentHash hash = new ISSContentHash();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAPPING_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPING_REGION_SIZE) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_REGION_SIZE, size - position));
+                    hash.update(region);
+                }
+            }
+            else {
+                ByteBuffer buffer = readBuffer.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    hash.update(buffer);
+                    buffer.compact();
+                }
+                buffer.flip();
+                hash.update(buffer);
+            }
+        }
+        return hash.digest();
+    }
+
+    /**
+     * Format a hash as a 16-digit hex string.
+     *
+     * @param hash the hash
+     * @return the hex string
+     */
+    public static String toHexString(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+    /**
+     * Parse a hash from it's hex string.
+     *
+     * @param hex the string from {@link #toHexString(long)}
+     * @return the hash
+     */
+    public static long parseHexString(String hex) {
+        return Long.parseUnsignedLong(hex, 16);
+    }
+
+
+    private long v1 = PRIME64_1 + PRIME64_2;
+    private long v2 = PRIME64_2;
+    private long v3 = 0;
+    private long v4 = -PRIME64_1;
+    private long totalLength = 0;
+    /** Bytes not yet forming a full 32-byte stripe. */
+    private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Start a new hash.
+     */
+    public ISSContentHash() {
+    }
+
+    /**
+     * Feed the remaining bytes of the buffer.
+     *
+     * @param buffer the bytes to hash. It's position will be moved to it's limit.
+     */
+    public void update(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        totalLength += buffer.remaining();
+
+        // Finish the pending stripe first.
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && buffer.hasRemaining())
+                pending.put(buffer.get());
+            if (pending.hasRemaining()) {
+                buffer.order(order);
+                return;
+            }
+            pending.flip();
+            consumeStripe(pending);
+            pending.clear();
+        }
+        while (buffer.remaining() >= 32)
+            consumeStripe(buffer);
+        while (buffer.hasRemaining())
+            pending.put(buffer.get());
+        buffer.order(order);
+    }
+
+    private void consumeStripe(ByteBuffer buffer) {
+        v1 = round(v1, buffer.getLong());
+        v2 = round(v2, buffer.getLong());
+        v3 = round(v3, buffer.getLong());
+        v4 = round(v4, buffer.getLong());
+    }
+
+    /**
+     * Get the hash of every byte fed so far.
+     *
+     * @return the 64-bit hash
+     */
+    public long digest() {
+        long hash;
+        if (totalLength >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        }
+        else
+            hash = PRIME64_5;
+        hash += totalLength;
+
+        ByteBuffer tail = pending.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        tail.flip();
+        while (tail.remaining() >= 8) {
+            hash ^= round(0, tail.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (tail.remaining() >= 4) {
+            hash ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+        }
+        while (tail.hasRemaining()) {
+            hash ^= (tail.get() & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
@@ -1,9 +1,9 @@
 package priv.kcl.iss.core;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -12,8 +12,11 @@ import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * The core of Image Searching System(ISS). Provides some basic method and common attributes.
@@ -40,6 +43,22 @@ public class ISSCore {
     public static final String TAGS_FILENAME = INFO_FOLDER_PATHNAME + "\\Tags.json";
     /** The default Json file of storing Image Details. */
     public static final String IMAGE_DETAILS_FILENAME = INFO_FOLDER_PATHNAME + "\\ImageDetails.json";
+    /** The default binary file of storing Image Details. See {@code ISSImageDetailsStore}. */
+    public static final String IMAGE_DETAILS_STORE_FILENAME = INFO_FOLDER_PATHNAME + "\\ImageDetails.bin";
+    /** The default Json file of storing the scan manifest of working folder. */
+    public static final String SCAN_MANIFEST_FILENAME = INFO_FOLDER_PATHNAME + "\\ScanManifest.json";
+    /** The default Json file of storing the content hash of each image. */
+    public static final String HASH_CACHE_FILENAME = INFO_FOLDER_PATHNAME + "\\HashCache.json";
+    /** The default journal file of storing tag edits made since ImageDetails.json was saved. See {@code ISSTagJournal}. */
+    public static final String TAG_JOURNAL_FILENAME = INFO_FOLDER_PATHNAME + "\\TagJournal.log";
+    /** The default folder of storing the shards of Image Details. See {@code ISSCatalogShards}. */
+    public static final String SHARD_FOLDER_PATHNAME = INFO_FOLDER_PATHNAME + "\\shards";
+    /** The default folder of storing the on-disk catalog index. See {@code ISSCatalogIndex}. */
+    public static final String INDEX_FOLDER_PATHNAME = INFO_FOLDER_PATHNAME + "\\index";
+    /** The default file of storing the snapshot of the whole model. See {@code ISSModelSnapshot}. */
+    public static final String SNAPSHOT_FILENAME = INFO_FOLDER_PATHNAME + "\\Snapshot.bin";
+    /** The default folder of storing thumbnails. */
+    public static final String THUMBNAIL_FOLDER_PATHNAME = INFO_FOLDER_PATHNAME + "\\thumbs";
 
     /** The default Logs home. */
     public static final String LOG_FOLDER_PATHNAME = ".\\.log";
@@ -61,6 +80,11 @@ public class ISSCore {
     /** The pathname of the working folder. */
     private static String workingFolderPathname;
 
+    /** What changed in working folder since the last start. */
+    private static ISSScanDelta lastScanDelta;
+    /** The manifest of the last rescan, saved by {@link #saveScanManifest()} once it's delta is applied. */
+    private static ISSScanManifest pendingScanManifest;
+
     /**
      * Initialize every static attributes in ISS, like Logger.<p>
      * <b>IMPORTANT!</b> This method should be called in the frist line of the entry of the program
@@ -133,8 +157,76 @@ public class ISSCore {
             workingFolderPathname = workingFolderPathname.substring(0, workingFolderPathname.length()-2);
         ISSCore.workingFolderPathname = workingFolderPathname;
 
+        // Find out what changed since the last start. Only the changed directories will be listed.
+        if (new File(INFO_FOLDER_PATHNAME).isDirectory())
+            lastScanDelta = rescanWorkingFolder(false);
+
         // TODO: Maybe there will be more feature in the future?
     }
+
+    /**
+     * Load the Image System of working folder. The snapshot written by {@link #shutDownISS(ISSImageSystem)}
+     * is used if it's still fresh, so nothing is parsed from json. Otherwise the tags are read from
+     * Tags.json, and the images from the shards (if there's a shard manifest) or ImageDetails.json.
+     * 
+     * @return the loaded Image System
+     */
+    public static ISSImageSystem loadImageSystem() {
+        ISSImageSystem imageSystem = ISSImageSystem.loadSnapshot();
+        if (imageSystem != null)
+            return imageSystem;
+
+        ISSTagTreeUnit standardTagTree = null;
+        ISSTagTreeUnit ignoredExtension = null;
+        try (BufferedReader br = ISSInfoFile.openReader(new File(TAGS_FILENAME))) {
+            JSONObject jsonTags = new JSONObject(new JSONTokener(br));
+            standardTagTree = ISSTagSystem.transformToTTU(jsonTags.getJSONObject("TagTree"));
+            if (jsonTags.optJSONObject("IgnoredExtension") != null)
+                ignoredExtension = ISSTagSystem.transformToTTU(jsonTags.getJSONObject("IgnoredExtension"));
+        }
+        catch (IOException | JSONException e) {
+            logger.severe("Failed to load Tags.json: "+e.getMessage());
+        }
+
+        imageSystem = new ISSImageSystem(standardTagTree, ignoredExtension);
+        if (new File(SHARD_FOLDER_PATHNAME, ISSCatalogShards.MANIFEST_FILENAME).exists())
+            imageSystem.openShards();
+        else if (new File(IMAGE_DETAILS_FILENAME).exists()) {
+            try {
+                imageSystem.loadImageDetails();
+            }
+            catch (IOException | JSONException e) {
+                logger.severe("Failed to load ImageDetails.json: "+e.getMessage());
+            }
+        }
+        return imageSystem;
+    }
+
+    /**
+     * Shut down the Image System cleanly: every unsaved change is saved (so the tag journal is
+     * dropped), the tag journal and the catalog index are closed, then a snapshot of the whole model is
+     * written for the next {@link #loadImageSystem()}.
+     * 
+     * @param imageSystem the Image System to shut down
+     */
+    public static void shutDownISS(ISSImageSystem imageSystem) {
+        try {
+            // Saved before the journal is closed, so the journal is dropped and not replayed at the next start.
+            imageSystem.saveCatalog();
+        }
+        catch (IOException e) {
+            logger.severe("Failed to save ImageDetails, the tag journal is kept: "+e.getMessage());
+        }
+        try {
+            imageSystem.closeTagJournal();
+            imageSystem.closeCatalogIndex();
+            imageSystem.saveSnapshot();
+        }
+        catch (IOException e) {
+            // The old snapshot doesn't match the saved json anymore, so it won't be used.
+            logger.severe("Failed to shut down Image System cleanly: "+e.getMessage());
+        }
+    }
     
     /**
      * Initialize working folder. This method will access every directories and files in
@@ -160,6 +252,8 @@ public class ISSCore {
         File fileBasicInfo = new File(BASIC_INFO_FILENAME);
         File fileTags = new File(TAGS_FILENAME);
         File fileImageDetails = new File(IMAGE_DETAILS_FILENAME);
+        // Every file is written by one batch at the end, so they're flushed together.
+        ISSInfoFile.Batch batch = new ISSInfoFile.Batch();
         
         //////////////////  Create InfoFoler  //////////////////
         System.out.println("Creating InfoFolder... "+(fileInfoFolder.mkdir()? "done": "folder already exist"));
@@ -171,14 +265,9 @@ public class ISSCore {
                 System.out.print("there's a same filename exist. Overwriting... ");
 
             try {
-                fileBasicInfo.createNewFile();
                 JSONObject jsonBasicInfo = new JSONObject();
                 jsonBasicInfo.put("WORKINGFOLDER", fileWorkingFolder.getAbsolutePath());
-
-                BufferedWriter br = new BufferedWriter(new FileWriter(fileBasicInfo));
-                br.write(jsonBasicInfo.toString());
-                br.flush();
-                br.close();
+                batch.addText(fileBasicInfo, jsonBasicInfo.toString());
 
                 System.out.println("done");
             }
@@ -196,8 +285,6 @@ public class ISSCore {
                 System.out.print("there's a same filename exist. Overwriting... ");
             
             try {
-                fileTags.createNewFile();
-                
                 ISSTagTreeUnit ttuTagTree = new ISSTagTreeUnit(null, "TagTree");
                 ISSTagTreeUnit ttuExtension = new ISSTagTreeUnit(ttuTagTree, "Extension");
                 ttuTagTree.append(ttuExtension);
@@ -220,11 +307,7 @@ public class ISSCore {
                 // jsonTags.put("IgnoredExtension", ISSTagSystem.transformToJSON(ttuIgnoredExtension));
                 jsonTags.put("TagTree", ISSTagSystem.transformToJSON(ttuTagTree));
                 jsonTags.put("IgnoredExtension", ISSTagSystem.transformToJSON(ttuIgnoredExtension));
-                
-                BufferedWriter br = new BufferedWriter(new FileWriter(fileTags));
-                br.write(jsonTags.toString());
-                br.flush();
-                br.close();
+                batch.addText(fileTags, jsonTags.toString());
 
                 System.out.println("done");
             }
@@ -242,17 +325,11 @@ public class ISSCore {
                 System.out.print("there's a same filename exist. Overwriting... ");
             
             try {
-                fileImageDetails.createNewFile();
-
                 // ArrayList<ISSImageFileUnit> fileList = makeFileCollection(fileWorkingFolder.listFiles());
                 JSONObject jsonFileList = new JSONObject();
                 // fileList.stream()
                 //         .forEach(file -> jsonFileList.put(file.getFileName(), file.toJSONObject()));
-                
-                BufferedWriter br = new BufferedWriter(new FileWriter(fileImageDetails));
-                br.write(jsonFileList.toString());
-                br.flush();
-                br.close();
+                batch.addText(fileImageDetails, jsonFileList.toString());
 
                 System.out.println("done");
             }
@@ -264,34 +341,113 @@ public class ISSCore {
         else
             System.out.println("there's a same filename exist. Skipped.");
 
+        //////////////////  Write every file  //////////////////
+        if (!batch.isEmpty()) {
+            System.out.print("Writing files... ");
+            try {
+                batch.commit();
+                System.out.println("done");
+            }
+            catch (IOException e) {
+                System.err.println("Initialization failed.\nAt core.ISSCore.initialize() when writing files\n"+e.getMessage());
+            }
+        }
+
         System.out.println("Initialization complete.");
     }
 
     /**
-     * Get all files in working folder from file system. Contain all extensions (include RAR, ZIP, etc.).
+     * Get all files in working folder from file system. Contain all extensions (include RAR, ZIP, etc.).<p>
+     * The directories are walked in parallel by {@code ISSFileWalker}, and the result is sorted by
+     * pathname in the same way every time.
      * 
-     * @param files
-     * @return
+     * @param files the files and directories to start with
+     * @return every file (not directory) under the given files
      */
     public static ArrayList<File> makeFileCollection(File[] files) {
-        ArrayList<File> result = new ArrayList<File>();
+        return ISSFileWalker.collectFiles(files);
+    }
 
-        for (File file: files) {
-            if (file.isDirectory())
-                result.addAll(makeFileCollection(file.listFiles()));
-            else
-                result.add(file);
+    /**
+     * Scan the working folder and provide {@code ISSImageFileUnit} one by one instead of building
+     * the whole file list first. See {@code ISSImageScanner}.
+     * 
+     * @return the scanner of the working folder. Remember to close it if you stop reading early.
+     */
+    public static ISSImageScanner scanImageFileUnits() {
+        return new ISSImageScanner(getWorkingFolder().toPath());
+    }
+    /**
+     * Same as {@link #scanImageFileUnits()}, but provides a {@code Stream}.
+     * 
+     * @return the stream of every unit in working folder. Closing it stops the scan.
+     */
+    public static Stream<ISSImageFileUnit> streamImageFileUnits() {
+        return scanImageFileUnits().stream();
+    }
+
+    /**
+     * Rescan the working folder based on the scan manifest in info folder. Directories which haven't
+     * changed since the last scan are not listed again.<p>
+     * The updated manifest is not saved here. Call {@link #saveScanManifest()} after the delta is
+     * applied, so if we crash before that, the same changes are found again at the next start.
+     * 
+     * @param fullRescan if {@code true}, every directory will be listed again even if it hasn't changed
+     * @return what changed since the last scan
+     */
+    public static ISSScanDelta rescanWorkingFolder(boolean fullRescan) {
+        ISSScanManifest manifest = ISSScanManifest.load(new File(SCAN_MANIFEST_FILENAME));
+        ISSScanDelta delta = manifest.rescan(getWorkingFolder().toPath(), fullRescan);
+        logger.info("Rescan of working folder done. Delta="+delta);
+        pendingScanManifest = manifest;
+        return delta;
+    }
+
+    /**
+     * Save the manifest of the last {@link #rescanWorkingFolder(boolean)}. Call this once the delta
+     * has been applied to the Image System.
+     */
+    public static void saveScanManifest() {
+        if (pendingScanManifest == null)
+            return;
+        try {
+            pendingScanManifest.save(new File(SCAN_MANIFEST_FILENAME));
+            pendingScanManifest = null;
         }
-        
-        return result;
+        catch (IOException e) {
+            logger.severe("Failed to save scan manifest: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Get what changed in working folder since the last start. The rescan is done by
+     * {@link #startUpISS(File)} if the info folder exists. Call {@link #saveScanManifest()} after
+     * these changes are applied.
+     * 
+     * @return the changes since the last start, or {@code null} if there's no info folder
+     */
+    public static ISSScanDelta getLastScanDelta() {
+        return lastScanDelta;
     }
 
-    // XXX: Rewrite this method
+    /**
+     * Delete the whole INFO_FOLDER, with everything in it (shards, the catalog index, thumbnails,
+     * rotated journals and temp files too), so nothing stale is opened after a reset.
+     */
     public static void deleteInfoFolder() {
-        new File(BASIC_INFO_FILENAME).delete();
-        new File(TAGS_FILENAME).delete();
-        new File(IMAGE_DETAILS_FILENAME).delete();
-        new File(INFO_FOLDER_PATHNAME).delete();
+        if (!deleteRecursively(new File(INFO_FOLDER_PATHNAME)))
+            logger.warning("Failed to delete every file in \""+INFO_FOLDER_PATHNAME+"\"");
+    }
+    /** Delete a file, or a folder and everything in it. A symbolic link is deleted, not followed. */
+    private static boolean deleteRecursively(File file) {
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child: children)
+                    deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
     }
 
     /**
@@ -350,12 +506,13 @@ public class ISSCore {
         }
         int resultLengthIntPart = (int) tmpLength;
         String resultLengthFloatPart = "";
-        if (tmpLength == 1 || tmpLength == 0)
+        // Bytes and whole numbers don't need a fraction part.
+        if (sizeLevel == 0 || tmpLength == resultLengthIntPart)
             resultLengthFloatPart = "";
         else if (tmpLength < 10)
-            resultLengthFloatPart = "."+String.valueOf(tmpLength-resultLengthIntPart).substring(2, 4);
+            resultLengthFloatPart = "."+String.valueOf(100 + (int) ((tmpLength-resultLengthIntPart) * 100)).substring(1);
         else if (tmpLength < 100)
-            resultLengthFloatPart = "."+String.valueOf(tmpLength-resultLengthIntPart).substring(2, 3);
+            resultLengthFloatPart = "."+(int) ((tmpLength-resultLengthIntPart) * 10);
         
         return resultLengthIntPart + resultLengthFloatPart + " " + resultSizeLevel;
     }
@@ -397,5 +554,13 @@ public class ISSCore {
     public static File getWorkingFolder() {
         return new File(workingFolderPathname);
     }
+    /**
+     * Get the file of a relative pathname based on working folder.
+     * @param relativePathname the relative pathname started with ".\"
+     * @return the {@code File} object of that pathname
+     */
+    public static File getFileFromRelativePath(String relativePathname) {
+        return new File(workingFolderPathname + relativePathname.substring(1));
+    }
 
 }
@@ -0,0 +1,238 @@
+package priv.kcl.iss.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A parallel directory walker built on {@code java.nio.file}. Every directory is listed by its own
+ * fork-join task, and the {@code BasicFileAttributes} that the file system gave us while listing are
+ * kept together with the path, so there's no need to call {@code isDirectory()} or {@code length()}
+ * on each file again.<p>
+ * The result is always in a stable order: the entries of a directory are sorted by their names, and
+ * the files of a sub-directory are placed right where that sub-directory is.<p>
+ * Symbolic links under a directory are not followed, so a link to one of it's parents can't make the
+ * walk loop forever. They're skipped, since the attributes we have are those of the link itself.
+ */
+public class ISSFileWalker {
+
+    /**
+     * A file found by the walker, together with the attributes read while listing its directory.
+     */
+    public static class Entry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Get the path of this entry.
+         * @return the path
+         */
+        public Path getPath() {
+            return path;
+        }
+        /**
+         * Get the attributes of this entry. These are read while listing, so no more I/O is needed.
+         * @return the attributes
+         */
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+        /**
+         * Get the {@code File} object of this entry.
+         * @return the file
+         */
+        public File toFile() {
+            return path.toFile();
+        }
+    }
+
+    /** Sort entries by their file name, so the result won't change between two walks. */
+    private static final Comparator<Entry> ENTRY_ORDER =
+        (a, b) -> a.path.getFileName().toString().compareTo(b.path.getFileName().toString());
+
+    /** The pool used by the walker. */
+    private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+
+    /**
+     * Walk through the given directory and every sub-directory of it.
+     *
+     * @param directory the directory to start with
+     * @return every file (not directory) under {@code directory} in stable order
+     */
+    public static ArrayList<Entry> walk(Path directory) {
+        DirectoryTask task = new DirectoryTask(directory);
+        pool.invoke(task);
+
+        ArrayList<Entry> result = new ArrayList<Entry>(task.fileCount);
+        task.flattenInto(result);
+        return result;
+    }
+
+    /**
+     * Walk through every given file. If a file is a directory, then every file under it will be
+     * collected too.
+     *
+     * @param files the files and directories to start with
+     * @return every file (not directory) in stable order
+     */
+    public static ArrayList<Entry> walk(File[] files) {
+        ArrayList<Entry> roots = new ArrayList<Entry>();
+        if (files == null)
+            return roots;
+        for (File file: files) {
+            Path path = file.toPath();
+            try {
+                roots.add(new Entry(path, Files.readAttributes(path, BasicFileAttributes.class)));
+            }
+            catch (IOException e) {
+                ISSCore.logger.warning("Failed to read attributes of \""+path+"\": "+e.getMessage());
+            }
+        }
+        roots.sort(ENTRY_ORDER);
+
+        // Walk every top-level directory in parallel as well.
+        DirectoryTask[] subTasks = new DirectoryTask[roots.size()];
+        for (int index = 0; index < roots.size(); index++) {
+            if (roots.get(index).attributes.isDirectory())
+                subTasks[index] = new DirectoryTask(roots.get(index).path);
+        }
+        DirectoryTask rootTask = new DirectoryTask(null);
+        rootTask.entries = roots.toArray(new Entry[0]);
+        rootTask.subTasks = subTasks;
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                rootTask.forkAndJoinSubTasks();
+            }
+        });
+
+        ArrayList<Entry> result = new ArrayList<Entry>(rootTask.fileCount);
+        rootTask.flattenInto(result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #walk(File[])}, but only the {@code File} objects are returned.
+     *
+     * @param files the files and directories to start with
+     * @return every file (not directory) in stable order
+     */
+    public static ArrayList<File> collectFiles(File[] files) {
+        ArrayList<Entry> entries = walk(files);
+        ArrayList<File> result = new ArrayList<File>(entries.size());
+        for (Entry entry: entries)
+            result.add(entry.toFile());
+        return result;
+    }
+
+    /**
+     * List the direct children of one directory, directories included.
+     *
+     * @param directory the directory to list
+     * @return the children sorted by name, without symbolic links. If the directory can't be listed,
+     *         the result is empty
+     */
+    static ArrayList<Entry> listDirectory(Path directory) {
+        ArrayList<Entry> listing = new ArrayList<Entry>();
+        try {
+            // With maxDepth = 1, visitFile() is called for every direct child (including
+            // directories) with the attributes read while listing.
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // Without FOLLOW_LINKS, attrs of a link are read from the link itself, so a link to
+                    // a directory isn't a directory here and would be taken as a file.
+                    if (attrs.isSymbolicLink())
+                        ISSCore.logger.fine("Skipped symbolic link \""+file+"\"");
+                    else
+                        listing.add(new Entry(file, attrs));
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    ISSCore.logger.warning("Failed to access \""+file+"\": "+e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to list \""+directory+"\": "+e.getMessage());
+        }
+        listing.sort(ENTRY_ORDER);
+        return listing;
+    }
+
+
+    /**
+     * List one directory and fork a new task for each sub-directory.
+     */
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 4518031276839120415L;
+
+        private final Path directory;
+        /** Entries of this directory, sorted. */
+        private Entry[] entries;
+        /** Sub-tasks aligned with {@code entries}. {@code null} if the entry is a file. */
+        private DirectoryTask[] subTasks;
+        /** The number of files under this directory, sub-directories included. */
+        private int fileCount;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            entries = listDirectory(directory).toArray(new Entry[0]);
+            subTasks = new DirectoryTask[entries.length];
+            for (int index = 0; index < entries.length; index++) {
+                if (entries[index].attributes.isDirectory())
+                    subTasks[index] = new DirectoryTask(entries[index].path);
+            }
+            forkAndJoinSubTasks();
+        }
+
+        /** Fork every sub-task, then wait for them and count the files. */
+        private void forkAndJoinSubTasks() {
+            for (DirectoryTask subTask: subTasks) {
+                if (subTask != null)
+                    subTask.fork();
+            }
+            fileCount = 0;
+            for (DirectoryTask subTask: subTasks) {
+                if (subTask == null)
+                    fileCount++;
+                else {
+                    subTask.join();
+                    fileCount += subTask.fileCount;
+                }
+            }
+        }
+
+        /** Copy every file into {@code result} once, so no temporary list is built for each level. */
+        private void flattenInto(ArrayList<Entry> result) {
+            for (int index = 0; index < entries.length; index++) {
+                if (subTasks[index] == null)
+                    result.add(entries[index]);
+                else
+                    subTasks[index].flattenInto(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package priv.kcl.iss.core;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * A folder in the tree of folders which images are in.<p>
+ * Every folder is created once and shared by every image in it, so an {@code ISSImageFileUnit} only
+ * keeps it's folder and filename, and it's pathnames are built when they're needed. The pathname of a
+ * folder is built once and kept, since there are far fewer folders than images.<p>
+ * The root is working folder ("."). A folder outside of working folder is a root of it's own, named
+ * by it's absolute pathname.<p>
+ * A folder only keeps it's children weakly, so a folder which nothing refers to anymore (no image is
+ * in it or under it) is dropped from the tree by the garbage collector. Since a child keeps it's parent,
+ * a folder is never dropped while a subfolder is still used, and the same folder is always returned
+ * for the same pathname while it's used.
+ */
+public class ISSFolderNode {
+
+    /** Working folder. */
+    private static final ISSFolderNode root = new ISSFolderNode(null, ".");
+    /** Absolute pathname to every folder outside of working folder. */
+    private static final HashMap<String, FolderReference> outsideRoots = new HashMap<String, FolderReference>();
+    /** Folders which are dropped by the garbage collector, to be removed from their parents. */
+    private static final ReferenceQueue<ISSFolderNode> releasedFolders = new ReferenceQueue<ISSFolderNode>();
+
+    /** A weak reference to a folder, which remembers where it's kept. */
+    private static class FolderReference extends WeakReference<ISSFolderNode> {
+        /** The parent which keeps it, or {@code null} if it's in {@code outsideRoots}. */
+        final ISSFolderNode parent;
+        final String name;
+
+        FolderReference(ISSFolderNode folder) {
+            super(folder, releasedFolders);
+            this.parent = folder.parent;
+            this.name = folder.name;
+        }
+    }
+
+    /**
+     * Get working folder.
+     * @return the root folder, which relative pathname is "."
+     */
+    public static ISSFolderNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Find a folder by it's relative pathname. Folders which don't exist in the tree yet are created.
+     *
+     * @param relativeFolder the relative pathname started with ".\" or ".". A pathname not started
+     * with "." is treated as an absolute pathname.
+     * @return the folder
+     */
+    public static ISSFolderNode fromRelativePath(String relativeFolder) {
+        return resolveRelative(relativeFolder, true);
+    }
+    /**
+     * Find a folder by it's absolute pathname. Folders which don't exist in the tree yet are created.
+     *
+     * @param absoluteFolder the absolute pathname
+     * @return the folder under working folder, or a root of it's own if it's outside of working folder
+     */
+    public static ISSFolderNode fromAbsolutePath(String absoluteFolder) {
+        return resolveAbsolute(absoluteFolder, true);
+    }
+    /**
+     * Find a folder by it's relative pathname without creating any folder.
+     *
+     * @param relativeFolder the relative pathname started with ".\" or "."
+     * @return the folder, or {@code null} if it's not in the tree
+     */
+    public static ISSFolderNode find(String relativeFolder) {
+        return resolveRelative(relativeFolder, false);
+    }
+
+    private static ISSFolderNode resolveRelative(String relativeFolder, boolean create) {
+        if (!relativeFolder.startsWith("."))
+            return resolveAbsolute(relativeFolder, create);
+        if (relativeFolder.length() > 1 && relativeFolder.charAt(1) != File.separatorChar)
+            // A folder like ".git" directly in working folder isn't a relative pathname.
+            return resolveAbsolute(relativeFolder, create);
+
+        ISSFolderNode folder = root;
+        int start = 2;
+        while (folder != null && start < relativeFolder.length()) {
+            int end = relativeFolder.indexOf(File.separatorChar, start);
+            if (end == -1)
+                end = relativeFolder.length();
+            if (end > start)
+                folder = folder.findChild(relativeFolder.substring(start, end), create);
+            start = end + 1;
+        }
+        return folder;
+    }
+    private static ISSFolderNode resolveAbsolute(String absoluteFolder, boolean create) {
+        String workingFolderPathname = ISSCore.getWorkingFolderPathname();
+        if (workingFolderPathname != null && absoluteFolder.startsWith(workingFolderPathname)) {
+            if (absoluteFolder.length() == workingFolderPathname.length())
+                return root;
+            if (absoluteFolder.charAt(workingFolderPathname.length()) == File.separatorChar)
+                return resolveRelative("." + absoluteFolder.substring(workingFolderPathname.length()), create);
+        }
+        if (create)
+            removeReleasedFolders();
+        synchronized (outsideRoots) {
+            FolderReference reference = outsideRoots.get(absoluteFolder);
+            ISSFolderNode folder = (reference == null ? null : reference.get());
+            if (folder == null && create) {
+                folder = new ISSFolderNode(null, absoluteFolder);
+                outsideRoots.put(absoluteFolder, new FolderReference(folder));
+            }
+            return folder;
+        }
+    }
+
+    /** Remove the folders dropped by the garbage collector from their parents. */
+    private static void removeReleasedFolders() {
+        FolderReference reference;
+        while ((reference = (FolderReference) releasedFolders.poll()) != null) {
+            if (reference.parent == null) {
+                synchronized (outsideRoots) {
+                    outsideRoots.remove(reference.name, reference);
+                }
+            }
+            else
+                reference.parent.removeChild(reference);
+        }
+    }
+
+
+    private final ISSFolderNode parent;
+    private final String name;
+    /** Child folders by name. {@code null} until the first child. */
+    private HashMap<String, FolderReference> children;
+    /** The relative pathname, built the first time it's needed. */
+    private volatile String relativePath;
+
+    private ISSFolderNode(ISSFolderNode parent, String name) {
+        this.parent = parent;
+        this.name = name;
+    }
+
+    /**
+     * Get a child folder. It's created if it doesn't exist in the tree yet.
+     *
+     * @param childName the name of the child folder
+     * @return the child folder
+     */
+    public ISSFolderNode getChild(String childName) {
+        return findChild(childName, true);
+    }
+    private ISSFolderNode findChild(String childName, boolean create) {
+        // Outside of the lock, since it locks other folders.
+        if (create)
+            removeReleasedFolders();
+        synchronized (this) {
+            FolderReference reference = (children == null ? null : children.get(childName));
+            ISSFolderNode child = (reference == null ? null : reference.get());
+            if (child == null && create) {
+                if (children == null)
+                    children = new HashMap<String, FolderReference>(4);
+                child = new ISSFolderNode(this, childName);
+                children.put(childName, new FolderReference(child));
+            }
+            return child;
+        }
+    }
+    private synchronized void removeChild(FolderReference reference) {
+        // The folder may have been created again under the same name.
+        if (children != null && children.remove(reference.name, reference) && children.isEmpty())
+            children = null;
+    }
+
+    /**
+     * Get the parent folder.
+     * @return the parent, or {@code null} if this is a root
+     */
+    public ISSFolderNode getParent() {
+        return parent;
+    }
+    /**
+     * Get the name of this folder.
+     * @return the name, "." for working folder, or the absolute pathname of a folder outside of it
+     */
+    public String getName() {
+        return name;
+    }
+    /**
+     * Find out if this folder is a folder or a subfolder of another one.
+     * @param ancestor the other folder
+     * @return {@code true} if this folder is the same as {@code ancestor} or under it
+     */
+    public boolean isUnder(ISSFolderNode ancestor) {
+        for (ISSFolderNode folder = this; folder != null; folder = folder.parent) {
+            if (folder == ancestor)
+                return true;
+        }
+        return false;
+    }
+    /**
+     * Find out if this folder is outside of working folder.
+     * @return {@code true} if this folder is not under working folder
+     */
+    public boolean isOutsideWorkingFolder() {
+        ISSFolderNode folder = this;
+        while (folder.parent != null)
+            folder = folder.parent;
+        return folder != root;
+    }
+
+    /**
+     * Get the relative pathname of this folder.
+     * @return the relative pathname started with ".", or the absolute pathname if this folder is outside
+     * of working folder
+     */
+    public String getRelativePath() {
+        String result = relativePath;
+        if (result == null) {
+            result = (parent == null ? name : parent.getRelativePath() + File.separator + name);
+            relativePath = result;
+        }
+        return result;
+    }
+    /**
+     * Get the absolute pathname of this folder.
+     * @return the absolute pathname
+     */
+    public String getAbsolutePath() {
+        if (isOutsideWorkingFolder())
+            return getRelativePath();
+        return ISSCore.getWorkingFolderPathname() + getRelativePath().substring(1);
+    }
+
+    /**
+     * Get the relative pathname of a file in this folder.
+     * @param filename the name of the file
+     * @return the relative pathname started with ".\"
+     */
+    public String getRelativePath(String filename) {
+        return getRelativePath() + File.separator + filename;
+    }
+    /**
+     * Get the absolute pathname of a file in this folder.
+     * @param filename the name of the file
+     * @return the absolute pathname
+     */
+    public String getAbsolutePath(String filename) {
+        return getAbsolutePath() + File.separator + filename;
+    }
+
+    @Override
+    public String toString() {
+        return getRelativePath();
+    }
+}
@@ -0,0 +1,222 @@
+package priv.kcl.iss.core;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch the working folder and every sub-directory of it, and keep {@code ISSImageSystem} up to date
+ * when files are added, edited, renamed or removed.<p>
+ * Events are not applied one by one. They're collected until the folder has been quiet for
+ * {@code debounceMillis} (or {@code maxBatchMillis} has passed since the first event of the batch), then
+ * applied by {@code ISSImageSystem.applyChanges()} in one go, so copying 10k files into the library
+ * only leads to a few saves of ImageDetails.json.<p>
+ * If the OS drops events ({@code OVERFLOW}), the directory is rescanned and compared with the
+ * units in the image system.
+ */
+public class ISSFolderWatcher implements AutoCloseable {
+
+    /** The default quiet time before a batch is applied. */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    /** The default longest time a batch can wait before it's applied. */
+    public static final long DEFAULT_MAX_BATCH_MILLIS = 5000;
+
+    private final ISSImageSystem imageSystem;
+    private final Path workingFolder;
+    private final long debounceMillis;
+    private final long maxBatchMillis;
+
+    private WatchService watchService;
+    private final HashMap<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private Thread watcherThread;
+
+    /** Files created or modified in the current batch. */
+    private final LinkedHashSet<Path> pendingChanges = new LinkedHashSet<Path>();
+    /** Files or directories deleted in the current batch. */
+    private final LinkedHashSet<Path> pendingDeletes = new LinkedHashSet<Path>();
+    /** Directories which lost events in the current batch. */
+    private final LinkedHashSet<Path> pendingRescans = new LinkedHashSet<Path>();
+
+    /**
+     * Create a watcher of the working folder.
+     *
+     * @param imageSystem the image system to keep up to date
+     */
+    public ISSFolderWatcher(ISSImageSystem imageSystem) {
+        this(imageSystem, ISSCore.getWorkingFolder().toPath(), DEFAULT_DEBOUNCE_MILLIS, DEFAULT_MAX_BATCH_MILLIS);
+    }
+    /**
+     * Create a watcher.
+     *
+     * @param imageSystem the image system to keep up to date
+     * @param workingFolder the folder to watch
+     * @param debounceMillis how long the folder should be quiet before a batch is applied
+     * @param maxBatchMillis the longest time a batch can wait before it's applied
+     */
+    public ISSFolderWatcher(ISSImageSystem imageSystem, Path workingFolder, long debounceMillis, long maxBatchMillis) {
+        this.imageSystem = imageSystem;
+        this.workingFolder = workingFolder;
+        this.debounceMillis = debounceMillis;
+        this.maxBatchMillis = maxBatchMillis;
+    }
+
+    /**
+     * Register every directory and start watching in a background thread.
+     *
+     * @throws IOException thrown if the watch service can't be created
+     */
+    public synchronized void start() throws IOException {
+        if (watcherThread != null)
+            return;
+        watchService = FileSystems.getDefault().newWatchService();
+        registerTree(workingFolder);
+
+        watcherThread = new Thread(this::run, "ISS-FolderWatcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+        ISSCore.logger.info("Watching "+watchedDirectories.size()+" directories under \""+workingFolder+"\"");
+    }
+
+    /**
+     * Stop watching. Events not yet applied are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        if (watcherThread == null)
+            return;
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to close watch service: "+e.getMessage());
+        }
+        watcherThread.interrupt();
+        watcherThread = null;
+    }
+
+    /** Register the directory and every sub-directory of it. */
+    private ArrayList<Path> registerTree(Path directory) {
+        ArrayList<Path> files = new ArrayList<Path>();
+        register(directory);
+        for (ISSFileWalker.Entry entry: ISSFileWalker.listDirectory(directory)) {
+            if (entry.getAttributes().isDirectory())
+                files.addAll(registerTree(entry.getPath()));
+            else
+                files.add(entry.getPath());
+        }
+        return files;
+    }
+    private void register(Path directory) {
+        try {
+            watchedDirectories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), directory);
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to watch \""+directory+"\": "+e.getMessage());
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // Wait for the first event of a batch.
+                WatchKey key = watchService.take();
+                long batchStart = System.currentTimeMillis();
+                collect(key);
+
+                // Keep collecting until the folder is quiet, or the batch has waited too long.
+                while (System.currentTimeMillis() - batchStart < maxBatchMillis) {
+                    key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    if (key == null)
+                        break;
+                    collect(key);
+                }
+                flush();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped by close().
+        }
+    }
+
+    /** Move every event of the key into the pending sets. */
+    private void collect(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (directory == null)
+                break;
+            if (event.kind() == OVERFLOW) {
+                pendingRescans.add(directory);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                pendingChanges.remove(path);
+                pendingDeletes.add(path);
+            }
+            else {
+                pendingDeletes.remove(path);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    // A new directory (maybe moved in with files) needs to be watched as well.
+                    pendingChanges.addAll(registerTree(path));
+                }
+                else
+                    pendingChanges.add(path);
+            }
+        }
+        if (!key.reset())
+            watchedDirectories.remove(key);
+    }
+
+    /** Apply the current batch to the image system. */
+    private void flush() {
+        ArrayList<File> changedFiles = new ArrayList<File>();
+        ArrayList<String> deletedPathnames = new ArrayList<String>();
+
+        for (Path directory: pendingRescans) {
+            // Events of this directory are lost. Compare the files on disk with the units we have.
+            LinkedHashSet<String> filesOnDisk = new LinkedHashSet<String>();
+            for (Path file: registerTree(directory)) {
+                filesOnDisk.add(toRelativePathname(file));
+                changedFiles.add(file.toFile());
+            }
+            for (ISSImageFileUnit ifu: imageSystem.getImagesUnder(toRelativePathname(directory))) {
+                String relativePathname = ifu.getFileRelativePath();
+                if (!filesOnDisk.contains(relativePathname))
+                    deletedPathnames.add(relativePathname);
+            }
+        }
+        for (Path path: pendingDeletes)
+            deletedPathnames.add(toRelativePathname(path));
+        for (Path path: pendingChanges)
+            changedFiles.add(path.toFile());
+
+        int changedCount = imageSystem.applyChanges(changedFiles, deletedPathnames);
+        ISSCore.logger.fine("Folder watcher applied a batch: Changed="+changedFiles.size()+",Deleted="+deletedPathnames.size()+
+                            ",Rescanned="+pendingRescans.size()+",Updated="+changedCount);
+
+        pendingChanges.clear();
+        pendingDeletes.clear();
+        pendingRescans.clear();
+    }
+
+    /** Same format as {@code ISSImageFileUnit.getFileRelativePath()}. */
+    private String toRelativePathname(Path path) {
+        return "." + path.toAbsolutePath().toString().substring(ISSCore.getWorkingFolderPathname().length());
+    }
+}
@@ -0,0 +1,270 @@
+package priv.kcl.iss.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A cache of content hashes (see {@code ISSContentHash}) keyed by relative pathname. Each hash is
+ * stored with the length and last-modified time of the file when it was hashed, so it's only
+ * recomputed after the file changed.<p>
+ * The cache is stored in {@code .issinfos\HashCache.json}. The default cache reads the file the first
+ * time it's needed (a hash which isn't known yet, a removal or a save), so a start which gets every
+ * hash from somewhere else (such as {@code ISSModelSnapshot}) doesn't parse it at all.
+ */
+public class ISSHashCache {
+
+    /** The cache shared by every {@code ISSImageFileUnit}. */
+    private static ISSHashCache defaultCache;
+
+    /**
+     * Get the cache shared by every {@code ISSImageFileUnit}. It's loaded from
+     * {@code ISSCore.HASH_CACHE_FILENAME} the first time it's needed.
+     *
+     * @return the default cache
+     */
+    public static synchronized ISSHashCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new ISSHashCache(new File(ISSCore.HASH_CACHE_FILENAME));
+        return defaultCache;
+    }
+
+    /**
+     * Load the cache from file.
+     *
+     * @param file the cache file
+     * @return the loaded cache. If the file doesn't exist or is broken, an empty one is returned
+     */
+    public static ISSHashCache load(File file) {
+        ISSHashCache cache = new ISSHashCache(file);
+        cache.ensureLoaded();
+        return cache;
+    }
+
+
+    private final File file;
+    /**
+     * Folder to filename to {length, lastModified, hash}. Records are kept by the folders shared with
+     * {@code ISSImageFileUnit}, so no pathname is kept for each file.
+     */
+    private final ConcurrentHashMap<ISSFolderNode, ConcurrentHashMap<String, long[]>> records =
+        new ConcurrentHashMap<ISSFolderNode, ConcurrentHashMap<String, long[]>>();
+    private volatile boolean dirty = false;
+    /** If the cache file has been read. */
+    private volatile boolean loaded = false;
+
+    private ISSHashCache(File file) {
+        this.file = file;
+    }
+
+    /** Read the cache file unless it's read already. Records put before that are kept, since they're newer. */
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            loaded = true;
+            if (!file.exists())
+                return;
+
+            HashMap<String, long[]> fileRecords = new HashMap<String, long[]>();
+            try (BufferedReader br = ISSInfoFile.openReader(file)) {
+                JSONObject json = new JSONObject(new JSONTokener(br));
+                for (Iterator<String> iterator = json.keys(); iterator.hasNext(); ) {
+                    String key = iterator.next();
+                    JSONArray record = json.getJSONArray(key);
+                    fileRecords.put(key, new long[] {record.getLong(0), record.getLong(1), ISSContentHash.parseHexString(record.getString(2))});
+                }
+            }
+            catch (IOException | JSONException e) {
+                ISSCore.logger.warning("Failed to load hash cache, every hash will be recomputed: "+e.getMessage());
+                return;
+            }
+            fileRecords.forEach((relativePathname, record) -> {
+                int separator = relativePathname.lastIndexOf(File.separatorChar);
+                if (separator > 0)
+                    recordsOf(ISSFolderNode.fromRelativePath(relativePathname.substring(0, separator)))
+                        .putIfAbsent(relativePathname.substring(separator + 1), record);
+            });
+        }
+    }
+    private ConcurrentHashMap<String, long[]> recordsOf(ISSFolderNode folder) {
+        return records.computeIfAbsent(folder, key -> new ConcurrentHashMap<String, long[]>(4));
+    }
+    private long[] getRecord(ISSFolderNode folder, String filename) {
+        ConcurrentHashMap<String, long[]> folderRecords = records.get(folder);
+        return (folderRecords == null ? null : folderRecords.get(filename));
+    }
+    /** Split a relative pathname and call {@code action} with it's folder and filename. */
+    private static <T> T withFolder(String relativePathname, PathAction<T> action) {
+        int separator = relativePathname.lastIndexOf(File.separatorChar);
+        if (separator <= 0)
+            throw new IllegalArgumentException("Not a pathname of a file: "+relativePathname);
+        return action.apply(ISSFolderNode.fromRelativePath(relativePathname.substring(0, separator)),
+                            relativePathname.substring(separator + 1));
+    }
+    @FunctionalInterface
+    private interface PathAction<T> {
+        T apply(ISSFolderNode folder, String filename);
+    }
+
+    /**
+     * Get the content hash of a file. If the file hasn't changed since it was hashed, the cached hash
+     * is returned without reading the file.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     * @param file the file
+     * @param length the current length of the file
+     * @param lastModified the current last-modified time of the file
+     * @return the 64-bit content hash
+     * @throws IOException thrown if the file has to be hashed but can't be read
+     */
+    public long getHash(String relativePathname, File file, long length, long lastModified) throws IOException {
+        int separator = relativePathname.lastIndexOf(File.separatorChar);
+        if (separator <= 0)
+            throw new IllegalArgumentException("Not a pathname of a file: "+relativePathname);
+        return getHash(ISSFolderNode.fromRelativePath(relativePathname.substring(0, separator)),
+                       relativePathname.substring(separator + 1), file, length, lastModified);
+    }
+    /**
+     * Same as {@link #getHash(String, File, long, long)}, by the folder and filename of the file.
+     */
+    long getHash(ISSFolderNode folder, String filename, File file, long length, long lastModified) throws IOException {
+        long[] record = getRecord(folder, filename);
+        if (record == null && !loaded) {
+            ensureLoaded();
+            record = getRecord(folder, filename);
+        }
+        if (record != null && record[0] == length && record[1] == lastModified)
+            return record[2];
+
+        long hash = ISSContentHash.hashFile(file);
+        recordsOf(folder).put(filename, new long[] {length, lastModified, hash});
+        dirty = true;
+        return hash;
+    }
+
+    /**
+     * Get the hash of a file only if it's cached for the given length and last-modified time. The file
+     * is never read, so it works for a file which doesn't exist anymore.
+     *
+     * @param folder the folder of the file
+     * @param filename the name of the file
+     * @param length the length of the file when it was hashed
+     * @param lastModified the last-modified time of the file when it was hashed
+     * @return the cached hash, or {@code null} if it's unknown
+     */
+    Long getKnownHash(ISSFolderNode folder, String filename, long length, long lastModified) {
+        ensureLoaded();
+        long[] record = getRecord(folder, filename);
+        return (record != null && record[0] == length && record[1] == lastModified ? record[2] : null);
+    }
+
+    /**
+     * Put a hash which is already known, for example loaded from {@code ISSImageDetailsStore}. An
+     * unknown hash ({@code ISSContentHash.UNKNOWN}) is ignored.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     * @param length the length of the file when it was hashed
+     * @param lastModified the last-modified time of the file when it was hashed
+     * @param hash the 64-bit content hash
+     */
+    public void put(String relativePathname, long length, long lastModified, long hash) {
+        withFolder(relativePathname, (folder, filename) -> {
+            put(folder, filename, length, lastModified, hash);
+            return null;
+        });
+    }
+    /**
+     * Same as {@link #put(String, long, long, long)}, by the folder and filename of the file.
+     */
+    void put(ISSFolderNode folder, String filename, long length, long lastModified, long hash) {
+        if (hash == ISSContentHash.UNKNOWN)
+            return;
+        long[] record = getRecord(folder, filename);
+        if (record != null && record[0] == length && record[1] == lastModified && record[2] == hash)
+            return;
+        recordsOf(folder).put(filename, new long[] {length, lastModified, hash});
+        dirty = true;
+    }
+
+    /**
+     * Put a hash which is already saved in the cache file, such as one from {@code ISSModelSnapshot}.
+     * The cache is not marked as changed, so it won't be saved again for it. An unknown hash is ignored.
+     *
+     * @param folder the folder of the file
+     * @param filename the name of the file
+     * @param length the length of the file when it was hashed
+     * @param lastModified the last-modified time of the file when it was hashed
+     * @param hash the 64-bit content hash
+     */
+    void putSaved(ISSFolderNode folder, String filename, long length, long lastModified, long hash) {
+        if (hash == ISSContentHash.UNKNOWN)
+            return;
+        recordsOf(folder).put(filename, new long[] {length, lastModified, hash});
+    }
+
+    /**
+     * Forget the hash of a file.
+     *
+     * @param relativePathname the relative pathname started with ".\"
+     */
+    public void remove(String relativePathname) {
+        withFolder(relativePathname, (folder, filename) -> {
+            remove(folder, filename);
+            return null;
+        });
+    }
+    /**
+     * Same as {@link #remove(String)}, by the folder and filename of the file. A folder without any
+     * record left is dropped, so it can be released by {@code ISSFolderNode}.
+     */
+    void remove(ISSFolderNode folder, String filename) {
+        // Otherwise the record would come back when the file is read.
+        ensureLoaded();
+        ConcurrentHashMap<String, long[]> folderRecords = records.get(folder);
+        if (folderRecords == null || folderRecords.remove(filename) == null)
+            return;
+        dirty = true;
+        records.computeIfPresent(folder, (key, value) -> (value.isEmpty() ? null : value));
+    }
+
+    /**
+     * Save the cache if anything changed since it was loaded or saved.
+     *
+     * @throws IOException thrown if the file can't be written. The cache stays changed, so the next
+     *         save tries again.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        // Every record in the file must be written back.
+        ensureLoaded();
+        // Cleared before the records are read, so a hash put while writing marks the cache again.
+        dirty = false;
+
+        boolean saved = false;
+        try {
+            JSONObject json = new JSONObject();
+            records.forEach((folder, folderRecords) -> folderRecords.forEach((filename, record) ->
+                json.put(folder.getRelativePath(filename),
+                         new JSONArray().put(record[0]).put(record[1]).put(ISSContentHash.toHexString(record[2])))));
+            ISSInfoFile.writeText(file, json.toString());
+            saved = true;
+        }
+        finally {
+            if (!saved)
+                dirty = true;
+        }
+    }
+}
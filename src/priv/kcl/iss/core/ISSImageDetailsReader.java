@@ -0,0 +1,274 @@
+package priv.kcl.iss.core;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Read ImageDetails.json record by record.<p>
+ * The document is pulled token by token from a {@code JSONTokener}, and each record is turned into an
+ * {@code ISSImageFileUnit} directly, without building a {@code JSONObject} of the record or of the whole
+ * catalog. Only one record is held at a time, so loading time and memory grow with the number of records
+ * and nothing else.<p>
+ * The stored identity (IDENTITY, LENGTH and MODIFIEDTIME) is put into {@code ISSHashCache}, so the
+ * images won't be hashed again.<p>
+ * Unknown keys are skipped, so files written by a newer version can still be read.
+ */
+public class ISSImageDetailsReader implements Iterator<ISSImageFileUnit>, AutoCloseable {
+
+    private final Reader reader;
+    private final JSONTokener tokener;
+    private final ISSTagTreeUnit standardTagTree;
+
+    /** The next unit read but not yet returned. */
+    private ISSImageFileUnit nextUnit;
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * Open ImageDetails.json for reading.
+     *
+     * @param file the json file
+     * @param standardTagTree the tags are found by this tagtree. Tags not in it are dropped.
+     * @throws IOException thrown if the file can't be opened
+     */
+    public ISSImageDetailsReader(File file, ISSTagTreeUnit standardTagTree) throws IOException {
+        this(ISSInfoFile.openReader(file), standardTagTree);
+    }
+    /**
+     * Read ImageDetails.json from a reader.
+     *
+     * @param reader the source of json
+     * @param standardTagTree the tags are found by this tagtree. Tags not in it are dropped.
+     */
+    public ISSImageDetailsReader(Reader reader, ISSTagTreeUnit standardTagTree) {
+        this.reader = reader;
+        this.tokener = new JSONTokener(reader);
+        this.standardTagTree = standardTagTree;
+    }
+
+    /**
+     * @throws JSONException thrown if the json is broken
+     */
+    @Override
+    public boolean hasNext() throws JSONException {
+        if (nextUnit == null && !finished)
+            nextUnit = readRecord();
+        return nextUnit != null;
+    }
+
+    /**
+     * @throws JSONException thrown if the json is broken
+     */
+    @Override
+    public ISSImageFileUnit next() throws JSONException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        ISSImageFileUnit result = nextUnit;
+        nextUnit = null;
+        return result;
+    }
+
+    /** Read the next "pathname": {record} pair, or return {@code null} at the end of the root object. */
+    private ISSImageFileUnit readRecord() throws JSONException {
+        char c = tokener.nextClean();
+        if (!started) {
+            started = true;
+            if (c != '{')
+                throw tokener.syntaxError("ImageDetails must begin with '{'");
+            c = tokener.nextClean();
+            if (c == '}') {
+                finished = true;
+                return null;
+            }
+        }
+        else if (c == '}') {
+            finished = true;
+            return null;
+        }
+        else if (c == ',')
+            c = tokener.nextClean();
+        else
+            throw tokener.syntaxError("Expected ',' or '}'");
+
+        String relativePathname = readString(c);
+        if (tokener.nextClean() != ':')
+            throw tokener.syntaxError("Expected ':' after \""+relativePathname+"\"");
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected '{' for \""+relativePathname+"\"");
+
+        String filePath = null;
+        String addedTime = null;
+        String identity = null;
+        Long perceptualHash = null;
+        Long fileLength = null;
+        Long fileLastModified = null;
+        Integer width = null;
+        Integer height = null;
+        ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>();
+
+        c = tokener.nextClean();
+        while (c != '}') {
+            String key = readString(c);
+            if (tokener.nextClean() != ':')
+                throw tokener.syntaxError("Expected ':' after \""+key+"\"");
+
+            switch (key) {
+                case ISSImageSystem.KEY_FILEPATH:
+                    filePath = readString(tokener.nextClean());
+                    break;
+                case ISSImageSystem.KEY_ADDEDTIME:
+                    addedTime = readString(tokener.nextClean());
+                    break;
+                case ISSImageSystem.KEY_IDENTITY:
+                    identity = readString(tokener.nextClean());
+                    break;
+                case ISSImageSystem.KEY_PHASH:
+                    perceptualHash = ISSContentHash.parseHexString(readString(tokener.nextClean()));
+                    break;
+                case ISSImageSystem.KEY_LENGTH:
+                    fileLength = readNumber().longValue();
+                    break;
+                case ISSImageSystem.KEY_MODIFIEDTIME:
+                    fileLastModified = readNumber().longValue();
+                    break;
+                case ISSImageSystem.KEY_WIDTH:
+                    width = readNumber().intValue();
+                    break;
+                case ISSImageSystem.KEY_HEIGHT:
+                    height = readNumber().intValue();
+                    break;
+                case ISSImageSystem.KEY_TAGS:
+                    readTags(tags);
+                    break;
+                default:
+                    skipValue(tokener.nextClean());
+                    break;
+            }
+
+            c = tokener.nextClean();
+            if (c == ',')
+                c = tokener.nextClean();
+            else if (c != '}')
+                throw tokener.syntaxError("Expected ',' or '}' in \""+relativePathname+"\"");
+        }
+
+        // The relative pathname is preferred, so the working folder can be moved. Images outside of
+        // working folder are keyed by their absolute pathname, and old versions stored FILEPATH as well.
+        boolean relative = relativePathname.startsWith(".");
+        Long knownIdentity = null;
+        if (!relative && filePath == null)
+            filePath = relativePathname;
+        if (addedTime == null)
+            addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
+        if (fileLength == null || fileLastModified == null) {
+            // Stored by an old version. Read them from the file system.
+            File file = (relative ? ISSCore.getFileFromRelativePath(relativePathname) : new File(filePath));
+            fileLength = file.length();
+            fileLastModified = file.lastModified();
+        }
+        else if (identity != null && relative)
+            knownIdentity = ISSContentHash.parseHexString(identity);
+        // Older versions stored a file which couldn't be hashed as 0.
+        if (knownIdentity != null && knownIdentity == ISSContentHash.UNKNOWN)
+            knownIdentity = null;
+        Dimension imageSize = (width != null && height != null ? new Dimension(width, height) : null);
+
+        if (!relative)
+            return new ISSImageFileUnit(new File(filePath), addedTime, tags, fileLength, fileLastModified, imageSize, perceptualHash);
+        ISSImageFileUnit ifu = new ISSImageFileUnit(relativePathname, addedTime, tags, fileLength, fileLastModified, imageSize, perceptualHash);
+        if (knownIdentity != null)
+            ISSHashCache.getDefault().put(ifu.getFolder(), ifu.getFilename(), fileLength, fileLastModified, knownIdentity);
+        return ifu;
+    }
+
+    private String readString(char quote) throws JSONException {
+        if (quote != '"' && quote != '\'')
+            throw tokener.syntaxError("Expected a string");
+        return tokener.nextString(quote);
+    }
+
+    private Number readNumber() throws JSONException {
+        Object value = tokener.nextValue();
+        if (!(value instanceof Number))
+            throw tokener.syntaxError("Expected a number but got "+value);
+        return (Number) value;
+    }
+
+    private void readTags(ArrayList<ISSTagTreeUnit> tags) throws JSONException {
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("Expected '[' for "+ISSImageSystem.KEY_TAGS);
+        char c = tokener.nextClean();
+        while (c != ']') {
+            if (c == '"' || c == '\'') {
+                ISSTagTreeUnit ttu = (standardTagTree == null ? null : standardTagTree.findByPathOrName(tokener.nextString(c)));
+                if (ttu != null)
+                    tags.add(ttu);
+            }
+            else
+                skipValue(c);
+
+            c = tokener.nextClean();
+            if (c == ',')
+                c = tokener.nextClean();
+            else if (c != ']')
+                throw tokener.syntaxError("Expected ',' or ']' in "+ISSImageSystem.KEY_TAGS);
+        }
+    }
+
+    /** Skip a value which starts with {@code c}, without building it. */
+    private void skipValue(char c) throws JSONException {
+        switch (c) {
+            case '"':
+            case '\'':
+                tokener.nextString(c);
+                return;
+            case '{':
+            case '[':
+                char close = (c == '{' ? '}' : ']');
+                c = tokener.nextClean();
+                while (c != close) {
+                    skipValue(c);
+                    c = tokener.nextClean();
+                    // Keys and values are both skipped, so ':' is treated like ','.
+                    if (c == ',' || c == ':')
+                        c = tokener.nextClean();
+                    else if (c != close)
+                        throw tokener.syntaxError("Expected ',' or '"+close+"'");
+                }
+                return;
+            default:
+                tokener.back();
+                tokener.nextValue();
+        }
+    }
+
+    /**
+     * Read every remaining record into a list.
+     *
+     * @return every remaining unit
+     * @throws JSONException thrown if the json is broken
+     */
+    public ArrayList<ISSImageFileUnit> toList() throws JSONException {
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>();
+        forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Close the source.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        nextUnit = null;
+        reader.close();
+    }
+}
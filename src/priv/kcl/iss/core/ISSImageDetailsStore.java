@@ -0,0 +1,407 @@
+package priv.kcl.iss.core;
+
+import java.awt.Dimension;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A compact binary format of Image Details, which can be memory-mapped and read without parsing.<p>
+ * The file is made of four sections:
+ * <p>
+ * <code>header | records | tag lists | string offsets | string data</code>
+ * <p>
+ * Each record has a fixed width of {@value #RECORD_SIZE} bytes (relative pathname as a string id, length,
+ * last-modified time, added time, identity, perceptual hash, width, height and the offset of it's tag
+ * list), so the {@code i}-th record is found by multiplication. A tag list is a varint count followed
+ * by varint string ids. Every string (pathnames and full paths of tags) is stored once as UTF-8.<p>
+ * ImageDetails.json is still supported as the import/export format, see {@link #importJSON(File, File, ISSTagTreeUnit)}
+ * and {@link #exportJSON(File)}.
+ */
+public class ISSImageDetailsStore implements AutoCloseable {
+
+    /** "ISSD" */
+    private static final int MAGIC = 0x49535344;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+    /** The size of each record. */
+    public static final int RECORD_SIZE = 64;
+
+    // Offsets of the fields in a record.
+    private static final int FIELD_PATH = 0;
+    private static final int FIELD_WIDTH = 4;
+    private static final int FIELD_HEIGHT = 8;
+    private static final int FIELD_FLAGS = 12;
+    private static final int FIELD_LENGTH = 16;
+    private static final int FIELD_LASTMODIFIED = 24;
+    private static final int FIELD_ADDEDTIME = 32;
+    private static final int FIELD_IDENTITY = 40;
+    private static final int FIELD_PHASH = 48;
+    private static final int FIELD_TAGS = 56;
+
+    private static final int FLAG_HAS_SIZE = 1;
+    private static final int FLAG_HAS_PHASH = 2;
+
+
+    /**
+     * Write every image into a store file.
+     *
+     * @param file the store file
+     * @param images the images to write
+     * @throws IOException thrown if the file can't be written
+     */
+    public static void write(File file, Collection<ISSImageFileUnit> images) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(ISSCore.PATTERN_FOR_STRING);
+        HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        ArrayList<byte[]> strings = new ArrayList<byte[]>();
+        ByteArrayOutputStream tagLists = new ByteArrayOutputStream();
+
+        ByteBuffer records = ByteBuffer.allocate(images.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (ISSImageFileUnit ifu: images) {
+            int start = records.position();
+            Dimension imageSize = ifu.getKnownImageSize();
+            Long perceptualHash = ifu.getKnownPerceptualHash();
+            int flags = (imageSize != null ? FLAG_HAS_SIZE : 0) | (perceptualHash != null ? FLAG_HAS_PHASH : 0);
+
+            records.putInt(start + FIELD_PATH, internString(ifu.getFileRelativePath(), stringIds, strings));
+            records.putInt(start + FIELD_WIDTH, imageSize != null ? imageSize.width : ISSImageProbe.UNKNOWN_SIZE);
+            records.putInt(start + FIELD_HEIGHT, imageSize != null ? imageSize.height : ISSImageProbe.UNKNOWN_SIZE);
+            records.putInt(start + FIELD_FLAGS, flags);
+            records.putLong(start + FIELD_LENGTH, ifu.getFileLength());
+            records.putLong(start + FIELD_LASTMODIFIED, ifu.getFileLastModified());
+            records.putLong(start + FIELD_ADDEDTIME, parseAddedTime(ifu.getAddedTime(), dateFormat));
+            records.putLong(start + FIELD_IDENTITY, ifu.getSavedIdentity());
+            records.putLong(start + FIELD_PHASH, perceptualHash != null ? perceptualHash : 0);
+            records.putInt(start + FIELD_TAGS, tagLists.size());
+            records.position(start + RECORD_SIZE);
+
+            writeVarint(tagLists, ifu.getTags().size());
+            for (ISSTagTreeUnit tag: ifu.getTags())
+                writeVarint(tagLists, internString(tag.getAllParentPath(), stringIds, strings));
+        }
+
+        long recordsOffset = HEADER_SIZE;
+        long tagListsOffset = recordsOffset + records.capacity();
+        long stringOffsetsOffset = tagListsOffset + tagLists.size();
+        long stringDataOffset = stringOffsetsOffset + 4L * (strings.size() + 1);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(images.size()).putInt(strings.size());
+        header.putLong(tagListsOffset).putLong(stringOffsetsOffset).putLong(stringDataOffset).putLong(0);
+
+        // The offset of string i is stringOffsets[i], and it ends at stringOffsets[i+1].
+        ByteBuffer stringOffsets = ByteBuffer.allocate(4 * (strings.size() + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        int stringOffset = 0;
+        for (byte[] string: strings) {
+            stringOffsets.putInt(stringOffset);
+            stringOffset += string.length;
+        }
+        stringOffsets.putInt(stringOffset);
+
+        ISSInfoFile.write(file, out -> {
+            out.write(header.array());
+            out.write(records.array());
+            tagLists.writeTo(out);
+            out.write(stringOffsets.array());
+            for (byte[] string: strings)
+                out.write(string);
+        });
+    }
+
+    /**
+     * Open a store file. The file is memory-mapped, and nothing is parsed until it's read.
+     *
+     * @param file the store file
+     * @return the opened store
+     * @throws IOException thrown if the file can't be read or is not a store file
+     */
+    public static ISSImageDetailsStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Image details store is too large: "+file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                throw new IOException("Not an image details store: "+file);
+            if (buffer.getInt(4) != VERSION)
+                throw new IOException("Unsupported image details store version "+buffer.getInt(4)+": "+file);
+            return new ISSImageDetailsStore(buffer);
+        }
+    }
+
+    /**
+     * Convert ImageDetails.json into a store file.
+     *
+     * @param jsonFile the ImageDetails.json
+     * @param storeFile the store file to write
+     * @param standardTagTree the tags in json are found by this tagtree
+     * @throws IOException thrown if a file can't be read or written
+     */
+    public static void importJSON(File jsonFile, File storeFile, ISSTagTreeUnit standardTagTree) throws IOException {
+        ArrayList<ISSImageFileUnit> images;
+        try (ISSImageDetailsReader reader = new ISSImageDetailsReader(jsonFile, standardTagTree)) {
+            images = reader.toList();
+        }
+        write(storeFile, images);
+    }
+
+
+    private ByteBuffer buffer;
+    private final int recordCount;
+    private final int stringCount;
+    private final int tagListsOffset;
+    private final int stringOffsetsOffset;
+    private final int stringDataOffset;
+
+    private ISSImageDetailsStore(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.recordCount = buffer.getInt(8);
+        this.stringCount = buffer.getInt(12);
+        this.tagListsOffset = (int) buffer.getLong(16);
+        this.stringOffsetsOffset = (int) buffer.getLong(24);
+        this.stringDataOffset = (int) buffer.getLong(32);
+    }
+
+    /**
+     * Get the number of records.
+     * @return the number of records
+     */
+    public int size() {
+        return recordCount;
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= recordCount)
+            throw new IndexOutOfBoundsException("Record "+index+" of "+recordCount);
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Get the relative pathname of a record.
+     * @param index the index of the record
+     * @return the relative pathname started with ".\"
+     */
+    public String getRelativePath(int index) {
+        return getString(buffer.getInt(recordOffset(index) + FIELD_PATH));
+    }
+    /**
+     * Get the stored length of the file.
+     * @param index the index of the record
+     * @return the length
+     */
+    public long getLength(int index) {
+        return buffer.getLong(recordOffset(index) + FIELD_LENGTH);
+    }
+    /**
+     * Get the stored last-modified time of the file.
+     * @param index the index of the record
+     * @return the last-modified time in milliseconds
+     */
+    public long getLastModified(int index) {
+        return buffer.getLong(recordOffset(index) + FIELD_LASTMODIFIED);
+    }
+    /**
+     * Get when the image was added into ISS.
+     * @param index the index of the record
+     * @return the added time in milliseconds
+     */
+    public long getAddedTime(int index) {
+        return buffer.getLong(recordOffset(index) + FIELD_ADDEDTIME);
+    }
+    /**
+     * Get the identity (content hash) of the image.
+     * @param index the index of the record
+     * @return the identity, or {@code ISSContentHash.UNKNOWN} if it wasn't known when it's written
+     */
+    public long getIdentity(int index) {
+        return buffer.getLong(recordOffset(index) + FIELD_IDENTITY);
+    }
+    /**
+     * Find out if the perceptual hash of the image is stored.
+     * @param index the index of the record
+     * @return {@code true} if it's stored
+     */
+    public boolean hasPerceptualHash(int index) {
+        return (buffer.getInt(recordOffset(index) + FIELD_FLAGS) & FLAG_HAS_PHASH) != 0;
+    }
+    /**
+     * Get the perceptual hash of the image.
+     * @param index the index of the record
+     * @return the perceptual hash. Only valid if {@link #hasPerceptualHash(int)}
+     */
+    public long getPerceptualHash(int index) {
+        return buffer.getLong(recordOffset(index) + FIELD_PHASH);
+    }
+    /**
+     * Get the size of the image.
+     * @param index the index of the record
+     * @return the size, or {@code null} if it's not stored
+     */
+    public Dimension getImageSize(int index) {
+        int offset = recordOffset(index);
+        if ((buffer.getInt(offset + FIELD_FLAGS) & FLAG_HAS_SIZE) == 0)
+            return null;
+        return new Dimension(buffer.getInt(offset + FIELD_WIDTH), buffer.getInt(offset + FIELD_HEIGHT));
+    }
+    /**
+     * Get the tags of the image.
+     * @param index the index of the record
+     * @return the full paths of the tags, or the tag names if the store was written by an older version
+     */
+    public ArrayList<String> getTagNames(int index) {
+        int position = tagListsOffset + buffer.getInt(recordOffset(index) + FIELD_TAGS);
+        int[] cursor = {position};
+        int count = readVarint(cursor);
+        ArrayList<String> result = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            result.add(getString(readVarint(cursor)));
+        return result;
+    }
+
+    /**
+     * Build the {@code ISSImageFileUnit} of a record. The file system is not touched, and the identity
+     * is put into {@code ISSHashCache} so it won't be computed again.
+     *
+     * @param index the index of the record
+     * @param standardTagTree the tags are found by this tagtree. Tags not in it are dropped.
+     * @return the unit
+     */
+    public ISSImageFileUnit toImageFileUnit(int index, ISSTagTreeUnit standardTagTree) {
+        String relativePath = getRelativePath(index);
+        ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>();
+        for (String tagName: getTagNames(index)) {
+            ISSTagTreeUnit ttu = (standardTagTree == null ? null : standardTagTree.findByPathOrName(tagName));
+            if (ttu != null)
+                tags.add(ttu);
+        }
+        long length = getLength(index);
+        long lastModified = getLastModified(index);
+        ISSImageFileUnit ifu = new ISSImageFileUnit(relativePath,
+                                                    new SimpleDateFormat(ISSCore.PATTERN_FOR_STRING).format(getAddedTime(index)),
+                                                    tags, length, lastModified, getImageSize(index),
+                                                    hasPerceptualHash(index) ? getPerceptualHash(index) : null);
+        ISSHashCache.getDefault().put(ifu.getFolder(), ifu.getFilename(), length, lastModified, getIdentity(index));
+        return ifu;
+    }
+
+    /**
+     * Get a record in the same format as {@code ISSImageFileUnit.toJSONObject()}. Like there, the
+     * filename and pathname are not in it, since the record is keyed by it's relative pathname.
+     *
+     * @param index the index of the record
+     * @return the json object of the record
+     */
+    public JSONObject toJSONObject(int index) {
+        JSONObject result = new JSONObject();
+        result.put(ISSImageSystem.KEY_ADDEDTIME, new SimpleDateFormat(ISSCore.PATTERN_FOR_STRING).format(getAddedTime(index)));
+        result.put(ISSImageSystem.KEY_LENGTH, getLength(index));
+        result.put(ISSImageSystem.KEY_MODIFIEDTIME, getLastModified(index));
+        Dimension imageSize = getImageSize(index);
+        if (imageSize != null) {
+            result.put(ISSImageSystem.KEY_WIDTH, imageSize.width);
+            result.put(ISSImageSystem.KEY_HEIGHT, imageSize.height);
+        }
+        result.put(ISSImageSystem.KEY_TAGS, new JSONArray(getTagNames(index)));
+        if (getIdentity(index) != ISSContentHash.UNKNOWN)
+            result.put(ISSImageSystem.KEY_IDENTITY, ISSContentHash.toHexString(getIdentity(index)));
+        if (hasPerceptualHash(index))
+            result.put(ISSImageSystem.KEY_PHASH, ISSContentHash.toHexString(getPerceptualHash(index)));
+        return result;
+    }
+
+    /**
+     * Export every record into ImageDetails.json format.
+     *
+     * @param jsonFile the json file to write
+     * @throws IOException thrown if the file can't be written
+     */
+    public void exportJSON(File jsonFile) throws IOException {
+        // Written record by record, so only one record is held as JSONObject at a time.
+        ISSInfoFile.writeText(jsonFile, out -> {
+            out.write('{');
+            for (int index = 0; index < recordCount; index++) {
+                if (index > 0)
+                    out.write(',');
+                out.write(JSONObject.quote(getRelativePath(index)));
+                out.write(':');
+                toJSONObject(index).write(out);
+            }
+            out.write('}');
+        });
+    }
+
+    /**
+     * Release the mapped file. The store can't be read anymore.
+     */
+    @Override
+    public void close() {
+        buffer = null;
+    }
+
+
+    private String getString(int id) {
+        if (id < 0 || id >= stringCount)
+            throw new IndexOutOfBoundsException("String "+id+" of "+stringCount);
+        int start = buffer.getInt(stringOffsetsOffset + 4 * id);
+        int end = buffer.getInt(stringOffsetsOffset + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(stringDataOffset + start);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        while (true) {
+            int b = buffer.get(cursor[0]++) & 0xFF;
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+            shift += 7;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int internString(String string, HashMap<String, Integer> stringIds, ArrayList<byte[]> strings) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    private static long parseAddedTime(String addedTime, SimpleDateFormat dateFormat) {
+        try {
+            return dateFormat.parse(addedTime).getTime();
+        }
+        catch (ParseException | NullPointerException e) {
+            return 0;
+        }
+    }
+}
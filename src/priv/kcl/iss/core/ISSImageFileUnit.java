@@ -2,6 +2,9 @@ package priv.kcl.iss.core;
 
 import java.awt.Dimension;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -10,14 +13,18 @@ import javax.swing.ImageIcon;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.json.JSONWriter;
 
 /**
  * A data type to control each image's detail and tags easily.
  */
 public class ISSImageFileUnit {
 
-    /** Store the file path of one specific image. */
-    private final File fileImage;
+    /** The folder of this image. It's shared by every image in the same folder. */
+    private ISSFolderNode folder;
+    /** The filename of this image without path. */
+    private String filename;
     
     /** Store when this image/file has been added into ISS. */
     private final String addedTime;
@@ -25,21 +32,66 @@ public class ISSImageFileUnit {
     /** Store the tags of this image. */
     private ArrayList<ISSTagTreeUnit> myTags;
 
+    /** The perceptual hash of this image. {@code null} until it's computed or loaded. */
+    private Long perceptualHash;
+
+    /** The length of the file when it was last read. See {@link #refresh()}. */
+    private long fileLength;
+    /** The last-modified time of the file when it was last read. See {@link #refresh()}. */
+    private long fileLastModified;
+    /** The size of the image. {@code null} until it's first needed. */
+    private Dimension imageSize;
+    /** The number of this image in the posting lists of it's image system. -1 if it's not in any system. */
+    private int ordinal = -1;
+
     /**
-     * Create an Image Unit directly from json object.
+     * Create an Image Unit directly from json object written by an older version, which has it's
+     * {@code FILEPATH} in it.
      * 
      * @param sourceJson the source json object of this unit
      * @param standardTagTree all of my tags are gonna found by this tagtree. If I have a tag
      * that this tagtree doesn't exist, then the tag will be deleted automatically.
      */
     public ISSImageFileUnit(JSONObject sourceJson, ISSTagTreeUnit standardTagTree) throws JSONException {
-        fileImage = new File(sourceJson.getString(ISSImageSystem.KEY_FILEPATH));
+        this(new File(sourceJson.getString(ISSImageSystem.KEY_FILEPATH)), sourceJson, standardTagTree);
+    }
+    /**
+     * Create an Image Unit directly from json object, such as one from {@link #toJSONObject()}.
+     * 
+     * @param relativePathname the relative pathname started with ".\", which the object is keyed by
+     * @param sourceJson the source json object of this unit
+     * @param standardTagTree all of my tags are gonna found by this tagtree. If I have a tag
+     * that this tagtree doesn't exist, then the tag will be deleted automatically.
+     */
+    public ISSImageFileUnit(String relativePathname, JSONObject sourceJson, ISSTagTreeUnit standardTagTree) throws JSONException {
+        this(ISSCore.getFileFromRelativePath(relativePathname), sourceJson, standardTagTree);
+    }
+    private ISSImageFileUnit(File file, JSONObject sourceJson, ISSTagTreeUnit standardTagTree) throws JSONException {
+        setAbsolutePath(file.getAbsolutePath());
         addedTime = sourceJson.getString(ISSImageSystem.KEY_ADDEDTIME);
+        myTags = new ArrayList<ISSTagTreeUnit>();
+        if (sourceJson.has(ISSImageSystem.KEY_PHASH))
+            perceptualHash = ISSContentHash.parseHexString(sourceJson.getString(ISSImageSystem.KEY_PHASH));
+        if (sourceJson.has(ISSImageSystem.KEY_LENGTH) && sourceJson.has(ISSImageSystem.KEY_MODIFIEDTIME)) {
+            // Trust the stored metadata, so loading doesn't touch the file system.
+            fileLength = sourceJson.getLong(ISSImageSystem.KEY_LENGTH);
+            fileLastModified = sourceJson.getLong(ISSImageSystem.KEY_MODIFIEDTIME);
+        }
+        else {
+            try {
+                checkFile(getFile());
+            }
+            catch (ISSException e) {
+                ISSCore.logger.fine(e.getMessage()+": "+getFileAbsolutePath());
+            }
+        }
+        if (sourceJson.has(ISSImageSystem.KEY_WIDTH) && sourceJson.has(ISSImageSystem.KEY_HEIGHT))
+            imageSize = new Dimension(sourceJson.getInt(ISSImageSystem.KEY_WIDTH), sourceJson.getInt(ISSImageSystem.KEY_HEIGHT));
         JSONArray array = sourceJson.getJSONArray(ISSImageSystem.KEY_TAGS);
         array.forEach(tagname -> {
             if (tagname.getClass() != String.class)
                 return;
-            ISSTagTreeUnit ttu = standardTagTree.find(String.valueOf(tagname));
+            ISSTagTreeUnit ttu = standardTagTree.findByPathOrName(String.valueOf(tagname));
             if (ttu != null)
                 myTags.add(ttu);
             else
@@ -48,6 +100,87 @@ public class ISSImageFileUnit {
 
         ISSCore.logger.finest(toString());
     }
+    /**
+     * Create an Image Unit from a file found by {@code ISSFileWalker}. The attributes read while
+     * walking are used, so the file system is not touched again.
+     * 
+     * @param entry the file found by the walker
+     * @throws ISSException thrown if the entry is a directory
+     */
+    ISSImageFileUnit(ISSFileWalker.Entry entry) throws ISSException {
+        this.myTags = new ArrayList<ISSTagTreeUnit>();
+        this.addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
+
+        if (entry.getAttributes().isDirectory())
+            throw new ISSException("The file path pointed to a directory");
+        this.fileLength = entry.getAttributes().size();
+        this.fileLastModified = entry.getAttributes().lastModifiedTime().toMillis();
+        setAbsolutePath(entry.getPath().toAbsolutePath().toString());
+
+        ISSCore.logger.finest(toString());
+    }
+    /**
+     * Create an Image Unit from a stored record. Nothing is read from the file system.
+     * 
+     * @param file the image file which I should be
+     * @param addedTime when this image file added into ISS
+     * @param tags all of my tags
+     * @param fileLength the stored length of the file
+     * @param fileLastModified the stored last-modified time of the file
+     * @param imageSize the stored size of the image, or {@code null} if unknown
+     * @param perceptualHash the stored perceptual hash, or {@code null} if unknown
+     */
+    ISSImageFileUnit(File file, String addedTime, ArrayList<ISSTagTreeUnit> tags, long fileLength, long fileLastModified,
+                     Dimension imageSize, Long perceptualHash) {
+        this(addedTime, tags, fileLength, fileLastModified, imageSize, perceptualHash);
+        setAbsolutePath(file.getAbsolutePath());
+    }
+    /**
+     * Create an Image Unit from a stored record by it's relative pathname. Nothing is read from the
+     * file system.
+     * 
+     * @param relativePath the relative pathname started with ".\"
+     * @param addedTime when this image file added into ISS
+     * @param tags all of my tags
+     * @param fileLength the stored length of the file
+     * @param fileLastModified the stored last-modified time of the file
+     * @param imageSize the stored size of the image, or {@code null} if unknown
+     * @param perceptualHash the stored perceptual hash, or {@code null} if unknown
+     */
+    ISSImageFileUnit(String relativePath, String addedTime, ArrayList<ISSTagTreeUnit> tags, long fileLength, long fileLastModified,
+                     Dimension imageSize, Long perceptualHash) {
+        this(addedTime, tags, fileLength, fileLastModified, imageSize, perceptualHash);
+        int separatorIndex = relativePath.lastIndexOf(File.separatorChar);
+        this.folder = ISSFolderNode.fromRelativePath(relativePath.substring(0, separatorIndex));
+        this.filename = relativePath.substring(separatorIndex + 1);
+    }
+    /**
+     * Create an Image Unit from a stored record by it's folder. Nothing is read from the file system.
+     * 
+     * @param folder the folder of the image
+     * @param filename the filename of the image without path
+     * @param addedTime when this image file added into ISS
+     * @param tags all of my tags
+     * @param fileLength the stored length of the file
+     * @param fileLastModified the stored last-modified time of the file
+     * @param imageSize the stored size of the image, or {@code null} if unknown
+     * @param perceptualHash the stored perceptual hash, or {@code null} if unknown
+     */
+    ISSImageFileUnit(ISSFolderNode folder, String filename, String addedTime, ArrayList<ISSTagTreeUnit> tags,
+                     long fileLength, long fileLastModified, Dimension imageSize, Long perceptualHash) {
+        this(addedTime, tags, fileLength, fileLastModified, imageSize, perceptualHash);
+        this.folder = folder;
+        this.filename = filename;
+    }
+    private ISSImageFileUnit(String addedTime, ArrayList<ISSTagTreeUnit> tags, long fileLength, long fileLastModified,
+                             Dimension imageSize, Long perceptualHash) {
+        this.addedTime = addedTime;
+        this.myTags = tags;
+        this.fileLength = fileLength;
+        this.fileLastModified = fileLastModified;
+        this.imageSize = imageSize;
+        this.perceptualHash = perceptualHash;
+    }
     /**
      * Create an Image Unit.
      * 
@@ -55,14 +188,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(File file) throws ISSException {
-        this.fileImage = file;
         this.myTags = new ArrayList<ISSTagTreeUnit>();
         this.addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(file);
 
         ISSCore.logger.finest(toString());
     }
@@ -73,14 +201,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(String filePath) throws ISSException {
-        this.fileImage = new File(filePath);
         this.myTags = new ArrayList<ISSTagTreeUnit>();
         this.addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(new File(filePath));
 
         ISSCore.logger.finest(toString());
     }
@@ -92,14 +215,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(File file, String addedTime) throws ISSException {
-        this.fileImage = file;
         this.myTags = new ArrayList<ISSTagTreeUnit>();
         this.addedTime = addedTime;
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(file);
 
         ISSCore.logger.finest(toString());
     }
@@ -111,14 +229,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(String filePath, String addedTime) throws ISSException {
-        this.fileImage = new File(filePath);
         this.myTags = new ArrayList<ISSTagTreeUnit>();
         this.addedTime = addedTime;
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(new File(filePath));
 
         ISSCore.logger.finest(toString());
     }
@@ -130,14 +243,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(File file, ArrayList<ISSTagTreeUnit> tags) throws ISSException {
-        this.fileImage = file;
         this.myTags = tags;
         this.addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(file);
 
         ISSCore.logger.finest(toString());
     }
@@ -149,14 +257,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(String filePath, ArrayList<ISSTagTreeUnit> tags) throws ISSException {
-        this.fileImage = new File(filePath);
         this.myTags = tags;
         this.addedTime = ISSCore.getDateInFormat(ISSCore.PATTERN_FOR_STRING);
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(new File(filePath));
 
         ISSCore.logger.finest(toString());
     }
@@ -169,14 +272,9 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(File file, String addedTime, ArrayList<ISSTagTreeUnit> tags) throws ISSException {
-        this.fileImage = file;
         this.myTags = tags;
         this.addedTime = addedTime;
-
-        if (!this.fileImage.exists())
-            throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
-            throw new ISSException("The file path pointed to a directory");
+        checkFile(file);
 
         ISSCore.logger.finest(toString());
     }
@@ -189,18 +287,78 @@ public class ISSImageFileUnit {
      * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
      */
     public ISSImageFileUnit(String filePath, String addedTime, ArrayList<ISSTagTreeUnit> tags) throws ISSException {
-        this.fileImage = new File(filePath);
         this.myTags = tags;
         this.addedTime = addedTime;
+        checkFile(new File(filePath));
 
-        if (!this.fileImage.exists())
+        ISSCore.logger.finest(toString());
+    }
+    
+    /**
+     * Read the attributes of the file once, and check if it's a file.
+     * @param file the image file
+     * @throws ISSException thrown if there's no such file or the pathname pointed to a directory
+     */
+    private void checkFile(File file) throws ISSException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch (IOException e) {
             throw new ISSException("File not found");
-        else if (this.fileImage.isDirectory())
+        }
+        if (attributes.isDirectory())
             throw new ISSException("The file path pointed to a directory");
 
-        ISSCore.logger.finest(toString());
+        fileLength = attributes.size();
+        fileLastModified = attributes.lastModifiedTime().toMillis();
+        try {
+            setAbsolutePath(file.getCanonicalPath());
+        }
+        catch (IOException e) {
+            setAbsolutePath(file.getAbsolutePath());
+        }
+    }
+    /**
+     * Find the folder and filename of an absolute pathname.
+     * @param absolutePath the absolute pathname of the image
+     */
+    private void setAbsolutePath(String absolutePath) {
+        int separatorIndex = absolutePath.lastIndexOf(File.separatorChar);
+        folder = ISSFolderNode.fromAbsolutePath(absolutePath.substring(0, separatorIndex));
+        filename = absolutePath.substring(separatorIndex + 1);
+    }
+
+    /**
+     * Copy this unit with a copy of it's tags, so the copy can be written while this unit is edited.
+     * The copy is not in any image system.
+     * @return the copy
+     */
+    ISSImageFileUnit copy() {
+        return new ISSImageFileUnit(folder, filename, addedTime, new ArrayList<ISSTagTreeUnit>(myTags),
+                                    fileLength, fileLastModified, imageSize, perceptualHash);
+    }
+
+    /**
+     * Read the length and last-modified time of the file again. Every other getter of this unit uses
+     * the values read at construction (or the last refresh) and never touches the file system.
+     * If the file changed, the cached image size and perceptual hash are dropped as well.
+     * 
+     * @return {@code true} if the file changed since it was last read
+     * @throws ISSException thrown if there's no such file anymore or the pathname pointed to a directory
+     */
+    public boolean refresh() throws ISSException {
+        final long oldLength = fileLength;
+        final long oldLastModified = fileLastModified;
+        checkFile(getFile());
+
+        boolean changed = (oldLength != fileLength || oldLastModified != fileLastModified);
+        if (changed) {
+            imageSize = null;
+            perceptualHash = null;
+        }
+        return changed;
     }
-    
 
     /**
      * Add new tag into this image unit.
@@ -238,43 +396,138 @@ public class ISSImageFileUnit {
     }
 
     /**
-     * Get a unique hash code of an image file.
-     * @return
+     * Get a unique hash code of an image file. It's a 64-bit hash of the file content (see
+     * {@code ISSContentHash}), so the same image gets the same identity even if it's renamed or moved.
+     * The hash is cached by {@code ISSHashCache} and only recomputed after the file changed.
+     * @return the content hash, or {@code ISSContentHash.UNKNOWN} if the file can't be read
+     */
+    public long getIdentity() {
+        try {
+            return ISSHashCache.getDefault().getHash(folder, filename, getFile(), fileLength, fileLastModified);
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to hash \""+getFileAbsolutePath()+"\": "+e.getMessage());
+            return ISSContentHash.UNKNOWN;
+        }
+    }
+    /**
+     * Get the identity only if it's already cached, without reading the file.
+     * @return the identity, or {@code null} if it's not cached
+     */
+    Long getKnownIdentity() {
+        return ISSHashCache.getDefault().getKnownHash(folder, filename, fileLength, fileLastModified);
+    }
+    /**
+     * Same as {@link #getKnownIdentity()}, for the binary formats which always have room for it.
+     * @return the identity, or {@code ISSContentHash.UNKNOWN} if it's not cached
+     */
+    long getSavedIdentity() {
+        Long identity = getKnownIdentity();
+        return (identity == null ? ISSContentHash.UNKNOWN : identity);
+    }
+    /**
+     * Get the identity as a 16-digit hex string, which is how it's stored in ImageDetails.json.
+     * @return the hex string of {@link #getIdentity()}
      */
-    public int getIdentity() {
-        final ImageIcon image = getImage();
-        // final int imageWidth = image.getIconWidth();
-        // final int imageHeight = image.getIconHeight();
-        // final long fileLength = fileImage.length();
-        // final String fileName = fileImage.getName();
-        final String result = fileImage.getName() + fileImage.length() + image.getIconWidth() + image.getIconHeight();
-        return result.hashCode();
+    public String getIdentityString() {
+        return ISSContentHash.toHexString(getIdentity());
     }
 
     /**
-     * Get the {@code ImageIcon} from the file.
+     * Get the perceptual hash of this image (see {@code ISSPerceptualHash}). It's computed the first
+     * time and kept in this unit, and it's stored in ImageDetails.json as well.
+     * @return the 64-bit perceptual hash
+     * @throws ISSException thrown if the image can't be decoded
+     */
+    public long getPerceptualHash() throws ISSException {
+        if (perceptualHash == null) {
+            try {
+                perceptualHash = ISSPerceptualHash.computeDHash(getFile());
+            }
+            catch (IOException e) {
+                throw new ISSException("Failed to compute perceptual hash", e);
+            }
+        }
+        return perceptualHash;
+    }
+
+    /**
+     * Get the perceptual hash only if it's already computed or loaded.
+     * @return the perceptual hash, or {@code null}
+     */
+    Long getKnownPerceptualHash() {
+        return perceptualHash;
+    }
+    /**
+     * Get the image size only if it's already probed or loaded.
+     * @return the image size, or {@code null}
+     */
+    Dimension getKnownImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Get the {@code ImageIcon} from the file. The whole image is decoded every time, so use
+     * {@link #getThumbnail(int)} if the full resolution is not needed.
      * @return the image from the file
      */
     public ImageIcon getImage() {
-        return new ImageIcon(fileImage.getAbsolutePath());
+        return new ImageIcon(getFileAbsolutePath());
     }
     /**
-     * Get the image size.
+     * Get the thumbnail of this image from {@code ISSThumbnailCache}. It's only generated the first
+     * time, and then read from memory or disk.
+     * @param maxSize the longest side of the thumbnail in pixels
+     * @return the thumbnail
+     * @throws ISSException thrown if the image can't be decoded
+     */
+    public ImageIcon getThumbnail(int maxSize) throws ISSException {
+        return new ImageIcon(ISSThumbnailCache.getDefault().getThumbnail(this, maxSize));
+    }
+    /**
+     * Get the image size. Only the header of the image is read (see {@code ISSImageProbe}), and only
+     * the first time.
      * @return the {@code Dimension} that store image's height and width.
      */
     public Dimension getImageSize() {
-        ImageIcon image = getImage();
-        return new Dimension(image.getIconWidth(), image.getIconHeight());
+        if (imageSize == null)
+            imageSize = ISSImageProbe.probeSize(getFile());
+        return new Dimension(imageSize);
     }
     /**
      * Get the aspect ratio of image.
      * @return the aspect ratio
      */
     public double getImageAspectRatio() {
-        final ImageIcon image = getImage();
-        return image.getIconWidth() / image.getIconHeight();
+        final Dimension imageSize = getImageSize();
+        return (double) imageSize.width / imageSize.height;
     }
 
+    /**
+     * Get the image file. A new {@code File} is created every time.
+     * @return the {@code File} object of the image
+     */
+    public File getFile() {
+        return new File(getFileAbsolutePath());
+    }
+    /**
+     * Get the folder of the image file.
+     * @return the folder node, which is shared by every image in the same folder
+     */
+    public ISSFolderNode getFolder() {
+        return folder;
+    }
+    /**
+     * Get the number of this image in the posting lists of it's image system
+     * (see {@code ISSImageSystem.getImagesWithTag(ISSTagTreeUnit)}).
+     * @return the ordinal, or -1 if it's not in any image system
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
     /**
      * Get the name of file without path.<p>
      * For example, if there's a file with this local path: {@code /home/pic/image.jpg}
@@ -282,7 +535,7 @@ public class ISSImageFileUnit {
      * @return
      */
     public String getFilename() {
-        return fileImage.getName();
+        return filename;
     }
     /**
      * Get the name of file without path and extension.
@@ -291,8 +544,8 @@ public class ISSImageFileUnit {
      * @return
      */
     public String getFilenameWithoutExtension() {
-        int extIndex = fileImage.getName().lastIndexOf(".");
-        return fileImage.getName().substring(0, (extIndex==-1? fileImage.getName().length(): extIndex));
+        int extIndex = filename.lastIndexOf(".");
+        return filename.substring(0, (extIndex==-1? filename.length(): extIndex));
     }
     /**
      * Get the extension of file. <b>The return string will convert to uppercase.</b>
@@ -311,27 +564,29 @@ public class ISSImageFileUnit {
      * @return the length of the image file
      */
     public long getFileLength() {
-        return fileImage.length();
+        return fileLength;
+    }
+    /**
+     * Get the file's last-modified time.
+     * @return the last-modified time in milliseconds
+     */
+    public long getFileLastModified() {
+        return fileLastModified;
     }
     /**
      * Get the file's length with fixed format.
      * @return the formatted length of the image file
      */
     public String getFileLengthInFormat() {
-        return ISSCore.formatFileLength(fileImage);
+        return ISSCore.formatFileLength(fileLength);
     }
 
     /**
-     * Get the absolute pathname of the image file.
+     * Get the absolute pathname of the image file. It's built from the folder every time.
      * @return the String of the path
      */
     public String getFileAbsolutePath() {
-        try {
-            return fileImage.getCanonicalPath();
-        }
-        catch (Exception e) {
-            return fileImage.getAbsolutePath();
-        }
+        return folder.getAbsolutePath(filename);
     }
     /**
      * Get the relative pathname based on the given working folder path.<p>
@@ -354,7 +609,7 @@ public class ISSImageFileUnit {
         // else
         //     return null;
         // String rltPath = "." + absPath.substring(ISSCore.getWorkingFolderPathname().length());
-        return "." + getFileAbsolutePath().substring(ISSCore.getWorkingFolderPathname().length());
+        return folder.getRelativePath(filename);
     }
 
     /**
@@ -374,18 +629,46 @@ public class ISSImageFileUnit {
     }
 
     public String toString() {
-        return "[Filename="+fileImage.getName()+",Location="+getFileAbsolutePath()+",Length="+getFileLengthInFormat()+",AddedTime="+getAddedTime()+"]";
+        return "[Filename="+filename+",Location="+getFileAbsolutePath()+",Length="+getFileLengthInFormat()+",AddedTime="+getAddedTime()+"]";
     }
     
+    /**
+     * Get this unit as a json object. It's written by {@link #writeJSON(JSONWriter)}, so there's only
+     * one format of a record. Read it back by {@link #ISSImageFileUnit(String, JSONObject, ISSTagTreeUnit)}.
+     * @return the json object, without the filename and pathname
+     */
     public JSONObject toJSONObject() {
-        JSONObject result = new JSONObject();
-        result.put(ISSImageSystem.KEY_FILENAME, getFilename());
-        result.put(ISSImageSystem.KEY_FILEPATH, getFileAbsolutePath());
-        result.put(ISSImageSystem.KEY_ADDEDTIME, addedTime);
-        JSONArray tagArray = new JSONArray();
-        myTags.stream().forEach(tag -> tagArray.put(tag));
-        result.put(ISSImageSystem.KEY_TAGS, tagArray);
-        result.put(ISSImageSystem.KEY_IDENTITY, getIdentity());
-        return result;
+        return new JSONObject(writeJSON(new JSONStringer()).toString());
+    }
+
+    /**
+     * Write this unit as a json object, without building a {@code JSONObject} first.<p>
+     * The filename and pathname are not written, since the object is always keyed by it's relative
+     * pathname, so the same folders are not repeated in every record.
+     * @param writer where the object is written. It should be at a place where a value is expected.
+     * @return the writer
+     * @throws JSONException thrown if the object is out of place
+     */
+    public JSONWriter writeJSON(JSONWriter writer) throws JSONException {
+        writer.object();
+        writer.key(ISSImageSystem.KEY_ADDEDTIME).value(addedTime);
+        writer.key(ISSImageSystem.KEY_LENGTH).value(fileLength);
+        writer.key(ISSImageSystem.KEY_MODIFIEDTIME).value(fileLastModified);
+        if (imageSize != null) {
+            writer.key(ISSImageSystem.KEY_WIDTH).value(imageSize.width);
+            writer.key(ISSImageSystem.KEY_HEIGHT).value(imageSize.height);
+        }
+        writer.key(ISSImageSystem.KEY_TAGS).array();
+        for (ISSTagTreeUnit tag: myTags)
+            writer.value(tag.getAllParentPath());
+        writer.endArray();
+        // Only a cached identity is written, so the file isn't read while saving, and an unknown one
+        // isn't stored as a real hash.
+        long identity = getSavedIdentity();
+        if (identity != ISSContentHash.UNKNOWN)
+            writer.key(ISSImageSystem.KEY_IDENTITY).value(ISSContentHash.toHexString(identity));
+        if (perceptualHash != null)
+            writer.key(ISSImageSystem.KEY_PHASH).value(ISSContentHash.toHexString(perceptualHash));
+        return writer.endObject();
     }
 }
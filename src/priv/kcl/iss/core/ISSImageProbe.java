@@ -0,0 +1,194 @@
+package priv.kcl.iss.core;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Read the width and height of an image from it's header, without decoding any pixel.<p>
+ * JPG, PNG, GIF and BMP headers are parsed by hand, so only the first few bytes (or, for JPG,
+ * the markers before the first frame) are read. Other formats, or files whose header can't be
+ * parsed, are handed to an {@code ImageReader}, which also reads only the header for
+ * {@code getWidth()} and {@code getHeight()}.<p>
+ * When the pixels are needed but not in full resolution (thumbnails, perceptual hashes), use
+ * {@link #readSubsampled(File, int)} to decode only a fraction of them.
+ */
+public class ISSImageProbe {
+
+    /** The size returned if the image can't be read, same as what {@code ImageIcon} does. */
+    public static final int UNKNOWN_SIZE = -1;
+
+    /** Big enough for the headers of PNG, GIF and BMP. */
+    private static final int HEADER_BUFFER_SIZE = 8192;
+
+    /**
+     * Get the size of an image.
+     *
+     * @param file the image file
+     * @return the size of the image. If it can't be read, both width and height will be
+     * {@link #UNKNOWN_SIZE}
+     */
+    public static Dimension probeSize(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), HEADER_BUFFER_SIZE))) {
+            Dimension size = parseHeader(in);
+            if (size != null)
+                return size;
+        }
+        catch (IOException e) {
+            ISSCore.logger.finest("Failed to parse the header of \""+file+"\": "+e.getMessage());
+        }
+        return probeSizeByImageReader(file);
+    }
+
+    /** Find out the format by the magic number, then parse the header. */
+    private static Dimension parseHeader(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        int second = in.readUnsignedByte();
+
+        // JPG: FF D8
+        if (first == 0xFF && second == 0xD8)
+            return parseJPGHeader(in);
+        // PNG: 89 'P' 'N' 'G' 0D 0A 1A 0A, then the IHDR chunk.
+        if (first == 0x89 && second == 'P') {
+            in.skipBytes(6 + 4 + 4);
+            return new Dimension(in.readInt(), in.readInt());
+        }
+        // GIF: "GIF87a" or "GIF89a", then little-endian width and height.
+        if (first == 'G' && second == 'I') {
+            in.skipBytes(4);
+            int width = readLittleEndianShort(in);
+            int height = readLittleEndianShort(in);
+            return new Dimension(width, height);
+        }
+        // BMP: "BM", then the size of DIB header at offset 14.
+        if (first == 'B' && second == 'M') {
+            in.skipBytes(12);
+            int dibHeaderSize = readLittleEndianInt(in);
+            if (dibHeaderSize == 12) {
+                // OS/2 BITMAPCOREHEADER uses 16-bit fields.
+                int width = readLittleEndianShort(in);
+                int height = readLittleEndianShort(in);
+                return new Dimension(width, height);
+            }
+            int width = readLittleEndianInt(in);
+            // The height is negative for top-down bitmaps.
+            int height = Math.abs(readLittleEndianInt(in));
+            return new Dimension(width, height);
+        }
+        return null;
+    }
+
+    /** Walk through the markers until the first start-of-frame marker. */
+    private static Dimension parseJPGHeader(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF)
+                return null;
+            // Skip the fill bytes.
+            while (marker == 0xFF)
+                marker = in.readUnsignedByte();
+
+            // Markers without length.
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                continue;
+            // Start of scan or end of image before any frame.
+            if (marker == 0xDA || marker == 0xD9)
+                return null;
+
+            int length = in.readUnsignedShort();
+            // SOF0 ~ SOF15, except DHT(C4), JPG(C8) and DAC(CC).
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                in.skipBytes(1);
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new Dimension(width, height);
+            }
+            skipFully(in, length - 2);
+        }
+    }
+
+    /** Let an {@code ImageReader} read the header. */
+    private static Dimension probeSizeByImageReader(File file) {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(iis, true, true);
+                        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                    }
+                    finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            ISSCore.logger.finest("Failed to read the size of \""+file+"\": "+e.getMessage());
+        }
+        return new Dimension(UNKNOWN_SIZE, UNKNOWN_SIZE);
+    }
+
+    /**
+     * Decode an image, skipping pixels so that the longer side of the result is about {@code targetSize}
+     * pixels (but not less).
+     *
+     * @param file the image file
+     * @param targetSize the approximate longer side of the result
+     * @return the decoded image
+     * @throws IOException thrown if the image can't be decoded
+     */
+    static BufferedImage readSubsampled(File file, int targetSize) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null)
+                throw new IOException("Can't open \""+file+"\"");
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                throw new IOException("Unsupported image format: \""+file+"\"");
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // Use the same step on both sides to keep the aspect ratio.
+                int subsampling = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / targetSize);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int readLittleEndianShort(DataInputStream in) throws IOException {
+        int low = in.readUnsignedByte();
+        int high = in.readUnsignedByte();
+        return (high << 8) | low;
+    }
+    private static int readLittleEndianInt(DataInputStream in) throws IOException {
+        int low = readLittleEndianShort(in);
+        int high = readLittleEndianShort(in);
+        return (high << 16) | low;
+    }
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0)
+                throw new EOFException();
+            length -= skipped;
+        }
+    }
+}
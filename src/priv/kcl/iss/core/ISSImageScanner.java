@@ -0,0 +1,181 @@
+package priv.kcl.iss.core;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scan a folder and provide {@code ISSImageFileUnit} one by one.<p>
+ * A background thread walks the folder (one directory listing at a time, in the same order as
+ * {@code ISSFileWalker}) and creates the units. At most {@code lookahead} units are created before
+ * the consumer takes them, so the consumer can start working on the first file immediately and the
+ * memory won't grow with the size of the library.<p>
+ * A file which can't be made into a unit is logged and skipped. If the walk itself fails, the
+ * consumer gets an {@code IllegalStateException} from {@link #hasNext()} instead of a short scan.<p>
+ * Remember to {@link #close()} the scanner if you stop reading before the end.
+ */
+public class ISSImageScanner implements Iterator<ISSImageFileUnit>, AutoCloseable {
+
+    /** The default number of units that can be created before the consumer takes them. */
+    public static final int DEFAULT_LOOKAHEAD = 256;
+
+    /** Put into the queue when the walk is finished. */
+    private static final Object END_OF_SCAN = new Object();
+
+    /** Put into the queue instead of {@code END_OF_SCAN} when the walk failed. */
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final Thread producer;
+
+    /** The next unit (or {@code END_OF_SCAN} or a {@code Failure}) taken from the queue but not yet returned. */
+    private Object nextElement;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a scanner of the given folder and start scanning.
+     *
+     * @param folder the folder to scan
+     */
+    public ISSImageScanner(Path folder) {
+        this(folder, DEFAULT_LOOKAHEAD);
+    }
+    /**
+     * Create a scanner of the given folder and start scanning.
+     *
+     * @param folder the folder to scan
+     * @param lookahead how many units can be created before the consumer takes them
+     */
+    public ISSImageScanner(Path folder, int lookahead) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, lookahead));
+        this.producer = new Thread(() -> produce(folder), "ISS-Scanner");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    /** Walk the folder depth-first and put every unit into the queue. */
+    private void produce(Path folder) {
+        Object end = END_OF_SCAN;
+        try {
+            // Only the listings of the directories on the current path are held here.
+            ArrayDeque<Iterator<ISSFileWalker.Entry>> stack = new ArrayDeque<Iterator<ISSFileWalker.Entry>>();
+            stack.push(ISSFileWalker.listDirectory(folder).iterator());
+            while (!stack.isEmpty() && !closed) {
+                Iterator<ISSFileWalker.Entry> listing = stack.peek();
+                if (!listing.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                ISSFileWalker.Entry entry = listing.next();
+                if (entry.getAttributes().isDirectory()) {
+                    stack.push(ISSFileWalker.listDirectory(entry.getPath()).iterator());
+                    continue;
+                }
+                ISSImageFileUnit unit;
+                try {
+                    unit = new ISSImageFileUnit(entry);
+                }
+                catch (ISSException e) {
+                    ISSCore.logger.severe(e.getMessage());
+                    continue;
+                }
+                catch (RuntimeException e) {
+                    ISSCore.logger.severe("Failed to scan \""+entry.getPath()+"\": "+e);
+                    continue;
+                }
+                queue.put(unit);
+            }
+        }
+        catch (InterruptedException e) {
+            // Closed by the consumer.
+        }
+        catch (RuntimeException | Error e) {
+            ISSCore.logger.severe("Failed to scan \""+folder+"\": "+e);
+            end = new Failure(e);
+        }
+        finally {
+            if (!closed) {
+                try {
+                    queue.put(end);
+                }
+                catch (InterruptedException e) {
+                    // Closed by the consumer.
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextElement == null && !closed) {
+            try {
+                nextElement = queue.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+        if (nextElement instanceof Failure)
+            throw new IllegalStateException("Scan stopped before the end", ((Failure) nextElement).cause);
+        return nextElement != null && nextElement != END_OF_SCAN;
+    }
+
+    @Override
+    public ISSImageFileUnit next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        ISSImageFileUnit result = (ISSImageFileUnit) nextElement;
+        nextElement = null;
+        return result;
+    }
+
+    /**
+     * Read every remaining unit into a list. Only use this if the whole list is really needed.
+     *
+     * @return every remaining unit
+     */
+    public ArrayList<ISSImageFileUnit> toList() {
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>();
+        forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Get a sequential {@code Stream} of the remaining units. Closing the stream closes this scanner.
+     *
+     * @return the stream of units
+     */
+    public Stream<ISSImageFileUnit> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+    }
+
+    /**
+     * Stop scanning. The remaining units will be dropped.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        producer.interrupt();
+        queue.clear();
+        nextElement = END_OF_SCAN;
+    }
+}
@@ -1,10 +1,25 @@
 package priv.kcl.iss.core;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import priv.kcl.iss.index.ISSBPlusTree;
+import priv.kcl.iss.index.ISSRoaringBitmap;
 
 /**
  * This class provides you to manage your {@code ISSImageFileUnit} like searching, sorting,
@@ -12,9 +27,9 @@ import org.json.JSONObject;
  */
 public class ISSImageSystem {
 
-    /** The json key of {@code FILENAME}. */
+    /** The json key of {@code FILENAME}. Only in records written by older versions. */
     public static final String KEY_FILENAME = "FILENAME";
-    /** The json key of {@code FILEPATH}. */
+    /** The json key of {@code FILEPATH}. Only in records written by older versions, which are still read. */
     public static final String KEY_FILEPATH = "FILEPATH";
     /** The json key of {@code ADDEDTIME}. */
     public static final String KEY_ADDEDTIME = "ADDEDTIME";
@@ -22,6 +37,16 @@ public class ISSImageSystem {
     public static final String KEY_TAGS = "TAGS";
     /** The json key of {@code IDENTITY}. */
     public static final String KEY_IDENTITY = "IDENTITY";
+    /** The json key of {@code PHASH}. */
+    public static final String KEY_PHASH = "PHASH";
+    /** The json key of {@code LENGTH}. */
+    public static final String KEY_LENGTH = "LENGTH";
+    /** The json key of {@code MODIFIEDTIME}. */
+    public static final String KEY_MODIFIEDTIME = "MODIFIEDTIME";
+    /** The json key of {@code WIDTH}. */
+    public static final String KEY_WIDTH = "WIDTH";
+    /** The json key of {@code HEIGHT}. */
+    public static final String KEY_HEIGHT = "HEIGHT";
 
 
     /** The JPG file extension name. */
@@ -39,15 +64,98 @@ public class ISSImageSystem {
     
     /** All image files in working folder. Generated from ImageDteails.json. */
     private ArrayList<ISSImageFileUnit> myImages;
+    /**
+     * Folder to filename to the unit in {@code myImages}. The units are found by their folder nodes, so
+     * no full pathname is kept for every image.
+     */
+    private HashMap<ISSFolderNode, HashMap<String, ISSImageFileUnit>> imagesByFolder;
+    /**
+     * Every image with a perceptual hash, for finding near-duplicates. {@code null} until the first search,
+     * so loading doesn't compute or index any perceptual hash.
+     */
+    private ISSBKTree<ISSImageFileUnit> perceptualIndex;
+    /**
+     * Every image by it's ordinal (see {@code ISSImageFileUnit.getOrdinal()}). The slot of a removed
+     * image is {@code null} until it's ordinal is reused.
+     */
+    private ArrayList<ISSImageFileUnit> imagesByOrdinal = new ArrayList<ISSImageFileUnit>();
+    /** Ordinals of removed images, reused by the next images added. */
+    private ArrayDeque<Integer> freeOrdinals = new ArrayDeque<Integer>();
+    /** The ordinal of every image in this system, which NOT of a query is taken from. */
+    private ISSRoaringBitmap allOrdinals = new ISSRoaringBitmap();
+    /**
+     * Tag to the ordinals of every image with it, see {@link #getImagesWithTag(ISSTagTreeUnit)}. It's
+     * kept up to date by {@link #addTag(ISSImageFileUnit, ISSTagTreeUnit)} and
+     * {@link #removeTag(ISSImageFileUnit, ISSTagTreeUnit)}, so tags of an image in this system must not
+     * be edited by the unit itself.
+     */
+    private HashMap<ISSTagTreeUnit, ISSRoaringBitmap> postings = new HashMap<ISSTagTreeUnit, ISSRoaringBitmap>();
+    /**
+     * The pre-order of the tagtree which {@code postingsByPreOrder} is aligned with, see
+     * {@code ISSTagIndex.Subtree}. {@code null} if the posting lists have to be aligned again, since a
+     * new posting list is created. An empty one which is dropped may be kept, it's never changed again.
+     */
+    private ISSTagTreeUnit[] postingsNumbering;
+    /** The posting list of every tag in {@code postingsNumbering}, by it's number in pre-order. */
+    private ISSRoaringBitmap[] postingsByPreOrder;
+    /** Posting lists of this system, read by queries while this system is locked. */
+    private final ISSTagQuery.Source querySource = new ISSTagQuery.Source() {
+        @Override
+        public ISSRoaringBitmap getPosting(ISSTagTreeUnit tag) {
+            return postings.get(tag);
+        }
+        @Override
+        public ISSRoaringBitmap[] getPostings(ISSTagIndex.Subtree subtree) {
+            if (subtree.isNumbered && subtree.tags == postingsNumbering)
+                return postingsByPreOrder;
+            ISSRoaringBitmap[] result = new ISSRoaringBitmap[subtree.tags.length];
+            // Only a numbered tree is aligned as a whole, since it's kept until the tree changes.
+            int from = (subtree.isNumbered ? 0 : subtree.from);
+            int to = (subtree.isNumbered ? result.length - 1 : subtree.to);
+            for (int index = from; index <= to; index++)
+                result[index] = postings.get(subtree.tags[index]);
+            if (subtree.isNumbered) {
+                postingsNumbering = subtree.tags;
+                postingsByPreOrder = result;
+            }
+            return result;
+        }
+        @Override
+        public ISSRoaringBitmap getAllOrdinals() {
+            return allOrdinals;
+        }
+    };
 
     private final ISSTagTreeUnit standardTagTree;
     private final ISSTagTreeUnit ignoredExtension;
 
     private final JSONObject sourceJson;
 
+    /** Every tag edit is appended here, see {@link #openTagJournal()}. */
+    private ISSTagJournal tagJournal;
+
+    /** The shards of ImageDetails, see {@link #openShards()}. {@code null} if ImageDetails.json is used. */
+    private ISSCatalogShards shards;
+    /** Shards which are loaded into this system. */
+    private HashSet<String> loadedShards = new HashSet<String>();
+    /**
+     * Shards which have changed since they were loaded or saved. It's concurrent, so a failed
+     * compaction can mark it's shards again without locking this system.
+     */
+    private Set<String> dirtyShards = ConcurrentHashMap.newKeySet();
+    /**
+     * Held from taking a snapshot of the catalog until it's written, so snapshots are written in the
+     * order they're taken. It's always taken while holding this system, but a compaction keeps it
+     * after releasing this system, so the catalog is written without blocking tag edits.
+     */
+    private final ReentrantLock saveLock = new ReentrantLock();
+    /** The on-disk index of images, see {@link #openCatalogIndex()}. {@code null} if it's not opened. */
+    private ISSCatalogIndex catalogIndex;
+
 
     ISSImageSystem(ISSTagTreeUnit standardTagTree, ISSTagTreeUnit ignoredExtension) {
         this.myImages = new ArrayList<ISSImageFileUnit>();
+        this.imagesByFolder = new HashMap<ISSFolderNode, HashMap<String, ISSImageFileUnit>>();
         this.sourceJson = new JSONObject();
         this.standardTagTree = standardTagTree;
         this.ignoredExtension = ignoredExtension;
@@ -61,6 +169,7 @@ public class ISSImageSystem {
      */
     ISSImageSystem(JSONObject sourceJson, ISSTagTreeUnit standardTagTree, ISSTagTreeUnit ignoredExtension) {
         this.myImages = new ArrayList<ISSImageFileUnit>();
+        this.imagesByFolder = new HashMap<ISSFolderNode, HashMap<String, ISSImageFileUnit>>();
         this.sourceJson = sourceJson;
         this.standardTagTree = standardTagTree;
         this.ignoredExtension = ignoredExtension;
@@ -83,16 +192,1080 @@ public class ISSImageSystem {
      */
     // TODO: Complete this method
     private void setupWorkingFolder() {
-        ArrayList<ISSImageFileUnit> ifuFromJson = new ArrayList<ISSImageFileUnit>();
         // ArrayList<File> imagesInFileSystem = ISSCore.makeFileCollection(workingFolder.listFiles());
         
-        // Read all ImageFileUnit from sourceJson to myImages.
-        for (Iterator<String> iterator = sourceJson.keys(); iterator.hasNext(); ) {
-            String key = iterator.next();
-            JSONObject ifuJson = sourceJson.getJSONObject(key);
-            ISSImageFileUnit ifu = new ISSImageFileUnit(ifuJson, standardTagTree);
+        // Read all ImageFileUnit from ImageDetails.json to myImages, record by record.
+        try {
+            loadImageDetails();
+        }
+        catch (IOException | JSONException e) {
+            ISSCore.logger.severe("Failed to load ImageDetails.json: "+e.getMessage());
+        }
+    }
 
-            
+    /**
+     * Load every image from ImageDetails.json by {@code ISSImageDetailsReader}. The file is read record
+     * by record, so the whole json is never held in memory. Images already in this system are kept.
+     * 
+     * @return the number of images loaded
+     * @throws IOException thrown if the file can't be read
+     * @throws JSONException thrown if the file is broken. Images read before the broken record are kept.
+     */
+    public synchronized int loadImageDetails() throws IOException, JSONException {
+        int loadedCount = 0;
+        try (ISSImageDetailsReader reader = new ISSImageDetailsReader(new File(ISSCore.IMAGE_DETAILS_FILENAME), standardTagTree)) {
+            while (reader.hasNext()) {
+                // Images from ImageDetails.json are already saved there, unless they're moved into shards.
+                ISSImageFileUnit ifu = reader.next();
+                if (shards == null ? indexImage(ifu) : addImage(ifu))
+                    loadedCount++;
+            }
+        }
+        return loadedCount;
+    }
+
+    /**
+     * Get every image in this system.
+     * @return the list of units
+     */
+    public ArrayList<ISSImageFileUnit> getImages() {
+        return myImages;
+    }
+    /**
+     * Replay the tag journal (.issinfos\TagJournal.log) on top of the images loaded from ImageDetails.json,
+     * then start journaling. From now on, every tag edited by {@link #addTag(ISSImageFileUnit, ISSTagTreeUnit)}
+     * and {@link #removeTag(ISSImageFileUnit, ISSTagTreeUnit)} is appended to the journal instead of saving
+     * ImageDetails.json. The journal is compacted into ImageDetails.json when it grows too large.
+     * 
+     * @return the number of journal records replayed
+     * @throws IOException thrown if the journal can't be read or opened
+     */
+    public synchronized int openTagJournal() throws IOException {
+        if (tagJournal != null)
+            return 0;
+        tagJournal = new ISSTagJournal(new File(ISSCore.TAG_JOURNAL_FILENAME), ISSTagJournal.DEFAULT_COMPACTION_THRESHOLD, this::compactTagJournal);
+        return tagJournal.open(this::replayTagRecord);
+    }
+    /** Apply a record of the tag journal. Replaying a record twice does nothing. */
+    private void replayTagRecord(byte op, String relativePathname, String tagName) {
+        ISSImageFileUnit ifu = findIndexedImage(relativePathname);
+        if (ifu == null && shards != null && !loadedShards.contains(ISSCatalogShards.getShardName(relativePathname))) {
+            // The edit belongs to a shard which isn't loaded yet.
+            try {
+                loadShard(ISSCatalogShards.getShardName(relativePathname));
+            }
+            catch (IOException | JSONException e) {
+                ISSCore.logger.severe("Failed to load shard of \""+relativePathname+"\": "+e.getMessage());
+                // A save has to load it again, so the journal isn't dropped while the edit is still missing.
+                markShardDirty(relativePathname);
+            }
+            ifu = findIndexedImage(relativePathname);
+        }
+        ISSTagTreeUnit tag = (standardTagTree == null ? null : standardTagTree.findByPathOrName(tagName));
+        if (ifu == null || tag == null) {
+            ISSCore.logger.fine("Skipped tag journal record of \""+relativePathname+"\", \""+tagName+"\"");
+            return;
+        }
+        boolean changed = false;
+        if (op == ISSTagJournal.OP_ADD_TAG && !ifu.getTags().contains(tag))
+            changed = ifu.addTag(tag);
+        else if (op == ISSTagJournal.OP_REMOVE_TAG)
+            changed = ifu.removeTag(tag);
+        if (changed) {
+            updatePosting(ifu, tag);
+            markShardDirty(relativePathname);
+            updateCatalogIndex(ifu);
+        }
+    }
+    /**
+     * Save ImageDetails (see {@link #saveCatalog()}) and drop the tag journal merged into it. It's run in background when
+     * the journal grows too large, but can be called at any time.<p>
+     * Only the rotation of the journal and a copy of the changed images are made while this system is
+     * locked. The files are written afterwards, so tags can still be edited meanwhile.
+     */
+    public void compactTagJournal() {
+        ISSTagJournal journal;
+        CatalogSnapshot snapshot;
+        synchronized (this) {
+            if (tagJournal == null)
+                return;
+            journal = tagJournal;
+            saveLock.lock();
+            try {
+                // Edits made after rotation go into the new journal, and are replayed on top of this snapshot.
+                journal.rotate();
+                snapshot = snapshotCatalog(true);
+            }
+            catch (IOException | RuntimeException e) {
+                saveLock.unlock();
+                ISSCore.logger.severe("Failed to compact tag journal: "+e.getMessage());
+                return;
+            }
+        }
+        try {
+            snapshot.write();
+            journal.dropRotated();
+        }
+        catch (IOException e) {
+            // The rotated journal is kept, so the edits are still replayed at the next start.
+            snapshot.restore();
+            ISSCore.logger.severe("Failed to compact tag journal: "+e.getMessage());
+        }
+        finally {
+            saveLock.unlock();
+        }
+    }
+    /**
+     * Wait until every tag edit is synced to disk, then stop journaling.
+     * 
+     * @throws IOException thrown if the journal failed to write
+     */
+    public synchronized void closeTagJournal() throws IOException {
+        if (tagJournal == null)
+            return;
+        tagJournal.close();
+        tagJournal = null;
+    }
+
+    /**
+     * Add a tag onto an image, and append it to the tag journal if it's opened.
+     * 
+     * @param ifu the image in this system
+     * @param tag the tag to add
+     * @return {@code false} if the image already has that tag
+     */
+    public synchronized boolean addTag(ISSImageFileUnit ifu, ISSTagTreeUnit tag) {
+        if (ifu.getTags().contains(tag))
+            return false;
+        ifu.addTag(tag);
+        updatePosting(ifu, tag);
+        markShardDirty(ifu.getFileRelativePath());
+        updateCatalogIndex(ifu);
+        journalTagEdit(ISSTagJournal.OP_ADD_TAG, ifu, tag);
+        return true;
+    }
+    /**
+     * Remove a tag from an image, and append it to the tag journal if it's opened.
+     * 
+     * @param ifu the image in this system
+     * @param tag the tag to remove
+     * @return {@code false} if the image doesn't have that tag
+     */
+    public synchronized boolean removeTag(ISSImageFileUnit ifu, ISSTagTreeUnit tag) {
+        if (!ifu.removeTag(tag))
+            return false;
+        updatePosting(ifu, tag);
+        markShardDirty(ifu.getFileRelativePath());
+        updateCatalogIndex(ifu);
+        journalTagEdit(ISSTagJournal.OP_REMOVE_TAG, ifu, tag);
+        return true;
+    }
+    /** Make the posting list of a tag agree with whether the image has it. */
+    private void updatePosting(ISSImageFileUnit ifu, ISSTagTreeUnit tag) {
+        if (ifu.getOrdinal() < 0)
+            return;
+        if (ifu.getTags().contains(tag))
+            addToPosting(tag, ifu.getOrdinal());
+        else
+            removeFromPosting(tag, ifu.getOrdinal());
+    }
+    private void addToPosting(ISSTagTreeUnit tag, int ordinal) {
+        ISSRoaringBitmap posting = postings.get(tag);
+        if (posting == null) {
+            posting = new ISSRoaringBitmap();
+            postings.put(tag, posting);
+            postingsNumbering = null;
+        }
+        posting.add(ordinal);
+    }
+    private void removeFromPosting(ISSTagTreeUnit tag, int ordinal) {
+        ISSRoaringBitmap posting = postings.get(tag);
+        if (posting != null && posting.remove(ordinal) && posting.isEmpty())
+            postings.remove(tag);
+    }
+    private void journalTagEdit(byte op, ISSImageFileUnit ifu, ISSTagTreeUnit tag) {
+        if (tagJournal == null)
+            return;
+        try {
+            tagJournal.append(op, ifu.getFileRelativePath(), tag.getAllParentPath());
+        }
+        catch (IOException e) {
+            ISSCore.logger.severe("Failed to journal tag edit, ImageDetails is saved instead: "+e.getMessage());
+            try {
+                saveCatalog();
+            }
+            catch (IOException e1) {
+                ISSCore.logger.severe("Failed to save ImageDetails: "+e1.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the image by it's relative pathname.
+     * @param relativePathname the relative pathname started with ".\"
+     * @return the unit, or {@code null} if there's no such image
+     */
+    public synchronized ISSImageFileUnit getImage(String relativePathname) {
+        ISSImageFileUnit ifu = findIndexedImage(relativePathname);
+        if (ifu == null && catalogIndex != null) {
+            try {
+                ifu = catalogIndex.get(relativePathname, standardTagTree);
+                if (ifu != null)
+                    indexImage(ifu);
+            }
+            catch (IOException e) {
+                ISSCore.logger.warning("Failed to read catalog index: "+e.getMessage());
+            }
+        }
+        return ifu;
+    }
+
+    /**
+     * Add an image into this system.
+     * @param ifu the unit to add
+     * @return {@code false} if there's already an image with the same relative pathname
+     */
+    public synchronized boolean addImage(ISSImageFileUnit ifu) {
+        if (!indexImage(ifu))
+            return false;
+        markShardDirty(ifu.getFileRelativePath());
+        // Not in indexImage(), since images loaded from the catalog are in the index already.
+        updateCatalogIndex(ifu);
+        return true;
+    }
+    /** Add an image without marking it's shard as changed. */
+    private boolean indexImage(ISSImageFileUnit ifu) {
+        return indexImage(ifu, true);
+    }
+    /**
+     * Add an image without marking it's shard as changed, and give it an ordinal.
+     * @param updatePostings {@code false} if the posting lists are loaded or rebuilt afterwards
+     */
+    private boolean indexImage(ISSImageFileUnit ifu, boolean updatePostings) {
+        HashMap<String, ISSImageFileUnit> folderImages = imagesByFolder.get(ifu.getFolder());
+        if (folderImages == null) {
+            folderImages = new HashMap<String, ISSImageFileUnit>(4);
+            imagesByFolder.put(ifu.getFolder(), folderImages);
+        }
+        if (folderImages.putIfAbsent(ifu.getFilename(), ifu) != null)
+            return false;
+        myImages.add(ifu);
+        if (perceptualIndex != null)
+            addToPerceptualIndex(ifu);
+
+        if (freeOrdinals.isEmpty()) {
+            ifu.setOrdinal(imagesByOrdinal.size());
+            imagesByOrdinal.add(ifu);
+        }
+        else {
+            ifu.setOrdinal(freeOrdinals.poll());
+            imagesByOrdinal.set(ifu.getOrdinal(), ifu);
+        }
+        allOrdinals.add(ifu.getOrdinal());
+        if (updatePostings) {
+            for (ISSTagTreeUnit tag: ifu.getTags())
+                addToPosting(tag, ifu.getOrdinal());
+        }
+        return true;
+    }
+    /** Remove a removed image from the posting lists, and free it's ordinal. */
+    private void releaseOrdinal(ISSImageFileUnit ifu) {
+        int ordinal = ifu.getOrdinal();
+        if (ordinal < 0)
+            return;
+        for (ISSTagTreeUnit tag: ifu.getTags())
+            removeFromPosting(tag, ordinal);
+        imagesByOrdinal.set(ordinal, null);
+        allOrdinals.remove(ordinal);
+        freeOrdinals.add(ordinal);
+        ifu.setOrdinal(-1);
+    }
+    /** Build every posting list again from the tags of every image. */
+    private void rebuildPostings() {
+        postings.clear();
+        postingsNumbering = null;
+        for (ISSImageFileUnit ifu: imagesByOrdinal) {
+            if (ifu == null)
+                continue;
+            for (ISSTagTreeUnit tag: ifu.getTags())
+                addToPosting(tag, ifu.getOrdinal());
+        }
+        postings.values().forEach(ISSRoaringBitmap::runOptimize);
+    }
+    /** Find an image in {@code imagesByFolder}. No folder node is created. */
+    private ISSImageFileUnit findIndexedImage(String relativePathname) {
+        int separatorIndex = relativePathname.lastIndexOf(File.separatorChar);
+        if (separatorIndex == -1)
+            return null;
+        HashMap<String, ISSImageFileUnit> folderImages = imagesByFolder.get(ISSFolderNode.find(relativePathname.substring(0, separatorIndex)));
+        return (folderImages == null ? null : folderImages.get(relativePathname.substring(separatorIndex + 1)));
+    }
+    /** Remove an image from {@code imagesByFolder}. */
+    private ISSImageFileUnit unindexImage(String relativePathname) {
+        ISSImageFileUnit ifu = findIndexedImage(relativePathname);
+        if (ifu != null) {
+            HashMap<String, ISSImageFileUnit> folderImages = imagesByFolder.get(ifu.getFolder());
+            folderImages.remove(ifu.getFilename());
+            if (folderImages.isEmpty())
+                imagesByFolder.remove(ifu.getFolder());
+        }
+        return ifu;
+    }
+    /**
+     * Remove an image from this system.
+     * @param relativePathname the relative pathname started with ".\"
+     * @return the removed unit, or {@code null} if there's no such image
+     */
+    public synchronized ISSImageFileUnit removeImage(String relativePathname) {
+        if (!loadShardsAt(relativePathname))
+            return null;
+        ISSImageFileUnit ifu = unindexImage(relativePathname);
+        if (ifu != null) {
+            myImages.remove(ifu);
+            removeFromPerceptualIndex(ifu);
+            releaseOrdinal(ifu);
+            markShardDirty(relativePathname);
+        }
+        removeFromCatalogIndex(relativePathname);
+        return ifu;
+    }
+    private void addToPerceptualIndex(ISSImageFileUnit ifu) {
+        try {
+            perceptualIndex.add(ifu.getPerceptualHash(), ifu);
+        }
+        catch (ISSException e) {
+            ISSCore.logger.fine(e.getMessage()+": "+ifu.getFileRelativePath());
+        }
+    }
+    private void removeFromPerceptualIndex(ISSImageFileUnit ifu) {
+        if (perceptualIndex == null)
+            return;
+        try {
+            perceptualIndex.remove(ifu.getPerceptualHash(), ifu);
+        }
+        catch (ISSException e) {
+            // It was never added.
+        }
+    }
+
+    /**
+     * Find images which look like the given one, such as resized or recompressed copies.<p>
+     * The perceptual hash of every image is indexed by the first search, and computed if it's unknown.
+     * 
+     * @param ifu the image to compare with
+     * @param maxDistance the largest Hamming distance between perceptual hashes. 0 means the same
+     * hash, and about 10 still finds most resized or recompressed copies.
+     * @return the similar images (the given image itself excluded), with their distances
+     * @throws ISSException thrown if the perceptual hash of {@code ifu} can't be computed
+     */
+    public synchronized ArrayList<ISSBKTree.Match<ISSImageFileUnit>> findSimilarImages(ISSImageFileUnit ifu, int maxDistance) throws ISSException {
+        if (perceptualIndex == null) {
+            perceptualIndex = new ISSBKTree<ISSImageFileUnit>();
+            myImages.forEach(this::addToPerceptualIndex);
+        }
+        ArrayList<ISSBKTree.Match<ISSImageFileUnit>> result = perceptualIndex.search(ifu.getPerceptualHash(), maxDistance);
+        result.removeIf(match -> match.getValue() == ifu);
+        result.sort((a, b) -> Integer.compare(a.getDistance(), b.getDistance()));
+        return result;
+    }
+
+    /**
+     * Get every image with a tag. Only the tag itself is matched, not the tags under it.
+     * 
+     * @param tag the tag
+     * @return the images in the order of their ordinals
+     */
+    public synchronized ArrayList<ISSImageFileUnit> getImagesWithTag(ISSTagTreeUnit tag) {
+        ISSRoaringBitmap posting = postings.get(tag);
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>(posting == null ? 0 : (int) posting.getCardinality());
+        if (posting != null)
+            posting.forEach(ordinal -> result.add(imagesByOrdinal.get(ordinal)));
+        return result;
+    }
+    /**
+     * Count the images with a tag without building the list of them.
+     * @param tag the tag
+     * @return the number of images
+     */
+    public synchronized int countImagesWithTag(ISSTagTreeUnit tag) {
+        ISSRoaringBitmap posting = postings.get(tag);
+        return (posting == null ? 0 : (int) posting.getCardinality());
+    }
+    /**
+     * Get the ordinals of every image with a tag, see {@link #getImageByOrdinal(int)}.
+     * @param tag the tag
+     * @return a copy of the posting list, which is empty if no image has the tag
+     */
+    public synchronized ISSRoaringBitmap getPostingList(ISSTagTreeUnit tag) {
+        ISSRoaringBitmap posting = postings.get(tag);
+        return (posting == null ? new ISSRoaringBitmap() : posting.copy());
+    }
+    /**
+     * Find every image which matches a query of tags, like {@code Arknights AND PNG AND NOT diffeyecolor}.
+     * 
+     * @param query the query, see {@code ISSTagQuery.parse(String, ISSTagTreeUnit)} for the syntax
+     * @return the images in the order of their ordinals
+     * @throws ISSException thrown if the query is not valid, or a tag is not in the tagtree
+     */
+    public ArrayList<ISSImageFileUnit> findImages(String query) throws ISSException {
+        return findImages(ISSTagQuery.parse(query, standardTagTree));
+    }
+    /**
+     * Find every image which matches a query of tags.
+     * @param query the query
+     * @return the images in the order of their ordinals
+     */
+    public synchronized ArrayList<ISSImageFileUnit> findImages(ISSTagQuery query) {
+        ISSRoaringBitmap ordinals = query.evaluate(querySource);
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>((int) ordinals.getCardinality());
+        ordinals.forEach(ordinal -> result.add(imagesByOrdinal.get(ordinal)));
+        return result;
+    }
+    /**
+     * Find the ordinal of every image which matches a query of tags, see {@link #getImageByOrdinal(int)}.
+     * It's faster than {@link #findImages(ISSTagQuery)} if only the ordinals or the count are needed.
+     * @param query the query
+     * @return a new bitmap of ordinals
+     */
+    public synchronized ISSRoaringBitmap findOrdinals(ISSTagQuery query) {
+        return query.evaluate(querySource).copy();
+    }
+    /**
+     * Get an image by it's ordinal.
+     * @param ordinal the ordinal from a posting list
+     * @return the image, or {@code null} if it's removed
+     */
+    public synchronized ISSImageFileUnit getImageByOrdinal(int ordinal) {
+        return (ordinal >= 0 && ordinal < imagesByOrdinal.size() ? imagesByOrdinal.get(ordinal) : null);
+    }
+
+    /**
+     * Find out if the extension of the file should be ignored.
+     * @param file the file to check
+     * @return {@code true} if it's extension is listed in {@code IgnoredExtension}
+     */
+    public boolean isIgnored(File file) {
+        if (ignoredExtension == null)
+            return false;
+        String filename = file.getName();
+        int extIndex = filename.lastIndexOf(".");
+        String extension = (extIndex == -1 ? "" : filename.substring(extIndex+1).toUpperCase());
+        for (ISSTagTreeUnit ttu: ignoredExtension.getChildrenList()) {
+            if (ttu.getTagName().equals(extension))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Apply a batch of file system changes in one go, then save ImageDetails once.<p>
+     * A changed file which is already in this system keeps it's unit (and tags), and is read again if
+     * it's edited in place. A deleted pathname can be either a file or a directory. If it's a directory,
+     * every image under it is removed.<p>
+     * A new file with the same content (identity) as a removed image is taken as that image renamed or
+     * moved, so it gets the tags and added time of the removed one.
+     * 
+     * @param changedFiles files which are created or modified
+     * @param deletedPathnames relative pathnames of files or directories which are removed
+     * @return the number of images added, changed and removed
+     */
+    public synchronized int applyChanges(Collection<File> changedFiles, Collection<String> deletedPathnames) {
+        int changedCount = 0;
+
+        // Find every unit to remove first, so imagesByFolder and myImages are only traversed once.
+        HashSet<ISSImageFileUnit> removedUnits = new HashSet<ISSImageFileUnit>();
+        HashSet<ISSFolderNode> removedFolders = new HashSet<ISSFolderNode>();
+        for (String pathname: deletedPathnames) {
+            // Otherwise an image of a shard which isn't loaded yet would stay in it.
+            if (!loadShardsAt(pathname))
+                continue;
+            ISSImageFileUnit ifu = unindexImage(pathname);
+            if (ifu != null)
+                removedUnits.add(ifu);
+            else {
+                ISSFolderNode directory = ISSFolderNode.find(pathname);
+                if (directory != null)
+                    removedFolders.add(directory);
+            }
+        }
+        if (!removedFolders.isEmpty()) {
+            for (Iterator<Map.Entry<ISSFolderNode, HashMap<String, ISSImageFileUnit>>> iterator = imagesByFolder.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<ISSFolderNode, HashMap<String, ISSImageFileUnit>> entry = iterator.next();
+                if (isUnderAny(entry.getKey(), removedFolders)) {
+                    removedUnits.addAll(entry.getValue().values());
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Removed images by identity, so a renamed or moved file can take it's tags back. Only cached
+        // identities are used, since the files are gone.
+        HashMap<Long, ArrayList<ISSImageFileUnit>> removedByIdentity = new HashMap<Long, ArrayList<ISSImageFileUnit>>();
+        HashSet<Long> removedLengths = new HashSet<Long>();
+        if (!removedUnits.isEmpty()) {
+            myImages.removeIf(removedUnits::contains);
+            for (ISSImageFileUnit ifu: removedUnits) {
+                Long identity = ifu.getKnownIdentity();
+                if (identity != null) {
+                    removedByIdentity.computeIfAbsent(identity, key -> new ArrayList<ISSImageFileUnit>(1)).add(ifu);
+                    removedLengths.add(ifu.getFileLength());
+                }
+                ISSHashCache.getDefault().remove(ifu.getFolder(), ifu.getFilename());
+                removeFromPerceptualIndex(ifu);
+                releaseOrdinal(ifu);
+                markShardDirty(ifu.getFileRelativePath());
+                removeFromCatalogIndex(ifu.getFileRelativePath());
+            }
+            changedCount += removedUnits.size();
+        }
+
+        for (File file: changedFiles) {
+            if (isIgnored(file) || !file.isFile())
+                continue;
+            try {
+                ISSImageFileUnit newUnit = new ISSImageFileUnit(file);
+                // The unit in the shard has the tags, so it must be found before a new one is added.
+                if (!loadShardsAt(newUnit.getFileRelativePath()))
+                    continue;
+                ISSImageFileUnit oldUnit = findIndexedImage(newUnit.getFileRelativePath());
+                if (oldUnit != null) {
+                    if (refreshImage(oldUnit))
+                        changedCount++;
+                    continue;
+                }
+                // Only files as long as a removed image are hashed here.
+                if (removedLengths.contains(newUnit.getFileLength())) {
+                    ArrayList<ISSImageFileUnit> renamedUnits = removedByIdentity.get(newUnit.getIdentity());
+                    if (renamedUnits != null && !renamedUnits.isEmpty()) {
+                        ISSImageFileUnit renamedUnit = renamedUnits.remove(renamedUnits.size() - 1);
+                        newUnit = new ISSImageFileUnit(file, renamedUnit.getAddedTime(), renamedUnit.getTags());
+                    }
+                }
+                // Hashed now, so the image can be found by identity if it's renamed later. Only a
+                // cached identity is saved.
+                newUnit.getIdentity();
+                if (addImage(newUnit))
+                    changedCount++;
+            }
+            catch (ISSException e) {
+                ISSCore.logger.warning(e.getMessage()+": "+file);
+            }
+        }
+
+        if (changedCount > 0) {
+            try {
+                saveCatalog();
+            }
+            catch (IOException e) {
+                ISSCore.logger.severe("Failed to save ImageDetails: "+e.getMessage());
+            }
+        }
+        return changedCount;
+    }
+
+    /**
+     * Load every shard which may have an image at or under a pathname. The pathname can be either a
+     * file or a directory, so a top-level directory loads it's own shard too, and "." loads every shard.
+     * @return {@code false} if a shard can't be loaded, so the pathname must not be changed
+     */
+    private boolean loadShardsAt(String relativePathname) {
+        if (shards == null)
+            return true;
+        ArrayList<String> shardNames = new ArrayList<String>(2);
+        if (relativePathname.equals("."))
+            shardNames.addAll(getShardNames());
+        else {
+            shardNames.add(ISSCatalogShards.getShardName(relativePathname));
+            String topLevelName = (relativePathname.startsWith(".") ? relativePathname.substring(2) : relativePathname);
+            if (topLevelName.indexOf(File.separatorChar) == -1 && shards.contains(topLevelName))
+                shardNames.add(topLevelName);
+        }
+        for (String shardName: shardNames) {
+            try {
+                loadShard(shardName);
+            }
+            catch (IOException | JSONException e) {
+                ISSCore.logger.severe("Failed to load shard \""+shardName+"\", skipped \""+relativePathname+"\": "+e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    /** Find out if a folder is under any of the given folders, by walking up it's parents once. */
+    private static boolean isUnderAny(ISSFolderNode folder, HashSet<ISSFolderNode> ancestors) {
+        for (; folder != null; folder = folder.getParent()) {
+            if (ancestors.contains(folder))
+                return true;
+        }
+        return false;
+    }
+    /**
+     * Read the file of an image again after it's edited in place. The perceptual hash is computed again,
+     * and the identity is rehashed when it's needed, since the length or last-modified time changed.
+     * @return {@code true} if the file changed
+     */
+    private boolean refreshImage(ISSImageFileUnit ifu) throws ISSException {
+        Long oldPerceptualHash = ifu.getKnownPerceptualHash();
+        if (!ifu.refresh())
+            return false;
+        if (perceptualIndex != null) {
+            if (oldPerceptualHash != null)
+                perceptualIndex.remove(oldPerceptualHash, ifu);
+            addToPerceptualIndex(ifu);
+        }
+        markShardDirty(ifu.getFileRelativePath());
+        updateCatalogIndex(ifu);
+        return true;
+    }
+
+    /**
+     * Get every image under a folder in this system.
+     * 
+     * @param relativeFolder the relative pathname of the folder started with ".\", or "." for every image
+     * @return the images, in no particular order
+     */
+    public synchronized ArrayList<ISSImageFileUnit> getImagesUnder(String relativeFolder) {
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>();
+        ISSFolderNode folder = ISSFolderNode.find(relativeFolder);
+        if (folder == null)
+            return result;
+        for (Map.Entry<ISSFolderNode, HashMap<String, ISSImageFileUnit>> entry: imagesByFolder.entrySet()) {
+            if (entry.getKey().isUnder(folder))
+                result.addAll(entry.getValue().values());
+        }
+        return result;
+    }
+
+    /**
+     * Import every file under the folder by {@code ISSIngestPipeline}, then save ImageDetails.
+     * Files with ignored extensions and files already in this system are skipped.
+     * 
+     * @param folder the folder to import
+     * @return the number of new images
+     * @throws InterruptedException thrown if the calling thread is interrupted while importing
+     */
+    public int importFolder(File folder) throws InterruptedException {
+        final int[] addedCount = {0};
+        ISSIngestPipeline pipeline = new ISSIngestPipeline(ifu -> {
+            if (addImage(ifu))
+                addedCount[0]++;
+        });
+        pipeline.setFilter(file -> !isIgnored(file));
+        pipeline.run(folder.toPath());
+
+        try {
+            saveCatalog();
+        }
+        catch (IOException e) {
+            ISSCore.logger.severe("Failed to save ImageDetails: "+e.getMessage());
+        }
+        return addedCount[0];
+    }
+
+    /**
+     * Save every image into ImageDetails.json. The key of each image is it's relative pathname.<p>
+     * Each unit is written straight into the file by {@code ISSImageFileUnit.writeJSON(JSONWriter)},
+     * so no {@code JSONObject} of the whole catalog is built and the memory doesn't grow with it.
+     * 
+     * If shards are used, every shard is loaded first, so no image is missing from the file.
+     * 
+     * @throws IOException thrown if the file can't be written
+     */
+    public synchronized void saveImageDetails() throws IOException {
+        if (shards != null)
+            loadAllShards();
+        saveLock.lock();
+        try {
+            ISSInfoFile.writeText(new File(ISSCore.IMAGE_DETAILS_FILENAME), out -> writeImageDetails(out, myImages));
+        }
+        finally {
+            saveLock.unlock();
+        }
+        if (shards == null)
+            dirtyShards.clear();
+
+        // The hashes computed since the last save are kept for the next start.
+        ISSHashCache.getDefault().save();
+    }
+    /**
+     * Write images in the format of ImageDetails.json. The key of each image is it's relative pathname.
+     * 
+     * @param out where the json is written
+     * @param images the images to write
+     * @throws IOException thrown if the json can't be written
+     */
+    static void writeImageDetails(Writer out, Collection<ISSImageFileUnit> images) throws IOException {
+        // The root object is written by hand, since JSONWriter remembers every key of an object.
+        out.write('{');
+        boolean first = true;
+        try {
+            for (ISSImageFileUnit ifu: images) {
+                if (!first)
+                    out.write(',');
+                first = false;
+                out.write(JSONObject.quote(ifu.getFileRelativePath()));
+                out.write(':');
+                ifu.writeJSON(new JSONWriter(out));
+            }
+        }
+        catch (JSONException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        out.write('}');
+    }
+
+    /**
+     * Save ImageDetails in the way this system uses: every changed shard if shards are opened
+     * (see {@link #openShards()}), otherwise ImageDetails.json.<p>
+     * Every tag edit in the tag journal is saved by then, so the journal is dropped like
+     * {@link #compactTagJournal()} does, and it's not replayed at the next start.
+     * 
+     * @throws IOException thrown if any file can't be written. The journal is kept.
+     */
+    public synchronized void saveCatalog() throws IOException {
+        saveLock.lock();
+        try {
+            ISSTagJournal journal = tagJournal;
+            if (journal != null) {
+                try {
+                    journal.rotate();
+                }
+                catch (IOException e) {
+                    ISSCore.logger.warning("Failed to rotate tag journal, it's kept: "+e.getMessage());
+                    journal = null;
+                }
+            }
+            CatalogSnapshot snapshot = snapshotCatalog(false);
+            try {
+                snapshot.write();
+            }
+            catch (IOException e) {
+                snapshot.restore();
+                throw e;
+            }
+            if (journal != null)
+                journal.dropRotated();
+        }
+        finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * What {@link #saveCatalog()} should write: the changed shards if shards are opened, otherwise
+     * ImageDetails.json.
+     */
+    private class CatalogSnapshot {
+        /** Shard name to it's images. {@code null} if ImageDetails.json is written. */
+        private final HashMap<String, ArrayList<ISSImageFileUnit>> changedShards;
+        /** Every image, if ImageDetails.json is written. */
+        private final ArrayList<ISSImageFileUnit> images;
+
+        CatalogSnapshot(HashMap<String, ArrayList<ISSImageFileUnit>> changedShards, ArrayList<ISSImageFileUnit> images) {
+            this.changedShards = changedShards;
+            this.images = images;
+        }
+
+        void write() throws IOException {
+            if (changedShards != null)
+                shards.save(changedShards);
+            else if (images != null)
+                ISSInfoFile.writeText(new File(ISSCore.IMAGE_DETAILS_FILENAME), out -> writeImageDetails(out, images));
+            // The hashes computed since the last save are kept for the next start.
+            ISSHashCache.getDefault().save();
+        }
+        /** Mark the shards as changed again after they failed to be written. */
+        void restore() {
+            if (changedShards != null)
+                dirtyShards.addAll(changedShards.keySet());
+        }
+    }
+    /**
+     * Take what should be saved, and mark it as saved. Every changed shard is loaded first, since it
+     * must be complete before it's written.
+     * @param copyUnits if the units should be copied, so they can be written after this system is unlocked
+     */
+    private CatalogSnapshot snapshotCatalog(boolean copyUnits) throws IOException {
+        if (shards == null) {
+            ArrayList<ISSImageFileUnit> images = myImages;
+            if (copyUnits) {
+                images = new ArrayList<ISSImageFileUnit>(myImages.size());
+                for (ISSImageFileUnit ifu: myImages)
+                    images.add(ifu.copy());
+            }
+            dirtyShards.clear();
+            return new CatalogSnapshot(null, images);
+        }
+        if (dirtyShards.isEmpty())
+            return new CatalogSnapshot(null, null);
+        for (String shardName: dirtyShards)
+            loadShard(shardName);
+
+        HashMap<String, ArrayList<ISSImageFileUnit>> changedShards = new HashMap<String, ArrayList<ISSImageFileUnit>>();
+        for (String shardName: dirtyShards)
+            changedShards.put(shardName, new ArrayList<ISSImageFileUnit>());
+        for (ISSImageFileUnit ifu: myImages) {
+            ArrayList<ISSImageFileUnit> images = changedShards.get(ISSCatalogShards.getShardName(ifu.getFileRelativePath()));
+            if (images != null)
+                images.add(copyUnits ? ifu.copy() : ifu);
+        }
+        dirtyShards.removeAll(changedShards.keySet());
+        return new CatalogSnapshot(changedShards, null);
+    }
+
+    /**
+     * Use the shards of ImageDetails (.issinfos\shards, see {@code ISSCatalogShards}) instead of
+     * ImageDetails.json. Only the manifest is read. Each shard is loaded when {@link #loadShard(String)}
+     * is called, or when a tag edit in the journal needs it.<p>
+     * Images already in this system are kept, and are written into their shards by the next
+     * {@link #saveShards()}.
+     */
+    public synchronized void openShards() {
+        if (shards == null)
+            shards = ISSCatalogShards.open(new File(ISSCore.SHARD_FOLDER_PATHNAME));
+    }
+    /**
+     * Get the name of every stored shard, which is the name of a top-level folder of working folder.
+     * @return the names, sorted. Empty if shards are not opened
+     */
+    public synchronized ArrayList<String> getShardNames() {
+        return (shards == null ? new ArrayList<String>() : shards.getShardNames());
+    }
+    /**
+     * Find out if a shard is loaded into this system.
+     * @param shardName the name of the shard
+     * @return {@code true} if it's loaded
+     */
+    public synchronized boolean isShardLoaded(String shardName) {
+        return loadedShards.contains(shardName);
+    }
+    /**
+     * Load the images of a shard. Nothing is done if the shard is already loaded. Images already in
+     * this system (such as a new image added before loading it's shard) are kept.<p>
+     * The shard is read completely before any image is added. If it can't be read, nothing is changed
+     * and it's still not loaded, so a changed shard can't be saved with only a part of it's images.
+     * 
+     * @param shardName the name of the shard, see {@code ISSCatalogShards.getShardName(String)}
+     * @return the number of images loaded
+     * @throws IOException thrown if the shard can't be read
+     * @throws JSONException thrown if the shard is broken
+     */
+    public synchronized int loadShard(String shardName) throws IOException, JSONException {
+        openShards();
+        if (loadedShards.contains(shardName))
+            return 0;
+
+        ArrayList<ISSImageFileUnit> images;
+        try (ISSImageDetailsReader reader = shards.openShard(shardName, standardTagTree)) {
+            images = (reader == null ? new ArrayList<ISSImageFileUnit>() : reader.toList());
+        }
+        int loadedCount = 0;
+        for (ISSImageFileUnit ifu: images) {
+            if (indexImage(ifu))
+                loadedCount++;
+        }
+        loadedShards.add(shardName);
+        return loadedCount;
+    }
+    /**
+     * Load every shard which is not loaded yet.
+     * 
+     * @return the number of images loaded
+     * @throws IOException thrown if any shard can't be read
+     */
+    public synchronized int loadAllShards() throws IOException {
+        int loadedCount = 0;
+        for (String shardName: getShardNames())
+            loadedCount += loadShard(shardName);
+        return loadedCount;
+    }
+    /**
+     * Save every changed shard and the manifest. Shards which haven't changed are not written.
+     * 
+     * @throws IOException thrown if any shard can't be written. The changed shards are kept for the next save.
+     */
+    public synchronized void saveShards() throws IOException {
+        openShards();
+        saveCatalog();
+    }
+    private void markShardDirty(String relativePathname) {
+        dirtyShards.add(ISSCatalogShards.getShardName(relativePathname));
+    }
+
+    /**
+     * Save every unsaved change (see {@link #saveCatalog()}), then write a snapshot of the whole model
+     * (.issinfos\Snapshot.bin, see {@code ISSModelSnapshot}). It's written on clean shutdown by
+     * {@code ISSCore.shutDownISS(ISSImageSystem)}, so the next start doesn't parse any json.
+     * 
+     * @throws IOException thrown if any file can't be written
+     */
+    public synchronized void saveSnapshot() throws IOException {
+        if (!dirtyShards.isEmpty())
+            saveCatalog();
+        ISSModelSnapshot.write(new File(ISSCore.SNAPSHOT_FILENAME), standardTagTree, ignoredExtension, myImages,
+                               shards != null ? loadedShards : null);
+        // Every identity in the snapshot must be in the saved hash cache.
+        ISSHashCache.getDefault().save();
+    }
+    /**
+     * Rebuild an Image System from the snapshot in one pass.
+     * 
+     * @return the Image System, or {@code null} if there's no snapshot, or it's stale or broken
+     */
+    static ISSImageSystem loadSnapshot() {
+        File file = new File(ISSCore.SNAPSHOT_FILENAME);
+        if (!file.isFile())
+            return null;
+        try (ISSModelSnapshot snapshot = ISSModelSnapshot.open(file)) {
+            if (!snapshot.isFresh()) {
+                ISSCore.logger.info("Snapshot is stale, loading json instead.");
+                return null;
+            }
+            snapshot.readTagTrees();
+            ISSImageSystem imageSystem = new ISSImageSystem(snapshot.getTagTree(), snapshot.getIgnoredExtension());
+            imageSystem.myImages.ensureCapacity(snapshot.size());
+            snapshot.readImages(ifu -> imageSystem.indexImage(ifu, false));
+            // Ordinals are given in the stored order, so they're the same as when the snapshot was written.
+            if (imageSystem.myImages.size() == snapshot.size())
+                imageSystem.postings = snapshot.readPostings();
+            else
+                imageSystem.rebuildPostings();
+            if (snapshot.getLoadedShards() != null) {
+                imageSystem.openShards();
+                imageSystem.loadedShards.addAll(snapshot.getLoadedShards());
+            }
+            return imageSystem;
+        }
+        catch (IOException e) {
+            ISSCore.logger.severe("Failed to load snapshot, loading json instead: "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save every image into the binary store ImageDetails.bin (see {@code ISSImageDetailsStore}).
+     * 
+     * @throws IOException thrown if the file can't be written
+     */
+    public synchronized void saveImageDetailsStore() throws IOException {
+        ISSImageDetailsStore.write(new File(ISSCore.IMAGE_DETAILS_STORE_FILENAME), myImages);
+        ISSHashCache.getDefault().save();
+    }
+    /**
+     * Load every image from the binary store ImageDetails.bin. Images already in this system are kept.
+     * 
+     * @return the number of images loaded
+     * @throws IOException thrown if the file can't be read
+     */
+    public synchronized int loadImageDetailsStore() throws IOException {
+        int loadedCount = 0;
+        try (ISSImageDetailsStore store = ISSImageDetailsStore.open(new File(ISSCore.IMAGE_DETAILS_STORE_FILENAME))) {
+            myImages.ensureCapacity(myImages.size() + store.size());
+            for (int index = 0; index < store.size(); index++) {
+                if (addImage(store.toImageFileUnit(index, standardTagTree)))
+                    loadedCount++;
+            }
+        }
+        return loadedCount;
+    }
+
+    /**
+     * Open the on-disk catalog index ({@code .issinfos\index}, see {@code ISSCatalogIndex}).<p>
+     * Once opened, {@link #getImage(String)} falls back to the index for images which aren't loaded,
+     * and tag edits, changed files and removed images are written to the index as well. Call
+     * {@link #saveCatalogIndex()} to write the loaded images into it.
+     * 
+     * @return the number of images in the index
+     * @throws IOException thrown if the index can't be opened
+     */
+    public synchronized long openCatalogIndex() throws IOException {
+        if (catalogIndex == null)
+            catalogIndex = ISSCatalogIndex.open(new File(ISSCore.INDEX_FOLDER_PATHNAME));
+        return catalogIndex.size();
+    }
+    /**
+     * Write every loaded image into the catalog index. An empty index is bulk loaded. An image with
+     * too many tags to fit in the index is skipped with a warning.
+     * 
+     * @throws IOException thrown if the index can't be written
+     */
+    public synchronized void saveCatalogIndex() throws IOException {
+        if (catalogIndex == null)
+            openCatalogIndex();
+        if (catalogIndex.size() == 0)
+            catalogIndex.bulkLoad(myImages);
+        else {
+            for (ISSImageFileUnit ifu: myImages) {
+                try {
+                    catalogIndex.put(ifu);
+                }
+                catch (ISSBPlusTree.EntryTooLargeException e) {
+                    ISSCore.logger.warning("Skipped "+ifu.getFileRelativePath()+" in catalog index: "+e.getMessage());
+                }
+            }
+        }
+        catalogIndex.flush();
+    }
+    /**
+     * Find every image with the same content by the catalog index, including images which aren't loaded.
+     * 
+     * @param identity the identity of the image (see {@code ISSImageFileUnit.getIdentity()})
+     * @return the relative pathnames of the images. Empty if the index is not opened
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized ArrayList<String> findImagesByIdentity(long identity) throws IOException {
+        return (catalogIndex == null ? new ArrayList<String>() : catalogIndex.findByIdentity(identity));
+    }
+    /**
+     * Get every image under a folder from the catalog index, without loading them into this system.
+     * 
+     * @param relativeFolder the relative pathname of the folder started with ".\", or "." for every image
+     * @return the images sorted by relative pathname. Empty if the index is not opened
+     * @throws IOException thrown if the index can't be read
+     */
+    public synchronized ArrayList<ISSImageFileUnit> getIndexedImagesUnder(String relativeFolder) throws IOException {
+        ArrayList<ISSImageFileUnit> result = new ArrayList<ISSImageFileUnit>();
+        if (catalogIndex != null)
+            catalogIndex.scanFolder(relativeFolder, standardTagTree).forEachRemaining(result::add);
+        return result;
+    }
+    /**
+     * Flush and close the catalog index.
+     * 
+     * @throws IOException thrown if the index can't be written
+     */
+    public synchronized void closeCatalogIndex() throws IOException {
+        if (catalogIndex == null)
+            return;
+        catalogIndex.close();
+        catalogIndex = null;
+    }
+    /** Write the changed record of an image into the catalog index if it's opened. */
+    private void updateCatalogIndex(ISSImageFileUnit ifu) {
+        if (catalogIndex == null)
+            return;
+        try {
+            catalogIndex.put(ifu);
+        }
+        catch (ISSBPlusTree.EntryTooLargeException e) {
+            // The old record would be stale, so it's better not to find the image in the index at all.
+            ISSCore.logger.warning("Removed "+ifu.getFileRelativePath()+" from catalog index: "+e.getMessage());
+            removeFromCatalogIndex(ifu.getFileRelativePath());
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to update "+ifu.getFileRelativePath()+" in catalog index: "+e.getMessage());
+        }
+    }
+    private void removeFromCatalogIndex(String relativePathname) {
+        if (catalogIndex == null)
+            return;
+        try {
+            catalogIndex.remove(relativePathname);
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to remove "+relativePathname+" from catalog index: "+e.getMessage());
         }
     }
 }
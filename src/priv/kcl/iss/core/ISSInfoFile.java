@@ -0,0 +1,415 @@
+package priv.kcl.iss.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The shared persistence layer of the files in {@code .issinfos}.<p>
+ * A file is never written in place. The content is written into a temp file next to it through a large
+ * buffer, forced to disk once, then moved onto the target atomically. If ISS stops while writing, the
+ * old file is still there and only the temp file is left behind.<p>
+ * Several files can be written together by a {@link Batch}: every temp file is written first, then all
+ * of them are forced and moved, so a failure while writing any of them leaves every target untouched.<p>
+ * Text files are always UTF-8. Use {@link #openReader(File)} to read them.<p>
+ * Text files can be compressed while they're written (see {@link Compression}). A file named
+ * {@code *.gz} is always gzip and {@code *.zz} is always deflate, and every other text file uses
+ * {@link #setTextCompression(Compression)}. {@link #openReader(File)} finds out how a file is compressed
+ * by it's first bytes, so plain and compressed files can be read in the same way and mixed freely. A
+ * deflated file starts with {@code FF 49 53 5A} ({@code 0xFF} and "ISZ"), and a gzip file with {@code 1F 8B}; neither can
+ * be the start of UTF-8 text.
+ */
+public class ISSInfoFile {
+
+    /** The size of the write buffer. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /** The suffix of temp files. */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** The size of the buffers of text and compression streams. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    /** Written before the zlib stream of a deflated file. {@code 0xFF} is never a byte of UTF-8 text. */
+    private static final byte[] DEFLATE_MAGIC = {(byte) 0xFF, 'I', 'S', 'Z'};
+
+    /**
+     * How a text file is compressed.
+     */
+    public enum Compression {
+        /** Plain UTF-8. */
+        NONE,
+        /** gzip at the default level, which can be opened by any gzip tool. */
+        GZIP,
+        /** Deflate with a zlib header at the default level, after a magic number of ISS. */
+        DEFLATE,
+        /**
+         * Deflate with a zlib header at the fastest level. The file is a bit larger than {@link #DEFLATE},
+         * but it's written several times faster.
+         */
+        DEFLATE_FAST
+    }
+
+    /** How text files are compressed unless their extension says otherwise. */
+    private static volatile Compression textCompression = Compression.NONE;
+
+    /**
+     * Write the content of a file as bytes.
+     */
+    @FunctionalInterface
+    public interface Content {
+        /**
+         * @param out where the content is written. Don't close it.
+         * @throws IOException thrown if the content can't be written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+    /**
+     * Write the content of a file as text.
+     */
+    @FunctionalInterface
+    public interface TextContent {
+        /**
+         * @param out where the content is written. Don't close it.
+         * @throws IOException thrown if the content can't be written
+         */
+        void writeTo(Writer out) throws IOException;
+    }
+
+    private ISSInfoFile() {}
+
+    /**
+     * Replace a file atomically.
+     *
+     * @param file the target file
+     * @param content writes the new content
+     * @throws IOException thrown if the file can't be written. The old file is kept.
+     */
+    public static void write(File file, Content content) throws IOException {
+        new Batch().add(file, content).commit();
+    }
+    /**
+     * Replace a text file atomically.
+     *
+     * @param file the target file
+     * @param content writes the new content
+     * @throws IOException thrown if the file can't be written. The old file is kept.
+     */
+    public static void writeText(File file, TextContent content) throws IOException {
+        new Batch().addText(file, content).commit();
+    }
+    /**
+     * Replace a text file atomically.
+     *
+     * @param file the target file
+     * @param text the new content
+     * @throws IOException thrown if the file can't be written. The old file is kept.
+     */
+    public static void writeText(File file, String text) throws IOException {
+        new Batch().addText(file, text).commit();
+    }
+
+    /**
+     * Open a text file written by this class. A compressed file is decompressed while it's read.
+     *
+     * @param file the file to read
+     * @return a buffered UTF-8 reader
+     * @throws IOException thrown if the file can't be opened
+     */
+    public static BufferedReader openReader(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+        try {
+            in.mark(DEFLATE_MAGIC.length);
+            byte[] magic = in.readNBytes(DEFLATE_MAGIC.length);
+            in.reset();
+            if (magic.length >= 2 && magic[0] == (byte) 0x1F && magic[1] == (byte) 0x8B)
+                in = new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+            else if (Arrays.equals(magic, DEFLATE_MAGIC)) {
+                in.readNBytes(DEFLATE_MAGIC.length);
+                in = new InflaterInputStream(in, new Inflater(), STREAM_BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            inf.end();
+                        }
+                    }
+                };
+            }
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Set how text files are compressed from now on. Files named {@code *.gz} or {@code *.zz} are not
+     * affected. Files already written are not changed until they're written again.
+     *
+     * @param compression the compression of text files
+     */
+    public static void setTextCompression(Compression compression) {
+        textCompression = (compression == null ? Compression.NONE : compression);
+    }
+    /**
+     * Get how text files are compressed.
+     * @return the compression of text files
+     */
+    public static Compression getTextCompression() {
+        return textCompression;
+    }
+    /**
+     * Get how a text file will be compressed.
+     *
+     * @param file the text file
+     * @return the compression decided by it's extension, or {@link #getTextCompression()}
+     */
+    public static Compression getCompression(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz"))
+            return Compression.GZIP;
+        if (name.endsWith(".zz"))
+            return Compression.DEFLATE;
+        return textCompression;
+    }
+
+
+    /**
+     * A group of files which are written and flushed together.
+     */
+    public static class Batch {
+
+        private final ArrayList<File> targets = new ArrayList<File>();
+        private final ArrayList<Content> contents = new ArrayList<Content>();
+
+        /**
+         * Add a file into this batch. Nothing is written until {@link #commit()}.
+         *
+         * @param file the target file
+         * @param content writes the new content
+         * @return this batch
+         */
+        public Batch add(File file, Content content) {
+            targets.add(file);
+            contents.add(content);
+            return this;
+        }
+        /**
+         * Add a text file into this batch. Nothing is written until {@link #commit()}.
+         *
+         * @param file the target file
+         * @param content writes the new content
+         * @return this batch
+         */
+        public Batch addText(File file, TextContent content) {
+            Compression compression = getCompression(file);
+            return add(file, out -> {
+                if (compression == Compression.NONE) {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), STREAM_BUFFER_SIZE);
+                    content.writeTo(writer);
+                    writer.flush();
+                    return;
+                }
+                // Closing finishes the compressed stream and releases the compressor, even if the content
+                // failed, since then the temp file is deleted anyway. Closing the target stream does nothing.
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(compress(out, compression), StandardCharsets.UTF_8), STREAM_BUFFER_SIZE)) {
+                    content.writeTo(writer);
+                }
+            });
+        }
+        /**
+         * Add a text file into this batch. Nothing is written until {@link #commit()}.
+         *
+         * @param file the target file
+         * @param text the new content
+         * @return this batch
+         */
+        public Batch addText(File file, String text) {
+            if (getCompression(file) != Compression.NONE)
+                return addText(file, (Writer out) -> out.write(text));
+            return add(file, out -> out.write(text.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Find out if there's nothing in this batch.
+         * @return {@code true} if no file was added
+         */
+        public boolean isEmpty() {
+            return targets.isEmpty();
+        }
+
+        /**
+         * Write every file into it's temp file, force all of them, then move them onto the targets.
+         * If any file fails before moving, every temp file is deleted and every target is untouched.
+         *
+         * @throws IOException thrown if any file can't be written
+         */
+        public void commit() throws IOException {
+            ArrayList<File> tempFiles = new ArrayList<File>(targets.size());
+            ArrayList<FileChannel> channels = new ArrayList<FileChannel>(targets.size());
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                for (int i = 0; i < targets.size(); i++) {
+                    // Every writer has it's own temp file, so two writers of the same target (two threads or
+                    // two processes) can't truncate each other's.
+                    File target = targets.get(i).getAbsoluteFile();
+                    File tempFile = Files.createTempFile(target.getParentFile().toPath(), target.getName(), TEMP_SUFFIX).toFile();
+                    tempFiles.add(tempFile);
+                    FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+                    channels.add(channel);
+                    ChannelOutputStream out = new ChannelOutputStream(channel, buffer);
+                    contents.get(i).writeTo(out);
+                    out.flush();
+                }
+                // One flush for the whole batch.
+                for (FileChannel channel: channels)
+                    channel.force(true);
+            }
+            catch (IOException | RuntimeException e) {
+                closeAll(channels);
+                for (File tempFile: tempFiles)
+                    tempFile.delete();
+                throw e;
+            }
+            closeAll(channels);
+
+            for (int i = 0; i < targets.size(); i++)
+                move(tempFiles.get(i), targets.get(i));
+            syncDirectories();
+        }
+
+        private void syncDirectories() {
+            // Make the renames durable. Not every platform can open a directory, so it's best-effort.
+            ArrayList<File> directories = new ArrayList<File>();
+            for (File target: targets) {
+                File directory = target.getAbsoluteFile().getParentFile();
+                if (directory != null && !directories.contains(directory))
+                    directories.add(directory);
+            }
+            for (File directory: directories) {
+                try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                    channel.force(true);
+                }
+                catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+
+    private static OutputStream compress(OutputStream out, Compression compression) throws IOException {
+        switch (compression) {
+            case GZIP:
+                return new GZIPOutputStream(out, STREAM_BUFFER_SIZE);
+            case DEFLATE:
+                return deflate(out, Deflater.DEFAULT_COMPRESSION);
+            case DEFLATE_FAST:
+                return deflate(out, Deflater.BEST_SPEED);
+            default:
+                return out;
+        }
+    }
+    private static OutputStream deflate(OutputStream out, int level) throws IOException {
+        out.write(DEFLATE_MAGIC);
+        return new DeflaterOutputStream(out, new Deflater(level), STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void closeAll(ArrayList<FileChannel> channels) {
+        for (FileChannel channel: channels) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                ISSCore.logger.warning("Failed to close \""+channel+"\": "+e.getMessage());
+            }
+        }
+    }
+
+    /** An {@code OutputStream} which writes into a {@code FileChannel} through a shared buffer. */
+    private static class ChannelOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        ChannelOutputStream(FileChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+            buffer.clear();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining())
+                drain();
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining())
+                    drain();
+                int chunk = Math.min(len, buffer.remaining());
+                buffer.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package priv.kcl.iss.core;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Import a folder into ISS by a staged pipeline:
+ * <p>
+ * <code>WALK -> VALIDATE -> PROBE -> HASH -> PHASH -> INDEX</code>
+ * <p>
+ * Each stage runs on it's own workers, and stages are connected by bounded queues, so a slow stage
+ * blocks the stages before it (backpressure) instead of letting the queue grow. The number of workers
+ * of each stage can be set by {@link #setParallelism(Stage, int)}.<p>
+ * I/O stages (walking, header probing and content hashing) run on virtual threads if the JVM supports
+ * them, otherwise on platform threads. CPU stages run on platform threads, one per processor by default.
+ * The {@code INDEX} stage always has one worker, so the sink doesn't need to be thread-safe.<p>
+ * Every stage counts how many files it processed, how long it was busy, and how long it was blocked by
+ * a full queue of the next stage, see {@link #getStatistics()}. Time blocked is not counted as busy, so
+ * a stage is never blamed for the backpressure of a slower one.
+ */
+public class ISSIngestPipeline {
+
+    /**
+     * The stages of the pipeline, in order.
+     */
+    public enum Stage {
+        /** List directories. Sub-directories are listed by other workers in parallel. */
+        WALK(true),
+        /** Create the unit from the attributes read while walking, and drop ignored files. */
+        VALIDATE(false),
+        /** Read the image size from the header. */
+        PROBE(true),
+        /** Compute the content hash (identity). */
+        HASH(true),
+        /** Compute the perceptual hash. */
+        PHASH(false),
+        /** Hand the unit to the sink. */
+        INDEX(false);
+
+        private final boolean ioBound;
+
+        Stage(boolean ioBound) {
+            this.ioBound = ioBound;
+        }
+
+        /**
+         * Find out if this stage mostly waits for I/O.
+         * @return {@code true} if it's an I/O stage
+         */
+        public boolean isIOBound() {
+            return ioBound;
+        }
+    }
+
+    /** The default capacity of each queue between two stages. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    /** The default number of workers of each I/O stage. */
+    public static final int DEFAULT_IO_PARALLELISM = 16;
+
+    /** Put into a queue to stop one worker of the next stage. */
+    private static final Object END_OF_STAGE = new Object();
+
+    /** Creates virtual threads if the JVM supports them, otherwise {@code null}. */
+    private static final ThreadFactory virtualThreadFactory = findVirtualThreadFactory();
+
+    private final Consumer<ISSImageFileUnit> sink;
+    private Predicate<File> filter = file -> true;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private final int[] parallelism = new int[Stage.values().length];
+
+    private final AtomicLong[] processedCounts = new AtomicLong[Stage.values().length];
+    private final AtomicLong[] failedCounts = new AtomicLong[Stage.values().length];
+    private final AtomicLong[] busyNanos = new AtomicLong[Stage.values().length];
+    private final AtomicLong[] blockedNanos = new AtomicLong[Stage.values().length];
+    private long startTime;
+    private long endTime;
+
+    /**
+     * Create a pipeline.
+     *
+     * @param sink receives every unit which passed all stages. It's always called by the same thread.
+     */
+    public ISSIngestPipeline(Consumer<ISSImageFileUnit> sink) {
+        this.sink = sink;
+        for (Stage stage: Stage.values()) {
+            parallelism[stage.ordinal()] = (stage.isIOBound() ? DEFAULT_IO_PARALLELISM : Runtime.getRuntime().availableProcessors());
+            processedCounts[stage.ordinal()] = new AtomicLong();
+            failedCounts[stage.ordinal()] = new AtomicLong();
+            busyNanos[stage.ordinal()] = new AtomicLong();
+            blockedNanos[stage.ordinal()] = new AtomicLong();
+        }
+        parallelism[Stage.INDEX.ordinal()] = 1;
+    }
+
+    /**
+     * Set the number of workers of a stage. The {@code INDEX} stage always has one worker.
+     *
+     * @param stage the stage
+     * @param workers the number of workers, at least 1
+     */
+    public void setParallelism(Stage stage, int workers) {
+        if (stage != Stage.INDEX)
+            parallelism[stage.ordinal()] = Math.max(1, workers);
+    }
+    /**
+     * Set the capacity of each queue between two stages.
+     *
+     * @param queueCapacity the capacity, at least 1
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+    /**
+     * Set which files should be imported. Files rejected here are dropped in the {@code VALIDATE} stage.
+     *
+     * @param filter returns {@code true} if the file should be imported
+     */
+    public void setFilter(Predicate<File> filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Import every file under the folder. This method returns after every stage finished.
+     *
+     * @param folder the folder to import
+     * @return the number of units handed to the sink
+     * @throws InterruptedException thrown if the calling thread is interrupted while waiting. Every stage
+     *         is interrupted as well, so they stop soon after
+     */
+    public long run(Path folder) throws InterruptedException {
+        startTime = System.nanoTime();
+        Stage[] stages = Stage.values();
+
+        // queues[i] is the input of stages[i].
+        ArrayList<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        // Directories are added by the walkers themselves, so this queue can't block them.
+        queues.add(new LinkedBlockingQueue<Object>());
+        for (int index = 1; index < stages.length; index++)
+            queues.add(new ArrayBlockingQueue<Object>(queueCapacity));
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        threads.addAll(startWalkers(folder, queues.get(0), queues.get(1)));
+        for (int index = 1; index < stages.length; index++) {
+            BlockingQueue<Object> output = (index+1 < stages.length ? queues.get(index+1) : null);
+            threads.addAll(startWorkers(stages[index], queues.get(index), output,
+                                        index+1 < stages.length ? parallelism[index+1] : 0));
+        }
+
+        try {
+            for (Thread thread: threads)
+                thread.join();
+        }
+        catch (InterruptedException e) {
+            // Otherwise every stage would stay blocked on it's queues forever.
+            for (Thread thread: threads)
+                thread.interrupt();
+            throw e;
+        }
+        endTime = System.nanoTime();
+        ISSCore.logger.info("Ingest of \""+folder+"\" done. "+getStatistics());
+        return processedCounts[Stage.INDEX.ordinal()].get();
+    }
+
+    /** Start the workers of {@code WALK}. A directory is done when it's listed, and the walk is done when no directory is left. */
+    private ArrayList<Thread> startWalkers(Path folder, BlockingQueue<Object> directories, BlockingQueue<Object> output) throws InterruptedException {
+        final int workers = parallelism[Stage.WALK.ordinal()];
+        final AtomicInteger pendingDirectories = new AtomicInteger(1);
+        directories.put(folder);
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger liveWorkers = new AtomicInteger(workers);
+        for (int index = 0; index < workers; index++) {
+            threads.add(newThread(Stage.WALK, index, () -> {
+                try {
+                    while (true) {
+                        Object element = directories.take();
+                        if (element == END_OF_STAGE)
+                            break;
+                        long start = System.nanoTime();
+                        long blocked = 0;
+                        for (ISSFileWalker.Entry entry: ISSFileWalker.listDirectory((Path) element)) {
+                            if (entry.getAttributes().isDirectory()) {
+                                pendingDirectories.incrementAndGet();
+                                directories.put(entry.getPath());
+                            }
+                            else
+                                blocked += put(Stage.WALK, output, entry);
+                        }
+                        busyNanos[Stage.WALK.ordinal()].addAndGet(System.nanoTime() - start - blocked);
+                        processedCounts[Stage.WALK.ordinal()].incrementAndGet();
+                        if (pendingDirectories.decrementAndGet() == 0) {
+                            // Nothing left to list. Stop every walker.
+                            for (int i = 0; i < workers; i++)
+                                directories.put(END_OF_STAGE);
+                        }
+                    }
+                    if (liveWorkers.decrementAndGet() == 0) {
+                        for (int i = 0; i < parallelism[Stage.VALIDATE.ordinal()]; i++)
+                            output.put(END_OF_STAGE);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        return threads;
+    }
+
+    /** Start the workers of a stage other than {@code WALK}. */
+    private ArrayList<Thread> startWorkers(Stage stage, BlockingQueue<Object> input, BlockingQueue<Object> output, int nextWorkers) {
+        final int workers = parallelism[stage.ordinal()];
+        final AtomicInteger liveWorkers = new AtomicInteger(workers);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int index = 0; index < workers; index++) {
+            threads.add(newThread(stage, index, () -> {
+                try {
+                    while (true) {
+                        Object element = input.take();
+                        if (element == END_OF_STAGE)
+                            break;
+                        long start = System.nanoTime();
+                        Object result = null;
+                        try {
+                            result = process(stage, element);
+                        }
+                        catch (Exception e) {
+                            failedCounts[stage.ordinal()].incrementAndGet();
+                            ISSCore.logger.warning("Ingest stage "+stage+" failed: "+e.getMessage());
+                        }
+                        busyNanos[stage.ordinal()].addAndGet(System.nanoTime() - start);
+                        if (result != null) {
+                            processedCounts[stage.ordinal()].incrementAndGet();
+                            if (output != null)
+                                put(stage, output, result);
+                        }
+                    }
+                    // The last worker of this stage stops every worker of the next stage.
+                    if (liveWorkers.decrementAndGet() == 0 && output != null) {
+                        for (int i = 0; i < nextWorkers; i++)
+                            output.put(END_OF_STAGE);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        return threads;
+    }
+
+    /** Put into the queue of the next stage, and count how long the stage was blocked by it. Returns the time blocked. */
+    private long put(Stage stage, BlockingQueue<Object> output, Object element) throws InterruptedException {
+        long start = System.nanoTime();
+        output.put(element);
+        long blocked = System.nanoTime() - start;
+        blockedNanos[stage.ordinal()].addAndGet(blocked);
+        return blocked;
+    }
+
+    /** Do the work of one stage. Returns {@code null} if the file should be dropped. */
+    private Object process(Stage stage, Object element) throws ISSException {
+        switch (stage) {
+            case VALIDATE:
+                ISSFileWalker.Entry entry = (ISSFileWalker.Entry) element;
+                if (!filter.test(entry.toFile()))
+                    return null;
+                return new ISSImageFileUnit(entry);
+            case PROBE:
+                ((ISSImageFileUnit) element).getImageSize();
+                return element;
+            case HASH:
+                ((ISSImageFileUnit) element).getIdentity();
+                return element;
+            case PHASH:
+                try {
+                    ((ISSImageFileUnit) element).getPerceptualHash();
+                }
+                catch (ISSException e) {
+                    // Not an image which can be decoded. It's still imported.
+                    ISSCore.logger.fine(e.getMessage()+": "+((ISSImageFileUnit) element).getFileRelativePath());
+                }
+                return element;
+            case INDEX:
+                sink.accept((ISSImageFileUnit) element);
+                return element;
+            default:
+                return element;
+        }
+    }
+
+    private Thread newThread(Stage stage, int index, Runnable task) {
+        Thread thread;
+        if (stage.isIOBound() && virtualThreadFactory != null)
+            thread = virtualThreadFactory.newThread(task);
+        else {
+            thread = new Thread(task);
+            thread.setDaemon(true);
+        }
+        thread.setName("ISS-Ingest-"+stage+"-"+index);
+        thread.start();
+        return thread;
+    }
+
+    /** Get {@code Thread.ofVirtual().factory()} if the JVM supports virtual threads. */
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of elements a stage processed successfully. For {@code WALK}, it's the number of
+     * directories listed.
+     *
+     * @param stage the stage
+     * @return the number of processed elements
+     */
+    public long getProcessedCount(Stage stage) {
+        return processedCounts[stage.ordinal()].get();
+    }
+    /**
+     * Get the number of elements a stage failed on.
+     *
+     * @param stage the stage
+     * @return the number of failures
+     */
+    public long getFailedCount(Stage stage) {
+        return failedCounts[stage.ordinal()].get();
+    }
+
+    /**
+     * Get the counters of every stage: processed elements, failures, throughput over the whole run,
+     * the time the workers of that stage were busy, and the time they were blocked by the next stage.
+     *
+     * @return the statistics for logging
+     */
+    public String getStatistics() {
+        double seconds = Math.max(1, (endTime == 0 ? System.nanoTime() : endTime) - startTime) / 1e9;
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("[Elapsed=%.2fs", seconds));
+        for (Stage stage: Stage.values()) {
+            long processed = processedCounts[stage.ordinal()].get();
+            result.append(String.format(",%s={Workers=%d,Processed=%d,Failed=%d,Throughput=%.1f/s,Busy=%.2fs,Blocked=%.2fs}",
+                                        stage, parallelism[stage.ordinal()], processed, failedCounts[stage.ordinal()].get(),
+                                        processed / seconds, busyNanos[stage.ordinal()].get() / 1e9,
+                                        blockedNanos[stage.ordinal()].get() / 1e9));
+        }
+        result.append("]");
+        return result.toString();
+    }
+}
@@ -0,0 +1,508 @@
+package priv.kcl.iss.core;
+
+import java.awt.Dimension;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.function.Consumer;
+
+import priv.kcl.iss.index.ISSRoaringBitmap;
+
+/**
+ * A binary snapshot of the whole model (tag trees and every loaded image), written on clean shutdown
+ * so the next start doesn't parse Tags.json and ImageDetails.json again.<p>
+ * The file is made of these sections, read once from the start to the end:
+ * <p>
+ * <code>header | string offsets | string data | tag nodes | loaded shards | folders | records | tag lists | postings</code>
+ * <p>
+ * Tag nodes are stored in pre-order as (name, number of children), so the trees are rebuilt with a
+ * stack. Folders are stored as (parent, name) with every parent before it's children, and an image
+ * is stored as it's folder and filename, so no folder is repeated in the records. The tags of an image are stored as indexes of tag nodes instead of names, so no tag is looked
+ * up by {@code ISSTagTreeUnit.find(String)} while loading. The posting list of every tag node is stored
+ * as a serialized {@code ISSRoaringBitmap} of record indexes, which are the ordinals of the images once
+ * they're loaded in the stored order.<p>
+ * The header records the length and last-modified time of Tags.json, ImageDetails.json, ImageDetails.bin,
+ * the shard manifest and the tag journal when the snapshot was written. If any of them changed since then, the
+ * snapshot is stale (see {@link #isFresh()}) and the json files should be loaded instead.<p>
+ * Every identity in the snapshot must be saved in the hash cache as well, so the hash cache isn't read
+ * while loading. Only cached identities are written, and an unknown one is {@code ISSContentHash.UNKNOWN}.
+ */
+public class ISSModelSnapshot implements AutoCloseable {
+
+    /** "ISSM" */
+    private static final int MAGIC = 0x4953534D;
+    private static final int VERSION = 4;
+
+    /** The files which the snapshot is built from. */
+    private static final String[] SOURCE_FILENAMES = {
+        ISSCore.TAGS_FILENAME,
+        ISSCore.IMAGE_DETAILS_FILENAME,
+        ISSCore.IMAGE_DETAILS_STORE_FILENAME,
+        ISSCore.SHARD_FOLDER_PATHNAME + "\\" + ISSCatalogShards.MANIFEST_FILENAME,
+        ISSCore.TAG_JOURNAL_FILENAME,
+    };
+    /** Where the lengths and last-modified times of source files start in the header. */
+    private static final int SOURCES_OFFSET = 40;
+    private static final int HEADER_SIZE = SOURCES_OFFSET + 16 * SOURCE_FILENAMES.length;
+    private static final int RECORD_SIZE = 60;
+
+    private static final int FLAG_SHARDS = 1;
+    /** Set if there's no tagtree, so the only root (if any) is the ignored extensions. */
+    private static final int FLAG_NO_TAG_TREE = 2;
+    private static final int FLAG_HAS_SIZE = 1;
+    private static final int FLAG_HAS_PHASH = 2;
+
+
+    /**
+     * Write a snapshot of the model. Remember to save Tags.json and ImageDetails.json (or the shards)
+     * first, since the snapshot is only fresh while they are not changed.
+     *
+     * @param file the snapshot file
+     * @param standardTagTree the tagtree, or {@code null}. Then no image has any tag.
+     * @param ignoredExtension the ignored extensions, or {@code null}
+     * @param images every loaded image
+     * @param loadedShards the names of loaded shards, or {@code null} if shards are not used
+     * @throws IOException thrown if the file can't be written
+     */
+    public static void write(File file, ISSTagTreeUnit standardTagTree, ISSTagTreeUnit ignoredExtension,
+                             Collection<ISSImageFileUnit> images, Collection<String> loadedShards) throws IOException {
+        HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        ArrayList<byte[]> strings = new ArrayList<byte[]>();
+
+        // Tag nodes in pre-order. Only nodes of the tagtree can be tags of an image.
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        IdentityHashMap<ISSTagTreeUnit, Integer> nodeIndexes = new IdentityHashMap<ISSTagTreeUnit, Integer>();
+        int nodeCount = 0;
+        if (standardTagTree != null)
+            nodeCount += writeNodes(standardTagTree, nodes, nodeIndexes, stringIds, strings);
+        if (ignoredExtension != null)
+            nodeCount += writeNodes(ignoredExtension, nodes, null, stringIds, strings);
+
+        ByteArrayOutputStream shards = new ByteArrayOutputStream();
+        if (loadedShards != null) {
+            for (String shardName: loadedShards)
+                writeInt(shards, internString(shardName, stringIds, strings));
+        }
+
+        ByteArrayOutputStream folders = new ByteArrayOutputStream();
+        IdentityHashMap<ISSFolderNode, Integer> folderIndexes = new IdentityHashMap<ISSFolderNode, Integer>();
+        ByteBuffer records = ByteBuffer.allocate(images.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream tagLists = new ByteArrayOutputStream();
+        ArrayList<Integer> tagIndexes = new ArrayList<Integer>();
+        ISSRoaringBitmap[] postings = new ISSRoaringBitmap[nodeIndexes.size()];
+        int recordIndex = 0;
+        for (ISSImageFileUnit ifu: images) {
+            Dimension imageSize = ifu.getKnownImageSize();
+            Long perceptualHash = ifu.getKnownPerceptualHash();
+            records.putInt(writeFolder(ifu.getFolder(), folders, folderIndexes, stringIds, strings));
+            records.putInt(internString(ifu.getFilename(), stringIds, strings));
+            records.putInt(internString(ifu.getAddedTime(), stringIds, strings));
+            records.putInt((imageSize != null ? FLAG_HAS_SIZE : 0) | (perceptualHash != null ? FLAG_HAS_PHASH : 0));
+            records.putInt(imageSize != null ? imageSize.width : ISSImageProbe.UNKNOWN_SIZE);
+            records.putInt(imageSize != null ? imageSize.height : ISSImageProbe.UNKNOWN_SIZE);
+            records.putInt(tagLists.size());
+            records.putLong(ifu.getFileLength());
+            records.putLong(ifu.getFileLastModified());
+            records.putLong(ifu.getSavedIdentity());
+            records.putLong(perceptualHash != null ? perceptualHash : 0);
+
+            tagIndexes.clear();
+            for (ISSTagTreeUnit tag: ifu.getTags()) {
+                Integer index = nodeIndexes.get(tag);
+                if (index == null && standardTagTree != null) {
+                    // Not a node of the tagtree. Find it by path, like ImageDetails.json does.
+                    ISSTagTreeUnit ttu = standardTagTree.findByPath(tag.getAllParentPath());
+                    if (ttu == null)
+                        ttu = standardTagTree.find(tag.getTagName());
+                    index = (ttu == null ? null : nodeIndexes.get(ttu));
+                }
+                if (index != null)
+                    tagIndexes.add(index);
+            }
+            writeVarint(tagLists, tagIndexes.size());
+            for (int index: tagIndexes) {
+                writeVarint(tagLists, index);
+                if (postings[index] == null)
+                    postings[index] = new ISSRoaringBitmap();
+                postings[index].add(recordIndex);
+            }
+            recordIndex++;
+        }
+
+        ByteArrayOutputStream postingLists = new ByteArrayOutputStream();
+        int postingCount = 0;
+        for (ISSRoaringBitmap posting: postings)
+            postingCount += (posting != null ? 1 : 0);
+        writeInt(postingLists, postingCount);
+        for (int index = 0; index < postings.length; index++) {
+            if (postings[index] == null)
+                continue;
+            byte[] bytes = postings[index].runOptimize().toByteArray();
+            writeInt(postingLists, index);
+            writeInt(postingLists, bytes.length);
+            postingLists.write(bytes, 0, bytes.length);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt((loadedShards != null ? FLAG_SHARDS : 0) | (standardTagTree == null ? FLAG_NO_TAG_TREE : 0));
+        header.putInt((standardTagTree != null ? 1 : 0) + (ignoredExtension != null ? 1 : 0));
+        header.putInt(nodeCount).putInt(loadedShards != null ? loadedShards.size() : 0);
+        header.putInt(images.size()).putInt(strings.size()).putInt(folderIndexes.size()).putInt(tagLists.size());
+        for (String sourceFilename: SOURCE_FILENAMES) {
+            File sourceFile = new File(sourceFilename);
+            header.putLong(sourceFile.exists() ? sourceFile.length() : -1).putLong(sourceFile.lastModified());
+        }
+
+        ByteBuffer stringOffsets = ByteBuffer.allocate(4 * (strings.size() + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        int stringOffset = 0;
+        for (byte[] string: strings) {
+            stringOffsets.putInt(stringOffset);
+            stringOffset += string.length;
+        }
+        stringOffsets.putInt(stringOffset);
+
+        ISSInfoFile.write(file, out -> {
+            out.write(header.array());
+            out.write(stringOffsets.array());
+            for (byte[] string: strings)
+                out.write(string);
+            nodes.writeTo(out);
+            shards.writeTo(out);
+            folders.writeTo(out);
+            out.write(records.array());
+            tagLists.writeTo(out);
+            postingLists.writeTo(out);
+        });
+    }
+
+    /**
+     * Open a snapshot. The file is memory-mapped, and only the header is read.
+     *
+     * @param file the snapshot file
+     * @return the opened snapshot
+     * @throws IOException thrown if the file can't be read or is not a snapshot
+     */
+    public static ISSModelSnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot is too large: "+file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                throw new IOException("Not a snapshot: "+file);
+            if (buffer.getInt(4) != VERSION)
+                throw new IOException("Unsupported snapshot version "+buffer.getInt(4)+": "+file);
+            return new ISSModelSnapshot(buffer);
+        }
+    }
+
+
+    private ByteBuffer buffer;
+    private final boolean usesShards;
+    private final boolean hasTagTree;
+    private final int rootCount;
+    private final int nodeCount;
+    private final int shardCount;
+    private final int imageCount;
+    private final int folderCount;
+    private final int tagListsSize;
+
+    /** Every string, decoded by {@link #readTagTrees()}. */
+    private String[] strings;
+    /** Every tag node in pre-order, built by {@link #readTagTrees()}. */
+    private ISSTagTreeUnit[] nodes;
+    private ISSTagTreeUnit standardTagTree;
+    private ISSTagTreeUnit ignoredExtension;
+    private ArrayList<String> loadedShards;
+    /** Every folder, built by {@link #readTagTrees()}. */
+    private ISSFolderNode[] folders;
+    /** Where the records start. */
+    private int recordsOffset;
+
+    private ISSModelSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.usesShards = (buffer.getInt(8) & FLAG_SHARDS) != 0;
+        this.hasTagTree = (buffer.getInt(8) & FLAG_NO_TAG_TREE) == 0;
+        this.rootCount = buffer.getInt(12);
+        this.nodeCount = buffer.getInt(16);
+        this.shardCount = buffer.getInt(20);
+        this.imageCount = buffer.getInt(24);
+        this.folderCount = buffer.getInt(32);
+        this.tagListsSize = buffer.getInt(36);
+    }
+
+    /**
+     * Find out if the source files are the same as when the snapshot was written.
+     * @return {@code false} if any of them changed, so the snapshot is stale
+     */
+    public boolean isFresh() {
+        int offset = SOURCES_OFFSET;
+        for (String sourceFilename: SOURCE_FILENAMES) {
+            File sourceFile = new File(sourceFilename);
+            long length = (sourceFile.exists() ? sourceFile.length() : -1);
+            if (buffer.getLong(offset) != length || buffer.getLong(offset + 8) != sourceFile.lastModified())
+                return false;
+            offset += 16;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of images.
+     * @return the number of images
+     */
+    public int size() {
+        return imageCount;
+    }
+
+    /**
+     * Rebuild the tag trees. Must be called before {@link #readImages(Consumer)}.
+     *
+     * @throws IOException thrown if the snapshot is broken
+     */
+    public void readTagTrees() throws IOException {
+        if (nodes != null)
+            return;
+        try {
+            int stringCount = buffer.getInt(28);
+            int stringOffsetsOffset = HEADER_SIZE;
+            int stringDataOffset = stringOffsetsOffset + 4 * (stringCount + 1);
+            strings = new String[stringCount];
+            ByteBuffer slice = buffer.duplicate();
+            byte[] bytes = new byte[256];
+            for (int id = 0; id < stringCount; id++) {
+                int start = buffer.getInt(stringOffsetsOffset + 4 * id);
+                int length = buffer.getInt(stringOffsetsOffset + 4 * (id + 1)) - start;
+                if (length > bytes.length)
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                slice.position(stringDataOffset + start);
+                slice.get(bytes, 0, length);
+                strings[id] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            int offset = stringDataOffset + buffer.getInt(stringOffsetsOffset + 4 * stringCount);
+
+            // Every node is attached to the last node on the stack which still needs children.
+            nodes = new ISSTagTreeUnit[nodeCount];
+            ISSTagTreeUnit[] roots = new ISSTagTreeUnit[rootCount];
+            int rootIndex = 0;
+            ArrayDeque<ISSTagTreeUnit> parents = new ArrayDeque<ISSTagTreeUnit>();
+            ArrayDeque<int[]> remaining = new ArrayDeque<int[]>();
+            for (int index = 0; index < nodeCount; index++, offset += 8) {
+                ISSTagTreeUnit parent = parents.peek();
+                ISSTagTreeUnit ttu = new ISSTagTreeUnit(parent, strings[buffer.getInt(offset)]);
+                if (parent == null)
+                    roots[rootIndex++] = ttu;
+                else {
+                    parent.append(ttu);
+                    if (--remaining.peek()[0] == 0) {
+                        parents.pop();
+                        remaining.pop();
+                    }
+                }
+                int childCount = buffer.getInt(offset + 4);
+                if (childCount > 0) {
+                    parents.push(ttu);
+                    remaining.push(new int[] {childCount});
+                }
+                nodes[index] = ttu;
+            }
+            standardTagTree = (hasTagTree ? roots[0] : null);
+            ignoredExtension = (rootCount > (hasTagTree ? 1 : 0) ? roots[rootCount - 1] : null);
+
+            if (usesShards) {
+                loadedShards = new ArrayList<String>(shardCount);
+                for (int index = 0; index < shardCount; index++, offset += 4)
+                    loadedShards.add(strings[buffer.getInt(offset)]);
+            }
+
+            folders = new ISSFolderNode[folderCount];
+            for (int index = 0; index < folderCount; index++, offset += 8) {
+                int parent = buffer.getInt(offset);
+                String name = strings[buffer.getInt(offset + 4)];
+                if (parent >= 0)
+                    folders[index] = folders[parent].getChild(name);
+                else
+                    folders[index] = (name.equals(".") ? ISSFolderNode.getRoot() : ISSFolderNode.fromAbsolutePath(name));
+            }
+            recordsOffset = offset;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot is broken: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the rebuilt tagtree.
+     * @return the tagtree, or {@code null} before {@link #readTagTrees()} or if it was not stored
+     */
+    public ISSTagTreeUnit getTagTree() {
+        return standardTagTree;
+    }
+    /**
+     * Get the rebuilt ignored extensions.
+     * @return the ignored extensions, or {@code null} if they were not stored
+     */
+    public ISSTagTreeUnit getIgnoredExtension() {
+        return ignoredExtension;
+    }
+    /**
+     * Get the shards which were loaded.
+     * @return the names of shards, or {@code null} if shards were not used
+     */
+    public ArrayList<String> getLoadedShards() {
+        return loadedShards;
+    }
+
+    /**
+     * Rebuild every image in one pass. The file system is not touched, and the identity is put into
+     * {@code ISSHashCache} so it won't be computed again.
+     *
+     * @param consumer receives every image in the stored order
+     * @throws IOException thrown if the snapshot is broken
+     */
+    public void readImages(Consumer<ISSImageFileUnit> consumer) throws IOException {
+        readTagTrees();
+        int tagListsOffset = recordsOffset + imageCount * RECORD_SIZE;
+        ISSHashCache hashCache = ISSHashCache.getDefault();
+        try {
+            int[] cursor = new int[1];
+            for (int index = 0, offset = recordsOffset; index < imageCount; index++, offset += RECORD_SIZE) {
+                ISSFolderNode folder = folders[buffer.getInt(offset)];
+                String filename = strings[buffer.getInt(offset + 4)];
+                String addedTime = strings[buffer.getInt(offset + 8)];
+                int flags = buffer.getInt(offset + 12);
+                Dimension imageSize = ((flags & FLAG_HAS_SIZE) != 0 ? new Dimension(buffer.getInt(offset + 16), buffer.getInt(offset + 20)) : null);
+                cursor[0] = tagListsOffset + buffer.getInt(offset + 24);
+                long length = buffer.getLong(offset + 28);
+                long lastModified = buffer.getLong(offset + 36);
+                long identity = buffer.getLong(offset + 44);
+                Long perceptualHash = ((flags & FLAG_HAS_PHASH) != 0 ? buffer.getLong(offset + 52) : null);
+
+                int tagCount = readVarint(cursor);
+                ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>(tagCount);
+                for (int i = 0; i < tagCount; i++)
+                    tags.add(nodes[readVarint(cursor)]);
+
+                hashCache.putSaved(folder, filename, length, lastModified, identity);
+                consumer.accept(new ISSImageFileUnit(folder, filename, addedTime, tags, length, lastModified, imageSize, perceptualHash));
+            }
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot is broken: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rebuild the posting list of every tag. The ordinals in them are the indexes of images in the stored
+     * order, see {@link #readImages(Consumer)}.
+     *
+     * @return tag to the ordinals of every image with it
+     * @throws IOException thrown if the snapshot is broken
+     */
+    public HashMap<ISSTagTreeUnit, ISSRoaringBitmap> readPostings() throws IOException {
+        readTagTrees();
+        try {
+            int offset = recordsOffset + imageCount * RECORD_SIZE + tagListsSize;
+            int postingCount = buffer.getInt(offset);
+            offset += 4;
+            HashMap<ISSTagTreeUnit, ISSRoaringBitmap> result = new HashMap<ISSTagTreeUnit, ISSRoaringBitmap>(Math.max(16, postingCount * 4 / 3 + 1));
+            ByteBuffer slice = buffer.duplicate();
+            for (int index = 0; index < postingCount; index++) {
+                ISSTagTreeUnit ttu = nodes[buffer.getInt(offset)];
+                int length = buffer.getInt(offset + 4);
+                slice.limit(offset + 8 + length).position(offset + 8);
+                result.put(ttu, ISSRoaringBitmap.fromByteBuffer(slice));
+                offset += 8 + length;
+            }
+            return result;
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot is broken: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Release the mapped file. The snapshot can't be read anymore.
+     */
+    @Override
+    public void close() {
+        buffer = null;
+    }
+
+
+    private static int writeNodes(ISSTagTreeUnit ttu, ByteArrayOutputStream out, IdentityHashMap<ISSTagTreeUnit, Integer> nodeIndexes,
+                                  HashMap<String, Integer> stringIds, ArrayList<byte[]> strings) {
+        // Index of a node is it's position in pre-order.
+        if (nodeIndexes != null)
+            nodeIndexes.put(ttu, nodeIndexes.size());
+        writeInt(out, internString(ttu.getTagName(), stringIds, strings));
+        writeInt(out, ttu.getChildrenList().size());
+        int count = 1;
+        for (ISSTagTreeUnit child: ttu.getChildrenList())
+            count += writeNodes(child, out, nodeIndexes, stringIds, strings);
+        return count;
+    }
+
+    private static int writeFolder(ISSFolderNode folder, ByteArrayOutputStream out, IdentityHashMap<ISSFolderNode, Integer> folderIndexes,
+                                   HashMap<String, Integer> stringIds, ArrayList<byte[]> strings) {
+        // The parent is written first, so it's always found while reading.
+        Integer index = folderIndexes.get(folder);
+        if (index == null) {
+            int parent = (folder.getParent() == null ? -1 : writeFolder(folder.getParent(), out, folderIndexes, stringIds, strings));
+            index = folderIndexes.size();
+            folderIndexes.put(folder, index);
+            writeInt(out, parent);
+            writeInt(out, internString(folder.getName(), stringIds, strings));
+        }
+        return index;
+    }
+
+    private int readVarint(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        while (true) {
+            int b = buffer.get(cursor[0]++) & 0xFF;
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+            shift += 7;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int internString(String string, HashMap<String, Integer> stringIds, ArrayList<byte[]> strings) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+}
@@ -0,0 +1,70 @@
+package priv.kcl.iss.core;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compute the perceptual hash (dHash) of an image.<p>
+ * The image is shrunk to 9x8 grayscale pixels, and each bit of the 64-bit hash tells whether a pixel
+ * is brighter than the one on it's right. Resized or recompressed copies of the same image get the
+ * same or a very close hash, so the Hamming distance between two hashes tells how alike they look.<p>
+ * The image is decoded with source subsampling, so only about {@value #DECODE_SIZE} pixels per side
+ * are decoded no matter how large the image is.
+ */
+public class ISSPerceptualHash {
+
+    /** The approximate width and height to decode before shrinking. */
+    public static final int DECODE_SIZE = 64;
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    /**
+     * Compute the dHash of an image file.
+     *
+     * @param file the image file
+     * @return the 64-bit perceptual hash
+     * @throws IOException thrown if the image can't be decoded
+     */
+    public static long computeDHash(File file) throws IOException {
+        return computeDHash(ISSImageProbe.readSubsampled(file, DECODE_SIZE));
+    }
+
+    /**
+     * Compute the dHash of a decoded image.
+     *
+     * @param image the image
+     * @return the 64-bit perceptual hash
+     */
+    public static long computeDHash(BufferedImage image) {
+        BufferedImage gray = new BufferedImage(HASH_WIDTH, HASH_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = gray.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, HASH_WIDTH, HASH_HEIGHT, null);
+        g.dispose();
+
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH-1; x++) {
+                int left = gray.getRaster().getSample(x, y, 0);
+                int right = gray.getRaster().getSample(x+1, y, 0);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Get the Hamming distance between two hashes.
+     *
+     * @param hash1 the first hash
+     * @param hash2 the second hash
+     * @return the number of different bits, from 0 to 64
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
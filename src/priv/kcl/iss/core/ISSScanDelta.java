@@ -0,0 +1,87 @@
+package priv.kcl.iss.core;
+
+import java.util.ArrayList;
+
+/**
+ * The difference between two scans of the working folder. Every pathname is a relative pathname
+ * started with ".\" (see {@code ISSImageFileUnit.getFileRelativePath()}).
+ */
+public class ISSScanDelta {
+    private final ArrayList<String> addedFiles = new ArrayList<String>();
+    private final ArrayList<String> modifiedFiles = new ArrayList<String>();
+    private final ArrayList<String> deletedFiles = new ArrayList<String>();
+
+    /** The number of directories that were listed again. */
+    private int listedDirectories = 0;
+    /** The number of directories skipped since they haven't changed. */
+    private int skippedDirectories = 0;
+
+    ISSScanDelta() {
+    }
+
+    void addAdded(String relativePathname) {
+        addedFiles.add(relativePathname);
+    }
+    void addModified(String relativePathname) {
+        modifiedFiles.add(relativePathname);
+    }
+    void addDeleted(String relativePathname) {
+        deletedFiles.add(relativePathname);
+    }
+    void countListedDirectory() {
+        listedDirectories++;
+    }
+    void countSkippedDirectory() {
+        skippedDirectories++;
+    }
+
+    /**
+     * Get the files which are new since the last scan.
+     * @return the relative pathnames of new files
+     */
+    public ArrayList<String> getAddedFiles() {
+        return addedFiles;
+    }
+    /**
+     * Get the files whose length or last-modified time changed since the last scan.
+     * @return the relative pathnames of modified files
+     */
+    public ArrayList<String> getModifiedFiles() {
+        return modifiedFiles;
+    }
+    /**
+     * Get the files which don't exist anymore.
+     * @return the relative pathnames of deleted files
+     */
+    public ArrayList<String> getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    /**
+     * Get the number of directories which had to be listed again.
+     * @return the number of listed directories
+     */
+    public int getListedDirectories() {
+        return listedDirectories;
+    }
+    /**
+     * Get the number of directories skipped since they haven't changed.
+     * @return the number of skipped directories
+     */
+    public int getSkippedDirectories() {
+        return skippedDirectories;
+    }
+
+    /**
+     * Find out if nothing changed since the last scan.
+     * @return {@code true} if there's no added, modified or deleted file
+     */
+    public boolean isEmpty() {
+        return addedFiles.isEmpty() && modifiedFiles.isEmpty() && deletedFiles.isEmpty();
+    }
+
+    public String toString() {
+        return "[Added="+addedFiles.size()+",Modified="+modifiedFiles.size()+",Deleted="+deletedFiles.size()+
+               ",ListedDirectories="+listedDirectories+",SkippedDirectories="+skippedDirectories+"]";
+    }
+}
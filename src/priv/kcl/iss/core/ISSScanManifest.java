@@ -0,0 +1,256 @@
+package priv.kcl.iss.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A compact record of what the working folder looked like at the last scan: the last-modified time
+ * and sub-directories of every directory, and the length and last-modified time of every file.<p>
+ * With this manifest, a rescan only lists the directories whose last-modified time changed. A
+ * directory which hasn't changed isn't listed again: nothing can be added, removed or renamed in it,
+ * so only the files recorded in it are checked by their length and last-modified time (replacing the
+ * content of a file doesn't change the last-modified time of it's directory).
+ */
+public class ISSScanManifest {
+
+    /** The json key of {@code DIRECTORIES}. */
+    public static final String KEY_DIRECTORIES = "DIRECTORIES";
+    /** The json key of {@code MTIME}. */
+    public static final String KEY_MTIME = "MTIME";
+    /** The json key of {@code SUBDIRS}. */
+    public static final String KEY_SUBDIRS = "SUBDIRS";
+    /** The json key of {@code FILES}. */
+    public static final String KEY_FILES = "FILES";
+
+    /** The relative pathname of the working folder itself. */
+    public static final String ROOT_DIRECTORY = ".";
+
+    /**
+     * What one directory looked like at the last scan.
+     */
+    private static class DirectoryRecord {
+        private final long lastModified;
+        private final ArrayList<String> subDirectories = new ArrayList<String>();
+        /** Filename to {length, lastModified}. */
+        private final HashMap<String, long[]> files = new HashMap<String, long[]>();
+
+        DirectoryRecord(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** Relative pathname of directory to its record. */
+    private HashMap<String, DirectoryRecord> directories = new HashMap<String, DirectoryRecord>();
+
+
+    /**
+     * Create an empty manifest. The first rescan with it will report every file as added.
+     */
+    public ISSScanManifest() {
+    }
+
+    /**
+     * Load the manifest from file.
+     *
+     * @param file the manifest file
+     * @return the loaded manifest. If the file doesn't exist or is broken, an empty one is returned
+     */
+    public static ISSScanManifest load(File file) {
+        ISSScanManifest manifest = new ISSScanManifest();
+        if (!file.exists())
+            return manifest;
+
+        try (BufferedReader br = ISSInfoFile.openReader(file)) {
+            JSONObject json = new JSONObject(new JSONTokener(br));
+            JSONObject jsonDirectories = json.getJSONObject(KEY_DIRECTORIES);
+            for (Iterator<String> iterator = jsonDirectories.keys(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                JSONObject jsonDirectory = jsonDirectories.getJSONObject(key);
+                DirectoryRecord record = new DirectoryRecord(jsonDirectory.getLong(KEY_MTIME));
+                jsonDirectory.getJSONArray(KEY_SUBDIRS).forEach(name -> record.subDirectories.add(name.toString()));
+                JSONObject jsonFiles = jsonDirectory.getJSONObject(KEY_FILES);
+                for (Iterator<String> fileIterator = jsonFiles.keys(); fileIterator.hasNext(); ) {
+                    String filename = fileIterator.next();
+                    JSONArray jsonFile = jsonFiles.getJSONArray(filename);
+                    record.files.put(filename, new long[] {jsonFile.getLong(0), jsonFile.getLong(1)});
+                }
+                manifest.directories.put(key, record);
+            }
+        }
+        catch (IOException | JSONException e) {
+            ISSCore.logger.warning("Failed to load scan manifest, a full rescan will be done: "+e.getMessage());
+            manifest.directories.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Save the manifest into file.
+     *
+     * @param file the manifest file
+     * @throws IOException thrown if the file can't be written
+     */
+    public void save(File file) throws IOException {
+        JSONObject jsonDirectories = new JSONObject();
+        for (Map.Entry<String, DirectoryRecord> entry: directories.entrySet()) {
+            DirectoryRecord record = entry.getValue();
+            JSONObject jsonFiles = new JSONObject();
+            for (Map.Entry<String, long[]> fileEntry: record.files.entrySet())
+                jsonFiles.put(fileEntry.getKey(), new JSONArray().put(fileEntry.getValue()[0]).put(fileEntry.getValue()[1]));
+
+            JSONObject jsonDirectory = new JSONObject();
+            jsonDirectory.put(KEY_MTIME, record.lastModified);
+            jsonDirectory.put(KEY_SUBDIRS, new JSONArray(record.subDirectories));
+            jsonDirectory.put(KEY_FILES, jsonFiles);
+            jsonDirectories.put(entry.getKey(), jsonDirectory);
+        }
+        JSONObject json = new JSONObject();
+        json.put(KEY_DIRECTORIES, jsonDirectories);
+
+        ISSInfoFile.writeText(file, json.toString());
+    }
+
+    /**
+     * Find out if this manifest has never recorded any scan.
+     * @return {@code true} if there's no record
+     */
+    public boolean isEmpty() {
+        return directories.isEmpty();
+    }
+
+    /**
+     * Rescan the working folder, skipping every directory which hasn't changed since the last scan.
+     * The manifest is updated to the new state.
+     *
+     * @param workingFolder the working folder
+     * @return the difference since the last scan
+     */
+    public ISSScanDelta rescan(Path workingFolder) {
+        return rescan(workingFolder, false);
+    }
+    /**
+     * Rescan the working folder. The manifest is updated to the new state.
+     *
+     * @param workingFolder the working folder
+     * @param fullRescan if {@code true}, every directory will be listed again even if it hasn't
+     * changed
+     * @return the difference since the last scan
+     */
+    public ISSScanDelta rescan(Path workingFolder, boolean fullRescan) {
+        ISSScanDelta delta = new ISSScanDelta();
+        HashMap<String, DirectoryRecord> newDirectories = new HashMap<String, DirectoryRecord>();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(workingFolder, BasicFileAttributes.class);
+            visit(workingFolder, ROOT_DIRECTORY, attributes.lastModifiedTime().toMillis(), fullRescan, newDirectories, delta);
+        }
+        catch (IOException e) {
+            ISSCore.logger.severe("Failed to read the working folder: "+e.getMessage());
+            reportDeletedTree(ROOT_DIRECTORY, delta);
+        }
+        directories = newDirectories;
+        return delta;
+    }
+
+    /** Visit one directory, then its sub-directories. */
+    private void visit(Path directory, String relativePathname, long lastModified, boolean fullRescan,
+                       HashMap<String, DirectoryRecord> newDirectories, ISSScanDelta delta) {
+        DirectoryRecord oldRecord = directories.get(relativePathname);
+
+        if (!fullRescan && oldRecord != null && oldRecord.lastModified == lastModified) {
+            // Nothing was added, removed or renamed in this directory, so there's no need to list it.
+            // Files edited in place are still found by their own attributes.
+            delta.countSkippedDirectory();
+            DirectoryRecord newRecord = new DirectoryRecord(lastModified);
+            newRecord.subDirectories.addAll(oldRecord.subDirectories);
+            newDirectories.put(relativePathname, newRecord);
+            for (Map.Entry<String, long[]> fileEntry: oldRecord.files.entrySet()) {
+                String name = fileEntry.getKey();
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(directory.resolve(name), BasicFileAttributes.class);
+                    long[] newFile = {attributes.size(), attributes.lastModifiedTime().toMillis()};
+                    newRecord.files.put(name, newFile);
+                    if (fileEntry.getValue()[0] != newFile[0] || fileEntry.getValue()[1] != newFile[1])
+                        delta.addModified(relativePathname + File.separator + name);
+                }
+                catch (IOException e) {
+                    delta.addDeleted(relativePathname + File.separator + name);
+                }
+            }
+            for (String name: oldRecord.subDirectories) {
+                Path subDirectory = directory.resolve(name);
+                String subRelativePathname = relativePathname + File.separator + name;
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(subDirectory, BasicFileAttributes.class);
+                    visit(subDirectory, subRelativePathname, attributes.lastModifiedTime().toMillis(), fullRescan, newDirectories, delta);
+                }
+                catch (IOException e) {
+                    reportDeletedTree(subRelativePathname, delta);
+                }
+            }
+            return;
+        }
+
+        delta.countListedDirectory();
+        DirectoryRecord newRecord = new DirectoryRecord(lastModified);
+        newDirectories.put(relativePathname, newRecord);
+        ArrayList<ISSFileWalker.Entry> subDirectoryEntries = new ArrayList<ISSFileWalker.Entry>();
+
+        for (ISSFileWalker.Entry entry: ISSFileWalker.listDirectory(directory)) {
+            String name = entry.getPath().getFileName().toString();
+            BasicFileAttributes attributes = entry.getAttributes();
+            if (attributes.isDirectory()) {
+                newRecord.subDirectories.add(name);
+                subDirectoryEntries.add(entry);
+                continue;
+            }
+            long[] newFile = {attributes.size(), attributes.lastModifiedTime().toMillis()};
+            newRecord.files.put(name, newFile);
+
+            long[] oldFile = (oldRecord == null ? null : oldRecord.files.get(name));
+            if (oldFile == null)
+                delta.addAdded(relativePathname + File.separator + name);
+            else if (oldFile[0] != newFile[0] || oldFile[1] != newFile[1])
+                delta.addModified(relativePathname + File.separator + name);
+        }
+
+        if (oldRecord != null) {
+            for (String name: oldRecord.files.keySet()) {
+                if (!newRecord.files.containsKey(name))
+                    delta.addDeleted(relativePathname + File.separator + name);
+            }
+            for (String name: oldRecord.subDirectories) {
+                if (!newRecord.subDirectories.contains(name))
+                    reportDeletedTree(relativePathname + File.separator + name, delta);
+            }
+        }
+
+        for (ISSFileWalker.Entry entry: subDirectoryEntries) {
+            visit(entry.getPath(), relativePathname + File.separator + entry.getPath().getFileName(),
+                  entry.getAttributes().lastModifiedTime().toMillis(), fullRescan, newDirectories, delta);
+        }
+    }
+
+    /** Report every file recorded under the given directory as deleted. */
+    private void reportDeletedTree(String relativePathname, ISSScanDelta delta) {
+        DirectoryRecord record = directories.get(relativePathname);
+        if (record == null)
+            return;
+        for (String name: record.files.keySet())
+            delta.addDeleted(relativePathname + File.separator + name);
+        for (String name: record.subDirectories)
+            reportDeletedTree(relativePathname + File.separator + name, delta);
+    }
+}
@@ -0,0 +1,181 @@
+package priv.kcl.iss.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A hash index of every tag in a tagtree, so a tag is found by it's name without searching the whole
+ * tree. Full paths are resolved by the children of each tag instead (see
+ * {@code ISSTagTreeUnit.findByPath(String)}).<p>
+ * The index is owned by the top root of the tree (see {@code ISSTagTreeUnit.find(String)}), built the
+ * first time it's needed, and kept up to date by {@code ISSTagTreeUnit.append} and
+ * {@code ISSTagTreeUnit.remove}.<p>
+ * Tag names are not unique across branches, so a name is mapped to every tag with it. If there's more
+ * than one, the first in pre-order is returned, which is the same tag as searching one by one.<p>
+ * The index also numbers every tag in pre-order, and keeps the number of the last tag under it (an
+ * Euler tour interval). A tag is under another one if it's number is in the interval of the other
+ * one, and every tag under a tag is a contiguous range of the pre-order. Appending or removing a tag
+ * drops the numbers, and the whole tree is numbered again the next time they're needed, since tags
+ * are edited far less often than they're searched.
+ */
+class ISSTagIndex {
+
+    /**
+     * A tag and every tag under it, which are {@code tags[from]} to {@code tags[to]} in pre-order. If
+     * it's numbered, {@code tags} is every tag of the tree, and it's the same array until the tree is
+     * numbered again, so anything aligned with it (like the posting lists of {@code ISSImageSystem})
+     * can be kept until then. The array must not be changed.
+     */
+    static final class Subtree {
+        final ISSTagTreeUnit[] tags;
+        final int from;
+        final int to;
+        final boolean isNumbered;
+
+        Subtree(ISSTagTreeUnit[] tags, int from, int to, boolean isNumbered) {
+            this.tags = tags;
+            this.from = from;
+            this.to = to;
+            this.isNumbered = isNumbered;
+        }
+    }
+
+    /** The tree which this index is owned by. */
+    private final ISSTagTreeUnit topRoot;
+    /** Tag name to every tag with the name. */
+    private final HashMap<String, ArrayList<ISSTagTreeUnit>> tagsByName = new HashMap<String, ArrayList<ISSTagTreeUnit>>();
+    /** Every tag in pre-order. {@code null} if any tag is appended or removed since it was numbered. */
+    private ISSTagTreeUnit[] preOrder;
+
+    /**
+     * Build the index of a tree.
+     * @param topRoot the top root of the tree
+     */
+    ISSTagIndex(ISSTagTreeUnit topRoot) {
+        this.topRoot = topRoot;
+        addSubtree(topRoot);
+    }
+
+    /**
+     * Put a tag and every child of it into the index.
+     * @param ttu the tag
+     */
+    synchronized void addSubtree(ISSTagTreeUnit ttu) {
+        preOrder = null;
+        tagsByName.computeIfAbsent(ttu.getTagName(), name -> new ArrayList<ISSTagTreeUnit>(1)).add(ttu);
+        for (ISSTagTreeUnit child: ttu.getChildrenList())
+            addSubtree(child);
+    }
+
+    /**
+     * Remove a tag and every child of it from the index.
+     * @param ttu the tag
+     */
+    synchronized void removeSubtree(ISSTagTreeUnit ttu) {
+        preOrder = null;
+        ttu.setNumbers(null, -1, -1);
+        ArrayList<ISSTagTreeUnit> namesakes = tagsByName.get(ttu.getTagName());
+        if (namesakes != null) {
+            namesakes.remove(ttu);
+            if (namesakes.isEmpty())
+                tagsByName.remove(ttu.getTagName());
+        }
+        for (ISSTagTreeUnit child: ttu.getChildrenList())
+            removeSubtree(child);
+    }
+
+    /**
+     * Find a tag by it's name.
+     *
+     * @param tagname the name of the tag
+     * @param subtree only tags in this subtree are found
+     * @return the first tag in pre-order, or {@code null} if there's no such tag
+     */
+    synchronized ISSTagTreeUnit find(String tagname, ISSTagTreeUnit subtree) {
+        ArrayList<ISSTagTreeUnit> namesakes = tagsByName.get(tagname);
+        if (namesakes == null)
+            return null;
+        ISSTagTreeUnit result = null;
+        for (ISSTagTreeUnit ttu: namesakes) {
+            if (isInSubtree(ttu, subtree) && (result == null || comparePreOrder(ttu, result) < 0))
+                result = ttu;
+        }
+        return result;
+    }
+
+
+    /**
+     * Find out if a tag is under another one (or the same tag) by their numbers.
+     * @param ttu a tag in this tree
+     * @param ancestor the other tag
+     * @return {@code false} if either tag is not in this tree
+     */
+    synchronized boolean isUnder(ISSTagTreeUnit ttu, ISSTagTreeUnit ancestor) {
+        numberIfNeeded();
+        if (ttu.getNumberedBy() != this || ancestor.getNumberedBy() != this)
+            return false;
+        return ancestor.getPreOrder() <= ttu.getPreOrder() && ttu.getPreOrder() <= ancestor.getSubtreeEnd();
+    }
+    /**
+     * Get a tag and every tag under it, as a range of the pre-order of this tree. Nothing is copied.
+     * @param ttu a tag in this tree
+     * @return the range, or {@code null} if the tag is not in this tree
+     */
+    synchronized Subtree getSubtree(ISSTagTreeUnit ttu) {
+        numberIfNeeded();
+        if (ttu.getNumberedBy() != this)
+            return null;
+        return new Subtree(preOrder, ttu.getPreOrder(), ttu.getSubtreeEnd(), true);
+    }
+
+    private void numberIfNeeded() {
+        if (preOrder != null)
+            return;
+        ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>();
+        number(topRoot, tags);
+        preOrder = tags.toArray(new ISSTagTreeUnit[tags.size()]);
+    }
+    private void number(ISSTagTreeUnit ttu, ArrayList<ISSTagTreeUnit> tags) {
+        int number = tags.size();
+        tags.add(ttu);
+        for (ISSTagTreeUnit child: ttu.getChildrenList())
+            number(child, tags);
+        ttu.setNumbers(this, number, tags.size() - 1);
+    }
+
+    private boolean isInSubtree(ISSTagTreeUnit ttu, ISSTagTreeUnit subtree) {
+        // Every tag in the index is in the whole tree, even if it's root wasn't set when appended.
+        if (subtree == topRoot)
+            return true;
+        // The numbers are only used if they're up to date, so a tree being built isn't numbered again and again.
+        if (preOrder != null && ttu.getNumberedBy() == this && subtree.getNumberedBy() == this)
+            return subtree.getPreOrder() <= ttu.getPreOrder() && ttu.getPreOrder() <= subtree.getSubtreeEnd();
+        for (; ttu != null; ttu = ttu.getRootTree()) {
+            if (ttu == subtree)
+                return true;
+        }
+        return false;
+    }
+
+    /** Compare where two tags are in pre-order. Only called if a name is used by more than one tag. */
+    private int comparePreOrder(ISSTagTreeUnit a, ISSTagTreeUnit b) {
+        if (preOrder != null && a.getNumberedBy() == this && b.getNumberedBy() == this)
+            return Integer.compare(a.getPreOrder(), b.getPreOrder());
+        ArrayList<ISSTagTreeUnit> pathA = pathFromTop(a);
+        ArrayList<ISSTagTreeUnit> pathB = pathFromTop(b);
+        int depth = 1;
+        while (depth < pathA.size() && depth < pathB.size() && pathA.get(depth) == pathB.get(depth))
+            depth++;
+        // An ancestor is before every tag under it.
+        if (depth == pathA.size() || depth == pathB.size())
+            return pathA.size() - pathB.size();
+        ArrayList<ISSTagTreeUnit> siblings = pathA.get(depth - 1).getChildrenList();
+        return siblings.indexOf(pathA.get(depth)) - siblings.indexOf(pathB.get(depth));
+    }
+    private static ArrayList<ISSTagTreeUnit> pathFromTop(ISSTagTreeUnit ttu) {
+        ArrayList<ISSTagTreeUnit> path = new ArrayList<ISSTagTreeUnit>();
+        for (; ttu != null; ttu = ttu.getRootTree())
+            path.add(0, ttu);
+        return path;
+    }
+}
@@ -0,0 +1,379 @@
+package priv.kcl.iss.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal (write-ahead log) of tag edits.<p>
+ * Every tag added or removed is appended as a small record instead of rewriting ImageDetails.json.
+ * Records are written by a background thread in groups: every record appended while the previous group
+ * is being written goes into the next group, and each group is written and synced ({@code fsync}) once.
+ * {@link #sync()} waits until every record appended so far is on disk.<p>
+ * On startup the journal is replayed on top of the last snapshot (ImageDetails.json) by {@link #open(Replayer)}.
+ * When the journal grows past the compaction threshold, the compactor is run on another thread. The
+ * compactor should {@link #rotate()} the journal, write a new snapshot and then {@link #dropRotated()},
+ * see {@code ISSImageSystem.compactTagJournal()}.<p>
+ * Each record is <code>length | crc32 | op | relative pathname | tag path</code>. The tag is stored as it's
+ * full path (records of older versions have the tag name instead). A torn record at the end
+ * (if ISS stopped while writing) is dropped when the journal is opened.
+ */
+public class ISSTagJournal implements AutoCloseable {
+
+    /** A tag is added onto an image. */
+    public static final byte OP_ADD_TAG = 1;
+    /** A tag is removed from an image. */
+    public static final byte OP_REMOVE_TAG = 2;
+
+    /** The default journal size which triggers compaction. */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+    /** How long the writer waits for more records before writing a group. */
+    private static final long GROUP_COMMIT_DELAY_MS = 5;
+
+    /**
+     * Apply a record read from the journal.
+     */
+    @FunctionalInterface
+    public interface Replayer {
+        /**
+         * @param op {@code OP_ADD_TAG} or {@code OP_REMOVE_TAG}
+         * @param relativePathname the relative pathname of the image
+         * @param tagName the full path of the tag, or the name in records of older versions
+         */
+        void apply(byte op, String relativePathname, String tagName);
+    }
+
+
+    private final File file;
+    private final File rotatedFile;
+    private final long compactionThreshold;
+    private final Runnable compactor;
+
+    /** Held while writing the channel, so a group is never split by rotation. Taken before {@code this}. */
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private Thread writer;
+
+    // Guarded by this.
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence = 0;
+    private long durableSequence = 0;
+    private long journalBytes = 0;
+    private boolean compacting = false;
+    private boolean closed = false;
+    private IOException writeFailure;
+
+    /**
+     * Create a journal. Nothing is read or written until {@link #open(Replayer)}.
+     *
+     * @param file the journal file
+     * @param compactionThreshold the journal size which triggers compaction
+     * @param compactor run on another thread when compaction is triggered, may be {@code null}
+     */
+    public ISSTagJournal(File file, long compactionThreshold, Runnable compactor) {
+        this.file = file;
+        this.rotatedFile = new File(file.getPath() + ".old");
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = compactor;
+    }
+
+    /**
+     * Replay the journal (including a rotated one left by an unfinished compaction), then open it for appending.
+     *
+     * @param replayer applies every record in order
+     * @return the number of records replayed
+     * @throws IOException thrown if the journal can't be read or opened
+     */
+    public int open(Replayer replayer) throws IOException {
+        int replayedCount = 0;
+        if (rotatedFile.exists())
+            replayedCount += replay(rotatedFile, replayer);
+        replayedCount += replay(file, replayer);
+
+        synchronized (writeLock) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            synchronized (this) {
+                journalBytes = channel.size();
+            }
+            channel.position(channel.size());
+        }
+        writer = new Thread(this::writeGroups, "ISS-TagJournal");
+        writer.setDaemon(true);
+        writer.start();
+        return replayedCount;
+    }
+
+    /** Read every valid record, and cut off a torn or broken tail. */
+    private int replay(File journalFile, Replayer replayer) throws IOException {
+        if (!journalFile.exists())
+            return 0;
+
+        int replayedCount = 0;
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length <= 0 || length > journalFile.length())
+                    throw new IOException("Broken record length "+length);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    throw new IOException("Checksum mismatch");
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte op = record.readByte();
+                String relativePathname = record.readUTF();
+                String tagName = record.readUTF();
+                replayer.apply(op, relativePathname, tagName);
+                replayedCount++;
+                validLength += 8 + length;
+            }
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Tag journal \""+journalFile+"\" is cut at "+validLength+" bytes: "+
+                                  (e instanceof EOFException ? "torn record" : e.getMessage()));
+            try (FileChannel truncated = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                truncated.truncate(validLength);
+            }
+        }
+        return replayedCount;
+    }
+
+    /**
+     * Append a record. It's written by the next group commit, so this method never waits for the disk.
+     *
+     * @param op {@code OP_ADD_TAG} or {@code OP_REMOVE_TAG}
+     * @param relativePathname the relative pathname of the image
+     * @param tagName the full path of the tag (see {@code ISSTagTreeUnit.getAllParentPath()})
+     * @return the sequence number of the record, which can be waited by {@link #sync()}
+     * @throws IOException thrown if the journal is closed or the last group failed to write
+     */
+    public long append(byte op, String relativePathname, String tagName) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(op);
+        out.writeUTF(relativePathname);
+        out.writeUTF(tagName);
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Tag journal is closed");
+            if (writeFailure != null)
+                throw writeFailure;
+            DataOutputStream record = new DataOutputStream(pending);
+            record.writeInt(bytes.length);
+            record.writeInt((int) crc.getValue());
+            record.write(bytes);
+            appendedSequence++;
+            notifyAll();
+            return appendedSequence;
+        }
+    }
+
+    /**
+     * Wait until every record appended so far is synced to disk.
+     *
+     * @throws IOException thrown if the records failed to write
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            long target = appendedSequence;
+            while (durableSequence < target && writeFailure == null && writer != null && writer.isAlive()) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing tag journal", e);
+                }
+            }
+            if (writeFailure != null)
+                throw writeFailure;
+        }
+    }
+
+    /** The writer thread. Collect records for a short while, then write and sync them as one group. */
+    private void writeGroups() {
+        while (true) {
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0 && closed)
+                    return;
+            }
+            try {
+                Thread.sleep(GROUP_COMMIT_DELAY_MS);
+            }
+            catch (InterruptedException e) {
+                // Closing, write what's left.
+            }
+
+            boolean startCompaction = false;
+            try {
+                flushGroup();
+            }
+            catch (IOException e) {
+                ISSCore.logger.severe("Failed to write tag journal: "+e.getMessage());
+                synchronized (this) {
+                    writeFailure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                if (compactor != null && !compacting && !closed && journalBytes > compactionThreshold) {
+                    compacting = true;
+                    startCompaction = true;
+                }
+            }
+            if (startCompaction) {
+                Thread compaction = new Thread(this::runCompactor, "ISS-TagJournal-Compaction");
+                compaction.setDaemon(true);
+                compaction.start();
+            }
+        }
+    }
+
+    /** Write and sync every pending record. */
+    private void flushGroup() throws IOException {
+        synchronized (writeLock) {
+            byte[] group;
+            long groupSequence;
+            synchronized (this) {
+                if (pending.size() == 0)
+                    return;
+                group = pending.toByteArray();
+                groupSequence = appendedSequence;
+                pending = new ByteArrayOutputStream();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(group);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+
+            synchronized (this) {
+                journalBytes += group.length;
+                durableSequence = groupSequence;
+                notifyAll();
+            }
+        }
+    }
+
+    private void runCompactor() {
+        try {
+            compactor.run();
+        }
+        catch (RuntimeException e) {
+            ISSCore.logger.severe("Failed to compact tag journal: "+e.getMessage());
+        }
+        finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Write every pending record, then move the journal aside and start an empty one. Records appended
+     * after this go into the new journal. Call it while no tag is being edited, then write a snapshot.<p>
+     * If the rotated journal of an unfinished compaction is still there, this journal is appended onto it.
+     *
+     * @throws IOException thrown if the journal can't be moved
+     */
+    public void rotate() throws IOException {
+        synchronized (writeLock) {
+            flushGroup();
+            channel.close();
+            if (rotatedFile.exists()) {
+                try (FileChannel rotated = FileChannel.open(rotatedFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                     FileChannel current = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    current.transferTo(0, current.size(), rotated);
+                    rotated.force(false);
+                }
+                Files.delete(file.toPath());
+            }
+            else
+                Files.move(file.toPath(), rotatedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            synchronized (this) {
+                journalBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Delete the rotated journal. Call it after the snapshot is written.
+     */
+    public void dropRotated() {
+        if (rotatedFile.exists() && !rotatedFile.delete())
+            ISSCore.logger.warning("Failed to delete rotated tag journal \""+rotatedFile+"\"");
+    }
+
+    /**
+     * Get the size of the journal, including records not yet written.
+     * @return the size in bytes
+     */
+    public synchronized long getJournalBytes() {
+        return journalBytes + pending.size();
+    }
+
+    /**
+     * Write every pending record and close the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (writeLock) {
+            if (channel != null) {
+                flushGroup();
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package priv.kcl.iss.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import priv.kcl.iss.index.ISSRoaringBitmap;
+
+/**
+ * A boolean query of tags, like {@code Arknights AND PNG AND NOT diffeyecolor}, run over the posting
+ * lists of an image system by {@code ISSImageSystem.findImages(ISSTagQuery)}.<p>
+ * A query is parsed by {@link #parse(String, ISSTagTreeUnit)} or built by {@link #tag(ISSTagTreeUnit)},
+ * {@link #and(ISSTagQuery...)}, {@link #or(ISSTagQuery...)} and {@link #not(ISSTagQuery)}. An image
+ * matches a tag if it has that tag or any tag under it, so {@code Game} matches images tagged with
+ * {@code Arknights}. The tags under a tag are a contiguous range of the pre-order of the tagtree (see
+ * {@code ISSTagTreeUnit.isUnder(ISSTagTreeUnit)}), and their posting lists are united.
+ * {@link #exactTag(ISSTagTreeUnit)} matches only the tag itself.<p>
+ * The operands of AND are run from the smallest estimated result to the largest, and NOT operands are
+ * subtracted afterwards, so every intersection is as small as it can be. Running stops as soon as the
+ * result is empty, so the rest of the operands are never read. The operands of OR, the posting lists of
+ * a subtree and NOT operands of a large result are united in one pass by
+ * {@code ISSRoaringBitmap.or(ISSRoaringBitmap...)}.
+ */
+public abstract class ISSTagQuery {
+
+    /**
+     * Parse a query. The syntax is:
+     * <ul>
+     * <li>{@code a AND b}, or just {@code a b}: images with both.</li>
+     * <li>{@code a OR b}: images with either. AND is applied before OR.</li>
+     * <li>{@code NOT a}: images without it.</li>
+     * <li>{@code ( ... )}: a group.</li>
+     * <li>{@code =a}: images with the tag itself, not any tag under it.</li>
+     * </ul>
+     * A tag is written as it's name or it's full path (see {@code ISSTagTreeUnit.findByPathOrName(String)}),
+     * and a tag with spaces, parentheses or the name of an operator is written in double quotes.
+     *
+     * @param expression the query
+     * @param standardTagTree the tagtree which tags are found in
+     * @return the query
+     * @throws ISSException thrown if the query is not valid, or a tag is not in the tagtree
+     */
+    public static ISSTagQuery parse(String expression, ISSTagTreeUnit standardTagTree) throws ISSException {
+        Parser parser = new Parser(expression, standardTagTree);
+        ISSTagQuery result = parser.parseOr();
+        if (parser.peek() != null)
+            throw new ISSException("Unexpected \""+parser.peek()+"\" in query: "+expression);
+        return result;
+    }
+
+    /**
+     * Make a query of images with a tag, or any tag under it.
+     * @param tag the tag
+     * @return the query
+     */
+    public static ISSTagQuery tag(ISSTagTreeUnit tag) {
+        return new Term(tag, true);
+    }
+    /**
+     * Make a query of images with the tag itself. Images with only tags under it are not matched.
+     * @param tag the tag
+     * @return the query
+     */
+    public static ISSTagQuery exactTag(ISSTagTreeUnit tag) {
+        return new Term(tag, false);
+    }
+    /**
+     * Make a query of images which match every operand.
+     * @param operands the queries
+     * @return the query
+     */
+    public static ISSTagQuery and(ISSTagQuery... operands) {
+        return (operands.length == 1 ? operands[0] : new And(operands));
+    }
+    /**
+     * Make a query of images which match any operand.
+     * @param operands the queries
+     * @return the query
+     */
+    public static ISSTagQuery or(ISSTagQuery... operands) {
+        return (operands.length == 1 ? operands[0] : new Or(operands));
+    }
+    /**
+     * Make a query of images which don't match the operand.
+     * @param operand the query
+     * @return the query
+     */
+    public static ISSTagQuery not(ISSTagQuery operand) {
+        return (operand instanceof Not ? ((Not) operand).operand : new Not(operand));
+    }
+
+
+    /** Where a query reads posting lists from. */
+    interface Source {
+        /**
+         * Get the posting list of a tag. It's only read.
+         * @return the posting list, or {@code null} if no image has the tag
+         */
+        ISSRoaringBitmap getPosting(ISSTagTreeUnit tag);
+        /**
+         * Get the posting list of every tag of a subtree, aligned with {@code subtree.tags}, so a range of
+         * tags is read without looking up each of them. It's only read.
+         * @return the posting lists, {@code null} (or empty) where no image has the tag
+         */
+        ISSRoaringBitmap[] getPostings(ISSTagIndex.Subtree subtree);
+        /** Get the ordinals of every image. It's only read. */
+        ISSRoaringBitmap getAllOrdinals();
+    }
+
+    ISSTagQuery() {
+    }
+
+    /**
+     * Estimate the number of images matched, without running the query. It's an upper bound.
+     */
+    abstract long estimate(Source source);
+    /**
+     * Run the query. The result may be a posting list of {@code source}, so it must not be changed.
+     */
+    abstract ISSRoaringBitmap evaluate(Source source);
+
+
+    private static final class Term extends ISSTagQuery {
+        private final ISSTagTreeUnit tag;
+        private final boolean includesSubtree;
+
+        Term(ISSTagTreeUnit tag, boolean includesSubtree) {
+            this.tag = tag;
+            this.includesSubtree = includesSubtree;
+        }
+
+        @Override
+        long estimate(Source source) {
+            if (!includesSubtree || tag.isLeaf()) {
+                ISSRoaringBitmap posting = source.getPosting(tag);
+                return (posting == null ? 0 : posting.getCardinality());
+            }
+            long all = source.getAllOrdinals().getCardinality();
+            long result = 0;
+            ISSTagIndex.Subtree subtree = tag.getSubtree();
+            ISSRoaringBitmap[] postings = source.getPostings(subtree);
+            for (int index = subtree.from; index <= subtree.to; index++) {
+                if (postings[index] != null)
+                    result = Math.min(all, result + postings[index].getCardinality());
+            }
+            return result;
+        }
+        @Override
+        ISSRoaringBitmap evaluate(Source source) {
+            if (!includesSubtree || tag.isLeaf()) {
+                ISSRoaringBitmap posting = source.getPosting(tag);
+                return (posting == null ? new ISSRoaringBitmap() : posting);
+            }
+            // Unite the posting lists of the range of tags.
+            ISSTagIndex.Subtree subtree = tag.getSubtree();
+            ISSRoaringBitmap[] postings = source.getPostings(subtree);
+            ArrayList<ISSRoaringBitmap> found = new ArrayList<ISSRoaringBitmap>(subtree.to - subtree.from + 1);
+            for (int index = subtree.from; index <= subtree.to; index++) {
+                if (postings[index] != null && !postings[index].isEmpty())
+                    found.add(postings[index]);
+            }
+            return unite(found);
+        }
+        @Override
+        public String toString() {
+            return (includesSubtree ? "" : "=")+quote(tag.getTagName());
+        }
+    }
+
+    private static final class And extends ISSTagQuery {
+        private final ISSTagQuery[] operands;
+
+        And(ISSTagQuery[] operands) {
+            this.operands = operands.clone();
+        }
+
+        @Override
+        long estimate(Source source) {
+            long result = source.getAllOrdinals().getCardinality();
+            for (ISSTagQuery operand: operands) {
+                if (!(operand instanceof Not))
+                    result = Math.min(result, operand.estimate(source));
+            }
+            return result;
+        }
+        @Override
+        ISSRoaringBitmap evaluate(Source source) {
+            // Intersect from the smallest operand, then subtract from the largest NOT operand.
+            ArrayList<ISSTagQuery> included = new ArrayList<ISSTagQuery>(operands.length);
+            ArrayList<ISSTagQuery> excluded = new ArrayList<ISSTagQuery>();
+            for (ISSTagQuery operand: operands) {
+                if (operand instanceof Not)
+                    excluded.add(((Not) operand).operand);
+                else
+                    included.add(operand);
+            }
+            long[] estimates = sortByEstimate(included, source, false);
+            long[] excludedEstimates = sortByEstimate(excluded, source, true);
+
+            // The result is only changed in place once it's a new bitmap, not a posting list.
+            ISSRoaringBitmap result = (included.isEmpty() ? source.getAllOrdinals() : null);
+            boolean isOwned = false;
+            for (int index = 0; index < included.size(); index++) {
+                if (estimates[index] == 0)
+                    return new ISSRoaringBitmap();
+                ISSRoaringBitmap operandResult = included.get(index).evaluate(source);
+                if (result == null)
+                    result = operandResult;
+                else if (isOwned)
+                    result.retainAll(operandResult);
+                else {
+                    result = ISSRoaringBitmap.and(result, operandResult);
+                    isOwned = true;
+                }
+                if (result.isEmpty())
+                    return result;
+            }
+            // Each subtraction reads the whole result, so NOT operands which are small next to a large
+            // result are united first and subtracted at once.
+            long excludedTotal = 0;
+            for (long estimate: excludedEstimates)
+                excludedTotal += estimate;
+            if (excluded.size() > 1 && result.getCardinality() * excluded.size() > excludedTotal) {
+                ArrayList<ISSRoaringBitmap> found = new ArrayList<ISSRoaringBitmap>(excluded.size());
+                for (ISSTagQuery operand: excluded) {
+                    ISSRoaringBitmap operandResult = operand.evaluate(source);
+                    if (!operandResult.isEmpty())
+                        found.add(operandResult);
+                }
+                ISSRoaringBitmap united = unite(found);
+                if (united.isEmpty())
+                    return result;
+                return (isOwned ? result.removeAll(united) : ISSRoaringBitmap.andNot(result, united));
+            }
+            for (ISSTagQuery operand: excluded) {
+                ISSRoaringBitmap operandResult = operand.evaluate(source);
+                if (operandResult.isEmpty())
+                    continue;
+                if (isOwned)
+                    result.removeAll(operandResult);
+                else {
+                    result = ISSRoaringBitmap.andNot(result, operandResult);
+                    isOwned = true;
+                }
+                if (result.isEmpty())
+                    return result;
+            }
+            return result;
+        }
+        @Override
+        public String toString() {
+            return join(operands, " AND ");
+        }
+    }
+
+    private static final class Or extends ISSTagQuery {
+        private final ISSTagQuery[] operands;
+
+        Or(ISSTagQuery[] operands) {
+            this.operands = operands.clone();
+        }
+
+        @Override
+        long estimate(Source source) {
+            long all = source.getAllOrdinals().getCardinality();
+            long result = 0;
+            for (ISSTagQuery operand: operands)
+                result = Math.min(all, result + operand.estimate(source));
+            return result;
+        }
+        @Override
+        ISSRoaringBitmap evaluate(Source source) {
+            long all = source.getAllOrdinals().getCardinality();
+            ArrayList<ISSRoaringBitmap> found = new ArrayList<ISSRoaringBitmap>(operands.length);
+            for (ISSTagQuery operand: operands) {
+                ISSRoaringBitmap operandResult = operand.evaluate(source);
+                if (operandResult.isEmpty())
+                    continue;
+                // Every image is matched already.
+                if (operandResult.getCardinality() == all)
+                    return operandResult;
+                found.add(operandResult);
+            }
+            return unite(found);
+        }
+        @Override
+        public String toString() {
+            return join(operands, " OR ");
+        }
+    }
+
+    private static final class Not extends ISSTagQuery {
+        private final ISSTagQuery operand;
+
+        Not(ISSTagQuery operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        long estimate(Source source) {
+            // The estimate of the operand is an upper bound, so nothing can be subtracted.
+            return source.getAllOrdinals().getCardinality();
+        }
+        @Override
+        ISSRoaringBitmap evaluate(Source source) {
+            return ISSRoaringBitmap.andNot(source.getAllOrdinals(), operand.evaluate(source));
+        }
+        @Override
+        public String toString() {
+            return "NOT "+operand;
+        }
+    }
+
+
+    /**
+     * Sort queries by their estimates.
+     * @return the sorted estimates
+     */
+    private static long[] sortByEstimate(ArrayList<ISSTagQuery> queries, Source source, boolean descending) {
+        long[] estimates = new long[queries.size()];
+        if (queries.size() < 2) {
+            if (queries.size() == 1)
+                estimates[0] = queries.get(0).estimate(source);
+            return estimates;
+        }
+        ISSTagQuery[] sorted = queries.toArray(new ISSTagQuery[queries.size()]);
+        long[] unsorted = new long[sorted.length];
+        Integer[] order = new Integer[sorted.length];
+        for (int index = 0; index < sorted.length; index++) {
+            unsorted[index] = sorted[index].estimate(source);
+            order[index] = index;
+        }
+        Comparator<Integer> comparator = Comparator.comparingLong(index -> unsorted[index]);
+        Arrays.sort(order, descending ? comparator.reversed() : comparator);
+        queries.clear();
+        for (int index = 0; index < sorted.length; index++) {
+            queries.add(sorted[order[index]]);
+            estimates[index] = unsorted[order[index]];
+        }
+        return estimates;
+    }
+    /**
+     * Unite non-empty bitmaps in one pass. A single bitmap is returned as it is, so it may be a posting list.
+     */
+    private static ISSRoaringBitmap unite(ArrayList<ISSRoaringBitmap> bitmaps) {
+        if (bitmaps.size() < 2)
+            return (bitmaps.isEmpty() ? new ISSRoaringBitmap() : bitmaps.get(0));
+        return ISSRoaringBitmap.or(bitmaps.toArray(new ISSRoaringBitmap[bitmaps.size()]));
+    }
+
+    private static String join(ISSTagQuery[] operands, String operator) {
+        StringBuilder result = new StringBuilder("(");
+        for (int index = 0; index < operands.length; index++)
+            result.append(index == 0 ? "" : operator).append(operands[index]);
+        return result.append(")").toString();
+    }
+    private static String quote(String tagname) {
+        if (tagname.isEmpty() || tagname.matches(".*[\\s()\"].*") || tagname.startsWith("=") || Parser.isOperator(tagname))
+            return "\""+tagname.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+        return tagname;
+    }
+
+
+    /** A recursive descent parser of queries. */
+    private static class Parser {
+        private final String expression;
+        private final ISSTagTreeUnit standardTagTree;
+        private final ArrayList<String> tokens = new ArrayList<String>();
+        /** Whether each token was quoted, so a quoted operator is a tag. */
+        private final ArrayList<Boolean> quoted = new ArrayList<Boolean>();
+        private int position = 0;
+
+        static boolean isOperator(String token) {
+            return token.equals("AND") || token.equals("OR") || token.equals("NOT");
+        }
+
+        Parser(String expression, ISSTagTreeUnit standardTagTree) throws ISSException {
+            this.expression = expression;
+            this.standardTagTree = standardTagTree;
+            int index = 0;
+            while (index < expression.length()) {
+                char c = expression.charAt(index);
+                if (Character.isWhitespace(c))
+                    index++;
+                else if (c == '(' || c == ')') {
+                    addToken(String.valueOf(c), false);
+                    index++;
+                }
+                else if (c == '"') {
+                    StringBuilder token = new StringBuilder();
+                    for (index++; index < expression.length() && expression.charAt(index) != '"'; index++) {
+                        if (expression.charAt(index) == '\\' && index + 1 < expression.length())
+                            index++;
+                        token.append(expression.charAt(index));
+                    }
+                    if (index == expression.length())
+                        throw new ISSException("Unclosed quote in query: "+expression);
+                    addToken(token.toString(), true);
+                    index++;
+                }
+                else {
+                    int start = index;
+                    while (index < expression.length() && !Character.isWhitespace(expression.charAt(index))
+                           && "()\"".indexOf(expression.charAt(index)) == -1)
+                        index++;
+                    addToken(expression.substring(start, index), false);
+                }
+            }
+        }
+        private void addToken(String token, boolean isQuoted) {
+            tokens.add(token);
+            quoted.add(isQuoted);
+        }
+
+        String peek() {
+            return (position < tokens.size() ? tokens.get(position) : null);
+        }
+        private boolean accept(String operator) {
+            if (position < tokens.size() && !quoted.get(position) && tokens.get(position).equals(operator)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+        /** Find out if the next token can start an operand of an implicit AND. */
+        private boolean atOperand() {
+            if (position == tokens.size())
+                return false;
+            if (quoted.get(position))
+                return true;
+            String token = tokens.get(position);
+            return token.equals("(") || token.equals("NOT") || (!token.equals(")") && !isOperator(token));
+        }
+
+        ISSTagQuery parseOr() throws ISSException {
+            ArrayList<ISSTagQuery> operands = new ArrayList<ISSTagQuery>();
+            operands.add(parseAnd());
+            while (accept("OR"))
+                operands.add(parseAnd());
+            return or(operands.toArray(new ISSTagQuery[operands.size()]));
+        }
+        private ISSTagQuery parseAnd() throws ISSException {
+            ArrayList<ISSTagQuery> operands = new ArrayList<ISSTagQuery>();
+            operands.add(parseNot());
+            while (accept("AND") || atOperand())
+                operands.add(parseNot());
+            return and(operands.toArray(new ISSTagQuery[operands.size()]));
+        }
+        private ISSTagQuery parseNot() throws ISSException {
+            if (accept("NOT"))
+                return not(parseNot());
+            if (accept("(")) {
+                ISSTagQuery result = parseOr();
+                if (!accept(")"))
+                    throw new ISSException("Missing \")\" in query: "+expression);
+                return result;
+            }
+            boolean isExact = false;
+            if (position < tokens.size() && !quoted.get(position) && tokens.get(position).startsWith("=")) {
+                // "=name", or "=" followed by a quoted name.
+                isExact = true;
+                if (tokens.get(position).length() > 1)
+                    tokens.set(position, tokens.get(position).substring(1));
+                else
+                    position++;
+            }
+            String token = peek();
+            if (token == null || (!quoted.get(position) && (token.equals(")") || isOperator(token))))
+                throw new ISSException("Missing tag "+(token == null ? "at the end" : "before \""+token+"\"")+" of query: "+expression);
+            position++;
+            ISSTagTreeUnit tag = (standardTagTree == null ? null : standardTagTree.findByPathOrName(token));
+            if (tag == null)
+                throw new ISSException("Unknown tag \""+token+"\" in query: "+expression);
+            return (isExact ? exactTag(tag) : tag(tag));
+        }
+    }
+}
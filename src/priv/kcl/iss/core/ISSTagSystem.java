@@ -171,6 +171,23 @@ public class ISSTagSystem {
         return result;
     }
 
+    /**
+     * Find a standard tag by it's name. The tag is found by the hash index of the tagtree.
+     * @param tagname the name of the tag
+     * @return the tag, or {@code null} if there's no such tag
+     */
+    public ISSTagTreeUnit findStandardTag(String tagname) {
+        return standardTagTree.find(tagname);
+    }
+    /**
+     * Find a standard tag by it's full path, like {@code "TagTree/Hair/HairColor/Blue"}.
+     * @param path the full path of the tag
+     * @return the tag, or {@code null} if there's no such tag
+     */
+    public ISSTagTreeUnit findStandardTagByPath(String path) {
+        return standardTagTree.findByPath(path);
+    }
+
     public ArrayList<ISSTagTreeUnit> listAllIgnoredExtension() {
         ArrayList<ISSTagTreeUnit> result = new ArrayList<ISSTagTreeUnit>();
         ignoredExtension.getChildrenList().stream().forEach(ttu -> result.add(ttu));
@@ -1,6 +1,7 @@
 package priv.kcl.iss.core;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -10,6 +11,23 @@ public class ISSTagTreeUnit {
     private ISSTagTreeUnit rootTree;
     private String tagName;
     private ArrayList<ISSTagTreeUnit> childTree = new ArrayList<ISSTagTreeUnit>();
+    /** The index of every tag in the tree. Only the top root has one, and it's built by the first {@link #find(String)}. */
+    private volatile ISSTagIndex index;
+    /** My children by name, for {@link #findByPath(String)}. {@code null} until it's first needed. */
+    private volatile HashMap<String, ISSTagTreeUnit> childrenByName;
+    /** The interned result of {@link #getAllParentPath()}. {@code null} until it's first needed. */
+    private volatile String allParentPath;
+    /** The index which numbered me, see {@link #isUnder(ISSTagTreeUnit)}. {@code null} if I'm not numbered. */
+    private volatile ISSTagIndex numberedBy;
+    /** My number in pre-order of the whole tree. Only read while {@code numberedBy} is locked. */
+    private int preOrder = -1;
+    /** The number of the last tag under me in pre-order. Only read while {@code numberedBy} is locked. */
+    private int subtreeEnd = -1;
+    /**
+     * If every root of mine has me (or my root) as a child, see {@link #isAttached()}. Kept by
+     * {@code append} and {@code remove}, so it's not found out by walking up the roots.
+     */
+    private volatile boolean attached;
 
     /**
      * Create a leaf.
@@ -20,7 +38,7 @@ public class ISSTagTreeUnit {
     public ISSTagTreeUnit(ISSTagTreeUnit rootTree, String tagname) {
         this.rootTree = rootTree;
         this.tagName = tagname;
-        
+        this.attached = (rootTree == null);
     }
     /**
      * Create a subtree.
@@ -33,6 +51,7 @@ public class ISSTagTreeUnit {
         this.rootTree = rootTree;
         this.tagName = tagname;
         this.childTree = childTree;
+        this.attached = (rootTree == null);
     }
 
     /**
@@ -42,6 +61,12 @@ public class ISSTagTreeUnit {
      */
     public void append(ISSTagTreeUnit child) {
         childTree.add(child);
+        HashMap<String, ISSTagTreeUnit> byName = childrenByName;
+        if (byName != null)
+            byName.putIfAbsent(child.tagName, child);
+        if (attached && child.rootTree == this)
+            setAttached(child, true);
+        addToIndex(child);
     }
     /**
      * Append child leaf into tree.
@@ -49,7 +74,7 @@ public class ISSTagTreeUnit {
      * @param tag the tagname you want to append
      */
     public void append(String tag) {
-        childTree.add(new ISSTagTreeUnit(this, tag));
+        append(new ISSTagTreeUnit(this, tag));
     }
     /**
      * Append child leaf into tree.
@@ -58,7 +83,7 @@ public class ISSTagTreeUnit {
      * @param root specific the root of the child leaf
      */
     public void append(String tag, ISSTagTreeUnit root) {
-        childTree.add(new ISSTagTreeUnit(root, tag));
+        append(new ISSTagTreeUnit(root, tag));
     }
 
     /**
@@ -68,7 +93,25 @@ public class ISSTagTreeUnit {
      * @return {@code true} if there exist the specific child leaf/tree. Otherwise return {@code false}.
      */
     public boolean remove(ISSTagTreeUnit child) {
-        return childTree.remove(child);
+        if (!childTree.remove(child))
+            return false;
+        HashMap<String, ISSTagTreeUnit> byName = childrenByName;
+        if (byName != null && byName.get(child.tagName) == child) {
+            byName.remove(child.tagName);
+            // Another child with the same name takes the place.
+            for (ISSTagTreeUnit sibling: childTree) {
+                if (sibling.tagName.equals(child.tagName)) {
+                    byName.put(sibling.tagName, sibling);
+                    break;
+                }
+            }
+        }
+        if (child.rootTree == this)
+            setAttached(child, false);
+        ISSTagIndex index = getAttachedIndex();
+        if (index != null)
+            index.removeSubtree(child);
+        return true;
     }
     /**
      * Remove child leaf/tree from tree.
@@ -77,17 +120,18 @@ public class ISSTagTreeUnit {
      * @return {@code true} if there exist the specific child leaf/tree. Otherwise return {@code false}.
      */
     public boolean remove(String childTagname) {
-        int currentIndex = -1;
-        if (childTree.get(++currentIndex).getTagName().equals(childTagname)) {
-            childTree.remove(currentIndex);
-            return true;
+        for (ISSTagTreeUnit child: childTree) {
+            if (child.getTagName().equals(childTagname))
+                return remove(child);
         }
         return false;
     }
 
     /**
      * Find leaf by given TagName. This method will search every child and every child of their child, and
-     * so on.
+     * so on.<p>
+     * The tags are found by the hash index of the whole tree, which is built the first time it's needed
+     * and kept up to date by {@code append} and {@code remove}, so nothing is searched one by one.
      * 
      * @param tagname the name you're looking for
      * @return the closest result of searching one by one. If the name no found, return {@code null}
@@ -95,7 +139,8 @@ public class ISSTagTreeUnit {
     public ISSTagTreeUnit find(String tagname) {
         if (tagName.equals(tagname))
             return this;
-        else {
+        if (!isAttached()) {
+            // Not in the index yet, so search one by one.
             ISSTagTreeUnit child = null;
             for (Iterator<ISSTagTreeUnit> iterator = childTree.iterator(); iterator.hasNext(); ) {
                 child = iterator.next().find(tagname);
@@ -104,6 +149,130 @@ public class ISSTagTreeUnit {
             }
             return child;
         }
+        return getIndex().find(tagname, this);
+    }
+    /**
+     * Find leaf by given full path, which is the same as {@link #getAllParentPath()} of the leaf.<p>
+     * The path is resolved one tag at a time from me down by the names of children, so it takes as
+     * many steps as the depth of the leaf, and a tag name used in different branches is never mixed up.
+     * Tag names can contain "/" (like {@code "AC/DC"}), so every "/" is tried as the end of a name.
+     * 
+     * @param path the path started from the top root, like {@code "TagTree/Hair/HairColor/Blue"}
+     * @return the leaf/tree under me (or me). If the path no found, return {@code null}
+     */
+    public ISSTagTreeUnit findByPath(String path) {
+        String myPath = getAllParentPath();
+        if (!path.startsWith(myPath))
+            return null;
+        if (path.length() == myPath.length())
+            return this;
+        if (path.charAt(myPath.length()) != '/')
+            return null;
+        return findBelow(path, myPath.length() + 1);
+    }
+    /**
+     * Find a tag stored by {@code ISSImageFileUnit}. The full path is tried first, and the name (which
+     * older versions stored) after that.
+     * 
+     * @param pathOrName the full path or the name of the tag
+     * @return the leaf/tree under me (or me). If it's no found, return {@code null}
+     */
+    public ISSTagTreeUnit findByPathOrName(String pathOrName) {
+        ISSTagTreeUnit ttu = findByPath(pathOrName);
+        return (ttu != null ? ttu : find(pathOrName));
+    }
+    private ISSTagTreeUnit findBelow(String path, int start) {
+        int end = start;
+        while (true) {
+            end = path.indexOf('/', end);
+            String name = path.substring(start, (end == -1 ? path.length() : end));
+            ISSTagTreeUnit child = getChildrenByName().get(name);
+            if (child != null) {
+                if (end == -1)
+                    return child;
+                ISSTagTreeUnit result = child.findBelow(path, end + 1);
+                if (result != null)
+                    return result;
+                // Only the first child of the name is mapped, so try the others with the same name.
+                for (ISSTagTreeUnit sibling: childTree) {
+                    if (sibling != child && sibling.tagName.equals(name)) {
+                        result = sibling.findBelow(path, end + 1);
+                        if (result != null)
+                            return result;
+                    }
+                }
+            }
+            if (end == -1)
+                return null;
+            end++;
+        }
+    }
+    private HashMap<String, ISSTagTreeUnit> getChildrenByName() {
+        HashMap<String, ISSTagTreeUnit> result = childrenByName;
+        if (result == null) {
+            synchronized (this) {
+                result = childrenByName;
+                if (result == null) {
+                    result = new HashMap<String, ISSTagTreeUnit>(childTree.size() * 4 / 3 + 1);
+                    for (ISSTagTreeUnit child: childTree)
+                        result.putIfAbsent(child.tagName, child);
+                    childrenByName = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private ISSTagTreeUnit getTopRoot() {
+        ISSTagTreeUnit ttu = this;
+        while (ttu.rootTree != null)
+            ttu = ttu.rootTree;
+        return ttu;
+    }
+    private ISSTagIndex getIndex() {
+        ISSTagTreeUnit topRoot = getTopRoot();
+        ISSTagIndex result = topRoot.index;
+        if (result == null) {
+            synchronized (topRoot) {
+                result = topRoot.index;
+                if (result == null) {
+                    result = new ISSTagIndex(topRoot);
+                    topRoot.index = result;
+                }
+            }
+        }
+        return result;
+    }
+    private void addToIndex(ISSTagTreeUnit child) {
+        ISSTagIndex index = getAttachedIndex();
+        if (index != null)
+            index.addSubtree(child);
+    }
+    /**
+     * Get the index of the top root if I'm in it's tree. A subtree which is built before it's appended
+     * (like {@code ISSTagSystem.transformToTTU} does) already knows it's root, but is put into the index
+     * only when it's appended.
+     */
+    private ISSTagIndex getAttachedIndex() {
+        ISSTagIndex index = getTopRoot().index;
+        return (index != null && isAttached() ? index : null);
+    }
+    /** Find out if every root of mine has me (or my root) as a child. */
+    private boolean isAttached() {
+        return attached;
+    }
+    /**
+     * Mark a tag and every tag under it as attached or not. A tag which knows another root than the one
+     * it's under is left as it is, since it's not in the tree of that root.
+     */
+    private static void setAttached(ISSTagTreeUnit ttu, boolean attached) {
+        if (ttu.attached == attached)
+            return;
+        ttu.attached = attached;
+        for (ISSTagTreeUnit child: ttu.childTree) {
+            if (child.rootTree == ttu)
+                setAttached(child, attached);
+        }
     }
 
 
@@ -111,6 +280,67 @@ public class ISSTagTreeUnit {
         return rootTree;
     }
 
+    /**
+     * Find out if I'm under another tag, or the same tag.<p>
+     * Every tag in the tree is numbered in pre-order, with the number of the last tag under it, so it's
+     * one comparison of the numbers instead of walking up the roots. The numbers are kept by the index of
+     * the tree, and built again after tags are appended or removed.
+     * 
+     * @param ancestor the other tag
+     * @return {@code true} if I'm the other tag or any child of it, and so on
+     */
+    public boolean isUnder(ISSTagTreeUnit ancestor) {
+        if (this == ancestor)
+            return true;
+        ISSTagIndex index = numberedBy;
+        if (index == null && isAttached())
+            index = getIndex();
+        if (index != null)
+            return index.isUnder(this, ancestor);
+        // Not in a tree yet, so walk up the roots.
+        for (ISSTagTreeUnit ttu = rootTree; ttu != null; ttu = ttu.rootTree) {
+            if (ttu == ancestor)
+                return true;
+        }
+        return false;
+    }
+    /**
+     * Get me and every tag under me, which are a contiguous range of the pre-order of the tree.
+     * @return the range of the pre-order, started with me. If I'm not in a tree, it's a new array of my
+     *         subtree which isn't numbered
+     */
+    ISSTagIndex.Subtree getSubtree() {
+        ISSTagIndex index = numberedBy;
+        if (index == null && isAttached())
+            index = getIndex();
+        ISSTagIndex.Subtree result = (index == null ? null : index.getSubtree(this));
+        if (result == null) {
+            ArrayList<ISSTagTreeUnit> tags = new ArrayList<ISSTagTreeUnit>();
+            collectSubtree(this, tags);
+            result = new ISSTagIndex.Subtree(tags.toArray(new ISSTagTreeUnit[tags.size()]), 0, tags.size() - 1, false);
+        }
+        return result;
+    }
+    private static void collectSubtree(ISSTagTreeUnit ttu, ArrayList<ISSTagTreeUnit> tags) {
+        tags.add(ttu);
+        for (ISSTagTreeUnit child: ttu.childTree)
+            collectSubtree(child, tags);
+    }
+    void setNumbers(ISSTagIndex numberedBy, int preOrder, int subtreeEnd) {
+        this.preOrder = preOrder;
+        this.subtreeEnd = subtreeEnd;
+        this.numberedBy = numberedBy;
+    }
+    ISSTagIndex getNumberedBy() {
+        return numberedBy;
+    }
+    int getPreOrder() {
+        return preOrder;
+    }
+    int getSubtreeEnd() {
+        return subtreeEnd;
+    }
+
     /**
      * Get the tag name.
      * @return
@@ -148,14 +378,15 @@ public class ISSTagTreeUnit {
      * <code>Hair -> HairColor -> Blue</code>
      * <p>
      * , then the returned string should be {@code "Hair/HairColor/Blue"}.
+     * <p>
+     * The path is built once and interned, since the root and name of a tag never change.
      * @return
      */
     public String getAllParentPath() {
-        ISSTagTreeUnit ttu = rootTree;
-        String result = tagName;
-        while (ttu != null) {
-            result = ttu.tagName+"/"+result;
-            ttu = ttu.rootTree;
+        String result = allParentPath;
+        if (result == null) {
+            result = (rootTree == null ? tagName : rootTree.getAllParentPath()+"/"+tagName).intern();
+            allParentPath = result;
         }
         return result;
     }
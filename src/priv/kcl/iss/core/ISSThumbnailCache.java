@@ -0,0 +1,261 @@
+package priv.kcl.iss.core;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A two-tier cache of image thumbnails.<p>
+ * <b>Disk tier</b>: every thumbnail is generated once and stored under {@code .issinfos\thumbs}. The
+ * filename is the identity (content hash) of the image plus the requested size, so copies of the same
+ * image share one thumbnail, and a changed image gets a new one. An image which can't be hashed has
+ * no identity, so it's thumbnail is generated every time and never cached.<p>
+ * <b>Memory tier</b>: the most recently used thumbnails are kept in an LRU map, which is bounded by the
+ * total bytes of pixels (width x height x 4) instead of the number of thumbnails.<p>
+ * The hit counts and memory use can be got by the getters, or {@link #toString()} for logging.
+ */
+public class ISSThumbnailCache {
+
+    /** The default memory budget of the memory tier. */
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+    /** The format of thumbnails on disk. */
+    private static final String THUMBNAIL_FORMAT = "png";
+
+    /** The cache shared by every {@code ISSImageFileUnit}. */
+    private static ISSThumbnailCache defaultCache;
+
+    /**
+     * Get the cache shared by every {@code ISSImageFileUnit}, stored in {@code ISSCore.THUMBNAIL_FOLDER_PATHNAME}.
+     *
+     * @return the default cache
+     */
+    public static synchronized ISSThumbnailCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new ISSThumbnailCache(new File(ISSCore.THUMBNAIL_FOLDER_PATHNAME), DEFAULT_MAX_MEMORY_BYTES);
+        return defaultCache;
+    }
+
+
+    private final File thumbnailFolder;
+    private final long maxMemoryBytes;
+
+    /** Key to thumbnail, in access order. */
+    private final LinkedHashMap<String, BufferedImage> memoryTier = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a thumbnail cache.
+     *
+     * @param thumbnailFolder where thumbnails are stored on disk
+     * @param maxMemoryBytes the largest total bytes of pixels kept in memory
+     */
+    public ISSThumbnailCache(File thumbnailFolder, long maxMemoryBytes) {
+        this.thumbnailFolder = thumbnailFolder;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Get the thumbnail of an image. The longer side of the thumbnail is {@code maxSize} pixels (or
+     * less, if the image is smaller).
+     *
+     * @param ifu the image
+     * @param maxSize the longest side of the thumbnail
+     * @return the thumbnail
+     * @throws ISSException thrown if the image can't be decoded
+     */
+    public BufferedImage getThumbnail(ISSImageFileUnit ifu, int maxSize) throws ISSException {
+        long identity = ifu.getIdentity();
+        if (identity == 0) {
+            // The file can't be hashed, so it has no key of it's own. Every such image would share
+            // identity 0, so it's never cached.
+            BufferedImage thumbnail = generate(ifu.getFile(), maxSize);
+            synchronized (this) {
+                misses++;
+            }
+            return thumbnail;
+        }
+        String key = ISSContentHash.toHexString(identity) + "_" + maxSize;
+
+        synchronized (this) {
+            BufferedImage thumbnail = memoryTier.get(key);
+            if (thumbnail != null) {
+                memoryHits++;
+                return thumbnail;
+            }
+        }
+
+        // Decode or generate outside the lock, so other thumbnails can still be served meanwhile.
+        File thumbnailFile = new File(thumbnailFolder, key.substring(0, 2) + File.separator + key + "." + THUMBNAIL_FORMAT);
+        BufferedImage thumbnail = null;
+        boolean fromDisk = false;
+        if (thumbnailFile.exists()) {
+            try {
+                thumbnail = ImageIO.read(thumbnailFile);
+                fromDisk = (thumbnail != null);
+            }
+            catch (IOException e) {
+                ISSCore.logger.warning("Broken thumbnail \""+thumbnailFile+"\" will be generated again: "+e.getMessage());
+            }
+        }
+        if (thumbnail == null) {
+            thumbnail = generate(ifu.getFile(), maxSize);
+            store(thumbnail, thumbnailFile);
+        }
+
+        synchronized (this) {
+            if (fromDisk)
+                diskHits++;
+            else
+                misses++;
+            put(key, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /** Decode the image with subsampling, then scale it to fit {@code maxSize}. */
+    private BufferedImage generate(File file, int maxSize) throws ISSException {
+        BufferedImage image;
+        try {
+            image = ISSImageProbe.readSubsampled(file, maxSize);
+        }
+        catch (IOException e) {
+            throw new ISSException("Failed to generate thumbnail", e);
+        }
+        if (image == null)
+            throw new ISSException("Failed to generate thumbnail: can't decode \""+file+"\"");
+
+        double scale = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    /**
+     * Write the thumbnail into a temp file first, so a broken thumbnail is never left behind. Every
+     * writer gets it's own temp file, since two threads may generate the same thumbnail at once.
+     */
+    private void store(BufferedImage thumbnail, File thumbnailFile) {
+        Path tmpFile = null;
+        try {
+            thumbnailFile.getParentFile().mkdirs();
+            tmpFile = Files.createTempFile(thumbnailFile.getParentFile().toPath(), thumbnailFile.getName(), ".tmp");
+            ImageIO.write(thumbnail, THUMBNAIL_FORMAT, tmpFile.toFile());
+            Files.move(tmpFile, thumbnailFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            tmpFile = null;
+        }
+        catch (IOException e) {
+            ISSCore.logger.warning("Failed to store thumbnail \""+thumbnailFile+"\": "+e.getMessage());
+        }
+        finally {
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                }
+                catch (IOException e) {
+                    ISSCore.logger.warning("Failed to delete \""+tmpFile+"\": "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Put into memory tier, then evict the least recently used thumbnails until it fits. */
+    private void put(String key, BufferedImage thumbnail) {
+        BufferedImage old = memoryTier.put(key, thumbnail);
+        if (old != null)
+            memoryBytes -= weigh(old);
+        memoryBytes += weigh(thumbnail);
+
+        for (Iterator<Map.Entry<String, BufferedImage>> iterator = memoryTier.entrySet().iterator();
+             iterator.hasNext() && memoryBytes > maxMemoryBytes; ) {
+            Map.Entry<String, BufferedImage> eldest = iterator.next();
+            if (eldest.getValue() == thumbnail)
+                continue;
+            memoryBytes -= weigh(eldest.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long weigh(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Drop every thumbnail in memory. Thumbnails on disk are kept.
+     */
+    public synchronized void clearMemory() {
+        memoryTier.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * Get the number of thumbnails served from memory.
+     * @return the number of memory hits
+     */
+    public synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+    /**
+     * Get the number of thumbnails read from disk.
+     * @return the number of disk hits
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+    /**
+     * Get the number of thumbnails which had to be generated.
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    /**
+     * Get the number of thumbnails dropped from memory to stay within the budget.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    /**
+     * Get the bytes of pixels currently held in memory.
+     * @return the memory use in bytes
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+    /**
+     * Get the number of thumbnails currently held in memory.
+     * @return the number of thumbnails
+     */
+    public synchronized int getMemoryCount() {
+        return memoryTier.size();
+    }
+
+    public synchronized String toString() {
+        long requests = memoryHits + diskHits + misses;
+        String hitRate = (requests == 0 ? "-" : (100 * (memoryHits + diskHits) / requests) + "%");
+        return "[MemoryHits="+memoryHits+",DiskHits="+diskHits+",Misses="+misses+",HitRate="+hitRate+
+               ",Evictions="+evictions+",Memory="+memoryTier.size()+"/"+ISSCore.formatFileLength(memoryBytes)+
+               "/"+ISSCore.formatFileLength(maxMemoryBytes)+"]";
+    }
+}
@@ -0,0 +1,810 @@
+package priv.kcl.iss.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * An embedded B+tree stored in a file of fixed-size pages.<p>
+ * Keys and values are byte arrays. Keys are compared as unsigned bytes, so UTF-8 strings are sorted by
+ * code point and every key with the same prefix is next to each other (see {@link #scanPrefix(byte[])}).
+ * Leaves are linked from left to right, so a range scan only walks the leaves.<p>
+ * Page 0 is the meta page. Every other page is a leaf or an internal node, and is decoded into a node
+ * object when it's read. The most recently used nodes are kept in an LRU cache of {@code cachePages}
+ * pages, and changed nodes are written back when they're evicted or when {@link #flush()} is called.<p>
+ * Removing a key never merges pages; the space is reused by later inserts into the same page. A large
+ * sorted input should be loaded by {@link #bulkLoad(Iterator)}, which fills every page in one pass.<p>
+ * Changes are only durable after {@link #flush()} or {@link #close()}. Every method is synchronized.
+ */
+public class ISSBPlusTree implements AutoCloseable {
+
+    /** The default size of each page. */
+    public static final int DEFAULT_PAGE_SIZE = 8192;
+    /** The default number of pages kept in memory. */
+    public static final int DEFAULT_CACHE_PAGES = 1024;
+
+    /** "ISSB" */
+    private static final int MAGIC = 0x49535342;
+    private static final int VERSION = 1;
+    private static final int META_PAGE = 0;
+    private static final int NO_PAGE = -1;
+
+    private static final byte TYPE_LEAF = 1;
+    private static final byte TYPE_INTERNAL = 2;
+    /** type, count, next leaf */
+    private static final int LEAF_HEADER_SIZE = 1 + 2 + 4;
+    /** type, count, first child */
+    private static final int INTERNAL_HEADER_SIZE = 1 + 2 + 4;
+    /** How full a page is filled by bulk loading, so a few inserts don't split it immediately. */
+    private static final double BULK_FILL_FACTOR = 0.9;
+
+    /**
+     * A key and it's value.
+     */
+    public static class Entry {
+        private final byte[] key;
+        private final byte[] value;
+
+        /**
+         * @param key the key
+         * @param value the value
+         */
+        public Entry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+        /** @return the key */
+        public byte[] getKey() {
+            return key;
+        }
+        /** @return the value */
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Thrown when a key and it's value are larger than {@link ISSBPlusTree#getMaxEntrySize()}, so they
+     * can't be stored in a page. The tree is not changed.
+     */
+    public static class EntryTooLargeException extends IOException {
+        private static final long serialVersionUID = -2381764210572289346L;
+
+        EntryTooLargeException(int entrySize, int maxEntrySize) {
+            super("Entry of "+entrySize+" bytes is larger than "+maxEntrySize);
+        }
+    }
+
+    /**
+     * Open a tree file with the default page size and cache. A new file is created if it doesn't exist.
+     *
+     * @param file the tree file
+     * @return the opened tree
+     * @throws IOException thrown if the file can't be opened or is not a tree file
+     */
+    public static ISSBPlusTree open(File file) throws IOException {
+        return open(file, DEFAULT_PAGE_SIZE, DEFAULT_CACHE_PAGES);
+    }
+    /**
+     * Open a tree file. A new file is created if it doesn't exist.
+     *
+     * @param file the tree file
+     * @param pageSize the page size of a new file. An existing file keeps it's own page size.
+     * @param cachePages the number of pages kept in memory
+     * @return the opened tree
+     * @throws IOException thrown if the file can't be opened or is not a tree file
+     */
+    public static ISSBPlusTree open(File file, int pageSize, int cachePages) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new ISSBPlusTree(channel, pageSize, cachePages);
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** A decoded page. */
+    private abstract static class Node {
+        final int pageId;
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        boolean dirty;
+
+        Node(int pageId) {
+            this.pageId = pageId;
+        }
+        abstract int encodedSize();
+    }
+    private static class LeafNode extends Node {
+        final ArrayList<byte[]> values = new ArrayList<byte[]>();
+        int nextLeaf = NO_PAGE;
+
+        LeafNode(int pageId) {
+            super(pageId);
+        }
+        @Override
+        int encodedSize() {
+            int size = LEAF_HEADER_SIZE;
+            for (int i = 0; i < keys.size(); i++)
+                size += 4 + keys.get(i).length + values.get(i).length;
+            return size;
+        }
+    }
+    private static class InternalNode extends Node {
+        /** {@code children.get(i)} holds the keys smaller than {@code keys.get(i)}. */
+        final ArrayList<Integer> children = new ArrayList<Integer>();
+
+        InternalNode(int pageId) {
+            super(pageId);
+        }
+        @Override
+        int encodedSize() {
+            int size = INTERNAL_HEADER_SIZE;
+            for (byte[] key: keys)
+                size += 2 + key.length + 4;
+            return size;
+        }
+    }
+    /** The result of splitting a child: the first key of the new right sibling. */
+    private static class Split {
+        final byte[] key;
+        final int rightPage;
+
+        Split(byte[] key, int rightPage) {
+            this.key = key;
+            this.rightPage = rightPage;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int cachePages;
+    private final int maxEntrySize;
+    /** Page id to node, in access order. */
+    private final LinkedHashMap<Integer, Node> cache;
+
+    private int rootPage;
+    private int pageCount;
+    private int height;
+    private long entryCount;
+    private boolean metaDirty;
+
+    private ISSBPlusTree(FileChannel channel, int pageSize, int cachePages) throws IOException {
+        this.channel = channel;
+        this.cachePages = Math.max(16, cachePages);
+        this.cache = new LinkedHashMap<Integer, Node>(this.cachePages * 4 / 3 + 1, 0.75f, true);
+
+        if (channel.size() == 0) {
+            this.pageSize = pageSize;
+            this.pageCount = 1;
+            LeafNode root = newLeaf();
+            this.rootPage = root.pageId;
+            this.height = 1;
+            this.entryCount = 0;
+            this.metaDirty = true;
+        }
+        else {
+            ByteBuffer meta = ByteBuffer.allocate(32);
+            channel.read(meta, META_PAGE);
+            meta.flip();
+            if (meta.remaining() < 32 || meta.getInt() != MAGIC)
+                throw new IOException("Not a B+tree file");
+            int version = meta.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported B+tree version "+version);
+            this.pageSize = meta.getInt();
+            this.rootPage = meta.getInt();
+            this.pageCount = meta.getInt();
+            this.height = meta.getInt();
+            this.entryCount = meta.getLong();
+        }
+        // Every page must be able to hold at least 4 entries, so a split always leaves both halves non-empty.
+        this.maxEntrySize = (this.pageSize - LEAF_HEADER_SIZE) / 4 - 4;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key the key
+     * @return the value, or {@code null} if there's no such key
+     * @throws IOException thrown if a page can't be read
+     */
+    public synchronized byte[] get(byte[] key) throws IOException {
+        LeafNode leaf = findLeaf(key);
+        int index = search(leaf.keys, key);
+        return (index >= 0 ? leaf.values.get(index) : null);
+    }
+
+    /**
+     * Put a key and it's value. The old value is replaced.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the old value, or {@code null} if the key is new
+     * @throws EntryTooLargeException thrown if the key and value are larger than {@link #getMaxEntrySize()}
+     * @throws IOException thrown if a page can't be read or written
+     */
+    public synchronized byte[] put(byte[] key, byte[] value) throws IOException {
+        if (key.length + value.length > maxEntrySize)
+            throw new EntryTooLargeException(key.length + value.length, maxEntrySize);
+
+        byte[][] oldValue = new byte[1][];
+        Split split = insert(rootPage, key, value, oldValue);
+        if (split != null) {
+            InternalNode root = newInternal();
+            root.children.add(rootPage);
+            root.keys.add(split.key);
+            root.children.add(split.rightPage);
+            rootPage = root.pageId;
+            height++;
+            metaDirty = true;
+        }
+        return oldValue[0];
+    }
+
+    private Split insert(int pageId, byte[] key, byte[] value, byte[][] oldValue) throws IOException {
+        Node node = load(pageId);
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            int index = search(leaf.keys, key);
+            if (index >= 0) {
+                oldValue[0] = leaf.values.set(index, value);
+            }
+            else {
+                leaf.keys.add(-index - 1, key);
+                leaf.values.add(-index - 1, value);
+                entryCount++;
+                metaDirty = true;
+            }
+            markDirty(leaf);
+            return (leaf.encodedSize() > pageSize ? splitLeaf(leaf) : null);
+        }
+
+        InternalNode internal = (InternalNode) node;
+        int childIndex = childIndex(internal, key);
+        Split split = insert(internal.children.get(childIndex), key, value, oldValue);
+        if (split == null)
+            return null;
+        internal.keys.add(childIndex, split.key);
+        internal.children.add(childIndex + 1, split.rightPage);
+        markDirty(internal);
+        return (internal.encodedSize() > pageSize ? splitInternal(internal) : null);
+    }
+
+    /**
+     * Split a leaf into two by the size of it's entries, not by their number, since a few large entries
+     * would overflow the half they go into.
+     */
+    private Split splitLeaf(LeafNode leaf) {
+        int[] sizes = new int[leaf.keys.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = 4 + leaf.keys.get(i).length + leaf.values.get(i).length;
+        int middle = splitIndex(sizes, LEAF_HEADER_SIZE, false);
+
+        LeafNode right = newLeaf();
+        right.keys.addAll(leaf.keys.subList(middle, leaf.keys.size()));
+        right.values.addAll(leaf.values.subList(middle, leaf.values.size()));
+        leaf.keys.subList(middle, leaf.keys.size()).clear();
+        leaf.values.subList(middle, leaf.values.size()).clear();
+        right.nextLeaf = leaf.nextLeaf;
+        leaf.nextLeaf = right.pageId;
+        markDirty(leaf);
+        return new Split(right.keys.get(0), right.pageId);
+    }
+
+    /** Split an internal node into two by the size of it's keys. The key at the split goes up to the parent. */
+    private Split splitInternal(InternalNode internal) {
+        int[] sizes = new int[internal.keys.size()];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = 2 + internal.keys.get(i).length + 4;
+        int middle = splitIndex(sizes, INTERNAL_HEADER_SIZE, true);
+
+        InternalNode right = newInternal();
+        byte[] promoted = internal.keys.get(middle);
+        right.keys.addAll(internal.keys.subList(middle + 1, internal.keys.size()));
+        right.children.addAll(internal.children.subList(middle + 1, internal.children.size()));
+        internal.keys.subList(middle, internal.keys.size()).clear();
+        internal.children.subList(middle + 1, internal.children.size()).clear();
+        markDirty(internal);
+        return new Split(promoted, right.pageId);
+    }
+
+    /**
+     * Find where to split a node, so both halves hold about the same number of bytes and fit in a page.
+     * Since no entry is larger than a quarter of a page, such an index always exists.
+     *
+     * @param sizes the encoded size of every entry
+     * @param headerSize the size of the header of each half
+     * @param promote {@code true} if the entry at the index goes up to the parent instead of into the right half
+     * @return the first entry of the right half, or the promoted entry. Both halves are never empty.
+     */
+    private int splitIndex(int[] sizes, int headerSize, boolean promote) {
+        int total = 0;
+        for (int size: sizes)
+            total += size;
+        int middle = 1;
+        int leftSize = sizes[0];
+        while (middle < sizes.length - (promote ? 2 : 1) && leftSize + sizes[middle] / 2 < total / 2) {
+            leftSize += sizes[middle];
+            middle++;
+        }
+        int rightSize = total - leftSize - (promote ? sizes[middle] : 0);
+        if (headerSize + leftSize > pageSize || headerSize + rightSize > pageSize)
+            throw new IllegalStateException("Can't split a node of "+sizes.length+" entries and "+total+" bytes into two pages");
+        return middle;
+    }
+
+    /**
+     * Remove a key. Pages are not merged.
+     *
+     * @param key the key
+     * @return the removed value, or {@code null} if there's no such key
+     * @throws IOException thrown if a page can't be read
+     */
+    public synchronized byte[] remove(byte[] key) throws IOException {
+        LeafNode leaf = findLeaf(key);
+        int index = search(leaf.keys, key);
+        if (index < 0)
+            return null;
+        leaf.keys.remove(index);
+        byte[] value = leaf.values.remove(index);
+        entryCount--;
+        metaDirty = true;
+        markDirty(leaf);
+        return value;
+    }
+
+    /**
+     * Get every entry whose key is between {@code fromKey} (inclusive) and {@code toKey} (exclusive), in order.
+     * The tree must not be changed while the iterator is used.
+     *
+     * @param fromKey the smallest key, or {@code null} to start from the first key
+     * @param toKey the key to stop at, or {@code null} to scan to the last key
+     * @return the iterator of entries
+     * @throws IOException thrown if a page can't be read
+     */
+    public synchronized Iterator<Entry> scan(byte[] fromKey, byte[] toKey) throws IOException {
+        LeafNode leaf = (fromKey == null ? findFirstLeaf() : findLeaf(fromKey));
+        int index = 0;
+        if (fromKey != null) {
+            index = search(leaf.keys, fromKey);
+            if (index < 0)
+                index = -index - 1;
+        }
+        return new ScanIterator(leaf, index, key -> toKey != null && compare(key, toKey) >= 0);
+    }
+    /**
+     * Get every entry whose key starts with {@code prefix}, in order.
+     * The tree must not be changed while the iterator is used.
+     *
+     * @param prefix the prefix of keys
+     * @return the iterator of entries
+     * @throws IOException thrown if a page can't be read
+     */
+    public synchronized Iterator<Entry> scanPrefix(byte[] prefix) throws IOException {
+        LeafNode leaf = findLeaf(prefix);
+        int index = search(leaf.keys, prefix);
+        if (index < 0)
+            index = -index - 1;
+        return new ScanIterator(leaf, index, key -> !startsWith(key, prefix));
+    }
+
+    /** Walks the leaf chain until {@code stop} says so. */
+    private class ScanIterator implements Iterator<Entry> {
+        private LeafNode leaf;
+        private int index;
+        private final Predicate<byte[]> stop;
+        private Entry next;
+
+        ScanIterator(LeafNode leaf, int index, Predicate<byte[]> stop) {
+            this.leaf = leaf;
+            this.index = index;
+            this.stop = stop;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            synchronized (ISSBPlusTree.this) {
+                while (leaf != null && index >= leaf.keys.size()) {
+                    try {
+                        leaf = (leaf.nextLeaf == NO_PAGE ? null : (LeafNode) load(leaf.nextLeaf));
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    index = 0;
+                }
+                if (leaf == null)
+                    return;
+                byte[] key = leaf.keys.get(index);
+                if (stop.test(key)) {
+                    leaf = null;
+                    return;
+                }
+                next = new Entry(key, leaf.values.get(index));
+                index++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            Entry result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /**
+     * Load a sorted stream of entries into an empty tree. Pages are filled one by one and written
+     * straight away, then the internal levels are built on top of them, so only one page of each level
+     * is held in memory.
+     *
+     * @param sortedEntries entries with strictly increasing keys
+     * @return the number of entries loaded
+     * @throws EntryTooLargeException thrown if an entry is larger than {@link #getMaxEntrySize()}. The
+     *         tree is left empty.
+     * @throws IOException thrown if a page can't be written
+     * @throws IllegalStateException thrown if the tree is not empty
+     * @throws IllegalArgumentException thrown if the keys are not strictly increasing. The tree is left empty.
+     */
+    public synchronized long bulkLoad(Iterator<Entry> sortedEntries) throws IOException {
+        if (entryCount != 0)
+            throw new IllegalStateException("Bulk loading needs an empty tree");
+        // Drop the empty root, every page is written again.
+        cache.clear();
+        pageCount = 1;
+        int fillSize = (int) (pageSize * BULK_FILL_FACTOR);
+
+        // The first key and page of every node in the level being built.
+        ArrayList<byte[]> levelKeys = new ArrayList<byte[]>();
+        ArrayList<Integer> levelPages = new ArrayList<Integer>();
+
+        LeafNode leaf = newLeaf();
+        int leafSize = LEAF_HEADER_SIZE;
+        byte[] lastKey = null;
+        long loadedCount = 0;
+        while (sortedEntries.hasNext()) {
+            Entry entry = sortedEntries.next();
+            int entrySize = 4 + entry.key.length + entry.value.length;
+            if (entry.key.length + entry.value.length > maxEntrySize) {
+                clear();
+                throw new EntryTooLargeException(entry.key.length + entry.value.length, maxEntrySize);
+            }
+            if (lastKey != null && compare(lastKey, entry.key) >= 0) {
+                clear();
+                throw new IllegalArgumentException("Keys of bulk loading must be strictly increasing");
+            }
+            lastKey = entry.key;
+
+            if (leafSize + entrySize > fillSize && !leaf.keys.isEmpty()) {
+                LeafNode nextLeaf = newLeaf();
+                leaf.nextLeaf = nextLeaf.pageId;
+                levelKeys.add(leaf.keys.get(0));
+                levelPages.add(leaf.pageId);
+                writeNode(leaf);
+                cache.remove(leaf.pageId);
+                leaf = nextLeaf;
+                leafSize = LEAF_HEADER_SIZE;
+            }
+            leaf.keys.add(entry.key);
+            leaf.values.add(entry.value);
+            leafSize += entrySize;
+            loadedCount++;
+        }
+        levelKeys.add(leaf.keys.isEmpty() ? new byte[0] : leaf.keys.get(0));
+        levelPages.add(leaf.pageId);
+        writeNode(leaf);
+        cache.remove(leaf.pageId);
+
+        int levels = 1;
+        while (levelPages.size() > 1) {
+            ArrayList<byte[]> parentKeys = new ArrayList<byte[]>();
+            ArrayList<Integer> parentPages = new ArrayList<Integer>();
+            InternalNode internal = null;
+            int internalSize = 0;
+            for (int i = 0; i < levelPages.size(); i++) {
+                int keySize = 2 + levelKeys.get(i).length + 4;
+                if (internal == null || internalSize + keySize > fillSize) {
+                    if (internal != null) {
+                        writeNode(internal);
+                        cache.remove(internal.pageId);
+                    }
+                    internal = newInternal();
+                    internal.children.add(levelPages.get(i));
+                    internalSize = INTERNAL_HEADER_SIZE;
+                    parentKeys.add(levelKeys.get(i));
+                    parentPages.add(internal.pageId);
+                    continue;
+                }
+                internal.keys.add(levelKeys.get(i));
+                internal.children.add(levelPages.get(i));
+                internalSize += keySize;
+            }
+            writeNode(internal);
+            cache.remove(internal.pageId);
+            levelKeys = parentKeys;
+            levelPages = parentPages;
+            levels++;
+        }
+
+        rootPage = levelPages.get(0);
+        height = levels;
+        entryCount = loadedCount;
+        metaDirty = true;
+        return loadedCount;
+    }
+
+    /**
+     * Get the number of entries.
+     * @return the number of entries
+     */
+    public synchronized long size() {
+        return entryCount;
+    }
+    /**
+     * Get the number of levels, including the leaves.
+     * @return the height
+     */
+    public synchronized int getHeight() {
+        return height;
+    }
+    /**
+     * Get the largest total bytes of a key and it's value.
+     * @return the largest entry size
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Write every changed page and the meta page, then force them to disk.
+     *
+     * @throws IOException thrown if a page can't be written
+     */
+    public synchronized void flush() throws IOException {
+        for (Node node: cache.values()) {
+            if (node.dirty)
+                writeNode(node);
+        }
+        if (metaDirty) {
+            ByteBuffer meta = ByteBuffer.allocate(32);
+            meta.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(rootPage).putInt(pageCount).putInt(height).putLong(entryCount);
+            meta.flip();
+            while (meta.hasRemaining())
+                channel.write(meta, (long) META_PAGE * pageSize + meta.position());
+            metaDirty = false;
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        try {
+            flush();
+        }
+        finally {
+            cache.clear();
+            channel.close();
+        }
+    }
+
+
+    private LeafNode findLeaf(byte[] key) throws IOException {
+        Node node = load(rootPage);
+        while (node instanceof InternalNode) {
+            InternalNode internal = (InternalNode) node;
+            node = load(internal.children.get(childIndex(internal, key)));
+        }
+        return (LeafNode) node;
+    }
+    private LeafNode findFirstLeaf() throws IOException {
+        Node node = load(rootPage);
+        while (node instanceof InternalNode)
+            node = load(((InternalNode) node).children.get(0));
+        return (LeafNode) node;
+    }
+
+    /** The child which may contain {@code key}: the number of keys which are not larger than it. */
+    private static int childIndex(InternalNode internal, byte[] key) {
+        int low = 0;
+        int high = internal.keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(internal.keys.get(middle), key) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /** Binary search like {@code Collections.binarySearch}. */
+    private static int search(ArrayList<byte[]> keys, byte[] key) {
+        int low = 0;
+        int high = keys.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = compare(keys.get(middle), key);
+            if (result < 0)
+                low = middle + 1;
+            else if (result > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compare two keys as unsigned bytes.
+     *
+     * @param a a key
+     * @param b another key
+     * @return negative, zero or positive like {@code Comparator}
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (result != 0)
+                return result;
+        }
+        return a.length - b.length;
+    }
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Drop every page and start again with an empty root, like a new file. */
+    private void clear() {
+        cache.clear();
+        pageCount = 1;
+        LeafNode root = newLeaf();
+        rootPage = root.pageId;
+        height = 1;
+        entryCount = 0;
+        metaDirty = true;
+    }
+
+    private LeafNode newLeaf() {
+        LeafNode leaf = new LeafNode(pageCount++);
+        metaDirty = true;
+        markDirty(leaf);
+        return leaf;
+    }
+    private InternalNode newInternal() {
+        InternalNode internal = new InternalNode(pageCount++);
+        metaDirty = true;
+        markDirty(internal);
+        return internal;
+    }
+
+    /** Mark a node as changed. It's put back into the cache in case it was evicted while being used. */
+    private void markDirty(Node node) {
+        node.dirty = true;
+        cache.put(node.pageId, node);
+        evict(node.pageId);
+    }
+
+    private Node load(int pageId) throws IOException {
+        Node node = cache.get(pageId);
+        if (node != null)
+            return node;
+
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        long position = (long) pageId * pageSize;
+        while (page.hasRemaining()) {
+            if (channel.read(page, position + page.position()) < 0)
+                throw new IOException("Page "+pageId+" is beyond the end of file");
+        }
+        page.flip();
+        node = decode(pageId, page);
+        cache.put(pageId, node);
+        evict(pageId);
+        return node;
+    }
+
+    /** Write back and drop the least recently used pages until the cache fits. */
+    private void evict(int keepPageId) {
+        if (cache.size() <= cachePages)
+            return;
+        for (Iterator<Map.Entry<Integer, Node>> iterator = cache.entrySet().iterator();
+             iterator.hasNext() && cache.size() > cachePages; ) {
+            Node eldest = iterator.next().getValue();
+            if (eldest.pageId == keepPageId)
+                continue;
+            if (eldest.dirty) {
+                try {
+                    writeNode(eldest);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            iterator.remove();
+        }
+    }
+
+    private Node decode(int pageId, ByteBuffer page) throws IOException {
+        byte type = page.get();
+        int count = page.getShort() & 0xFFFF;
+        if (type == TYPE_LEAF) {
+            LeafNode leaf = new LeafNode(pageId);
+            leaf.nextLeaf = page.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[page.getShort() & 0xFFFF];
+                page.get(key);
+                byte[] value = new byte[page.getShort() & 0xFFFF];
+                page.get(value);
+                leaf.keys.add(key);
+                leaf.values.add(value);
+            }
+            return leaf;
+        }
+        if (type == TYPE_INTERNAL) {
+            InternalNode internal = new InternalNode(pageId);
+            internal.children.add(page.getInt());
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[page.getShort() & 0xFFFF];
+                page.get(key);
+                internal.keys.add(key);
+                internal.children.add(page.getInt());
+            }
+            return internal;
+        }
+        throw new IOException("Broken page "+pageId+" of type "+type);
+    }
+
+    private void writeNode(Node node) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            page.put(TYPE_LEAF).putShort((short) leaf.keys.size()).putInt(leaf.nextLeaf);
+            for (int i = 0; i < leaf.keys.size(); i++) {
+                page.putShort((short) leaf.keys.get(i).length).put(leaf.keys.get(i));
+                page.putShort((short) leaf.values.get(i).length).put(leaf.values.get(i));
+            }
+        }
+        else {
+            InternalNode internal = (InternalNode) node;
+            page.put(TYPE_INTERNAL).putShort((short) internal.keys.size()).putInt(internal.children.get(0));
+            for (int i = 0; i < internal.keys.size(); i++)
+                page.putShort((short) internal.keys.get(i).length).put(internal.keys.get(i)).putInt(internal.children.get(i + 1));
+        }
+        page.clear();
+        long position = (long) node.pageId * pageSize;
+        while (page.hasRemaining())
+            channel.write(page, position + page.position());
+        node.dirty = false;
+    }
+}
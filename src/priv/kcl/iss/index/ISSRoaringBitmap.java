@@ -0,0 +1,1133 @@
+package priv.kcl.iss.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, used for posting lists of image ordinals.<p>
+ * Ints are split by their high 16 bits into containers of 65536 values, and each container is kept in
+ * one of three forms:
+ * <ul>
+ * <li><b>array</b>: a sorted {@code char[]}, for up to {@value #ARRAY_MAX} values.</li>
+ * <li><b>bitmap</b>: 1024 {@code long}s (8 KiB), for more values than an array holds.</li>
+ * <li><b>run</b>: pairs of (start, length - 1), for values in long consecutive ranges. Runs are only
+ * made by {@link #runOptimize()}, and a run container turns into one of the other forms when it's
+ * changed.</li>
+ * </ul>
+ * This is the layout of Roaring bitmaps, but the serialized form (see {@link #toByteArray()}) is it's own
+ * and not compatible with other implementations. It's not thread-safe.
+ */
+public class ISSRoaringBitmap {
+
+    /** The most values an array container holds. */
+    public static final int ARRAY_MAX = 4096;
+
+    /**
+     * If an array is this many times larger than the other one, it's searched by galloping instead of
+     * being merged with the other one.
+     */
+    private static final int GALLOP_RATIO = 32;
+
+    private static final byte TYPE_ARRAY = 1;
+    private static final byte TYPE_BITMAP = 2;
+    private static final byte TYPE_RUN = 3;
+
+    /**
+     * Create a bitmap of ints.
+     * @param values the ints, in any order
+     * @return the bitmap
+     */
+    public static ISSRoaringBitmap of(int... values) {
+        ISSRoaringBitmap result = new ISSRoaringBitmap();
+        for (int value: values)
+            result.add(value);
+        return result;
+    }
+
+    /**
+     * Get the ints in both bitmaps.
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return a new bitmap
+     */
+    public static ISSRoaringBitmap and(ISSRoaringBitmap a, ISSRoaringBitmap b) {
+        ISSRoaringBitmap result = new ISSRoaringBitmap(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j])
+                i++;
+            else if (a.keys[i] > b.keys[j])
+                j++;
+            else {
+                Container container = a.containers[i].and(b.containers[j]);
+                if (container.cardinality() > 0)
+                    result.append(a.keys[i], container);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    /**
+     * Get the ints in either bitmap.
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return a new bitmap
+     */
+    public static ISSRoaringBitmap or(ISSRoaringBitmap a, ISSRoaringBitmap b) {
+        ISSRoaringBitmap result = new ISSRoaringBitmap(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.containers[i].copy());
+                i++;
+            }
+            else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.append(b.keys[j], b.containers[j].copy());
+                j++;
+            }
+            else {
+                result.append(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+    /**
+     * Get the ints in any of the bitmaps. The containers of each key are united at once, so a union of
+     * many bitmaps doesn't copy it's result once for every bitmap like a chain of {@link #or(ISSRoaringBitmap, ISSRoaringBitmap)}.
+     * @param bitmaps the bitmaps
+     * @return a new bitmap
+     */
+    public static ISSRoaringBitmap or(ISSRoaringBitmap... bitmaps) {
+        int capacity = 0;
+        for (ISSRoaringBitmap bitmap: bitmaps)
+            capacity = Math.max(capacity, bitmap.size);
+        ISSRoaringBitmap result = new ISSRoaringBitmap(capacity);
+        int[] positions = new int[bitmaps.length];
+        Container[] sameKey = new Container[bitmaps.length];
+        while (true) {
+            int high = Character.MAX_VALUE + 1;
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (positions[i] < bitmaps[i].size)
+                    high = Math.min(high, bitmaps[i].keys[positions[i]]);
+            }
+            if (high > Character.MAX_VALUE)
+                return result;
+            int count = 0;
+            int cardinality = 0;
+            boolean isArrays = true;
+            for (int i = 0; i < bitmaps.length; i++) {
+                if (positions[i] < bitmaps[i].size && bitmaps[i].keys[positions[i]] == high) {
+                    Container container = bitmaps[i].containers[positions[i]++];
+                    sameKey[count++] = container;
+                    cardinality += container.cardinality();
+                    isArrays &= container instanceof ArrayContainer;
+                }
+            }
+            result.append((char) high, unite(sameKey, count, cardinality, isArrays));
+        }
+    }
+    /**
+     * Unite containers of the same key. Two arrays which fit in an array container are merged, and
+     * anything else is set into one bitmap of words.
+     */
+    private static Container unite(Container[] containers, int count, int cardinality, boolean isArrays) {
+        if (count == 1)
+            return containers[0].copy();
+        if (count == 2 && isArrays && cardinality <= ARRAY_MAX)
+            return containers[0].or(containers[1]);
+        long[] words = new long[1024];
+        for (int i = 0; i < count; i++)
+            containers[i].orInto(words);
+        return BitmapContainer.fromWords(words);
+    }
+    /**
+     * Get the ints in the first bitmap but not in the second one.
+     * @param a the bitmap
+     * @param b the ints to leave out
+     * @return a new bitmap
+     */
+    public static ISSRoaringBitmap andNot(ISSRoaringBitmap a, ISSRoaringBitmap b) {
+        ISSRoaringBitmap result = new ISSRoaringBitmap(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i])
+                j++;
+            Container container = (j < b.size && b.keys[j] == a.keys[i] ? a.containers[i].andNot(b.containers[j]) : a.containers[i].copy());
+            if (container.cardinality() > 0)
+                result.append(a.keys[i], container);
+        }
+        return result;
+    }
+
+    /**
+     * Read a bitmap written by {@link #toByteArray()}. The position of the buffer is moved to the end of it.
+     * @param buffer the buffer
+     * @return the bitmap
+     * @throws IllegalArgumentException thrown if the bytes are not a bitmap
+     */
+    public static ISSRoaringBitmap fromByteBuffer(ByteBuffer buffer) {
+        ByteBuffer in = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        try {
+            int size = in.getInt();
+            if (size < 0 || size > 65536)
+                throw new IllegalArgumentException("Bad container count "+size);
+            ISSRoaringBitmap result = new ISSRoaringBitmap(size);
+            for (int index = 0; index < size; index++) {
+                char key = in.getChar();
+                byte type = in.get();
+                int count = in.getInt();
+                Container container;
+                if (type == TYPE_ARRAY) {
+                    char[] values = new char[count];
+                    in.asCharBuffer().get(values);
+                    in.position(in.position() + 2 * count);
+                    container = new ArrayContainer(values, count);
+                }
+                else if (type == TYPE_BITMAP) {
+                    long[] words = new long[1024];
+                    in.asLongBuffer().get(words);
+                    in.position(in.position() + 8 * words.length);
+                    container = new BitmapContainer(words, count);
+                }
+                else if (type == TYPE_RUN) {
+                    char[] runs = new char[2 * count];
+                    in.asCharBuffer().get(runs);
+                    in.position(in.position() + 4 * count);
+                    container = new RunContainer(runs, count);
+                }
+                else
+                    throw new IllegalArgumentException("Bad container type "+type);
+                if (index > 0 && key <= result.keys[index - 1])
+                    throw new IllegalArgumentException("Containers are out of order");
+                result.append(key, container);
+            }
+            buffer.position(buffer.position() + in.position());
+            return result;
+        }
+        catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Bitmap is truncated", e);
+        }
+    }
+
+
+    /** The high 16 bits of each container, sorted. */
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    /**
+     * Create an empty bitmap.
+     */
+    public ISSRoaringBitmap() {
+        this(4);
+    }
+    private ISSRoaringBitmap(int capacity) {
+        keys = new char[Math.max(capacity, 1)];
+        containers = new Container[keys.length];
+    }
+
+    /**
+     * Add an int.
+     * @param value a non-negative int
+     * @return {@code false} if it's already in the bitmap
+     */
+    public boolean add(int value) {
+        checkValue(value);
+        char high = (char) (value >>> 16);
+        int index = findContainer(high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high, new ArrayContainer());
+        }
+        Container container = containers[index];
+        if (container.contains((char) value))
+            return false;
+        containers[index] = container.add((char) value);
+        return true;
+    }
+    /**
+     * Remove an int.
+     * @param value the int
+     * @return {@code false} if it's not in the bitmap
+     */
+    public boolean remove(int value) {
+        if (value < 0)
+            return false;
+        int index = findContainer((char) (value >>> 16));
+        if (index < 0 || !containers[index].contains((char) value))
+            return false;
+        Container container = containers[index].remove((char) value);
+        if (container.cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        }
+        else
+            containers[index] = container;
+        return true;
+    }
+    /**
+     * Find out if an int is in the bitmap.
+     * @param value the int
+     * @return {@code true} if it's in the bitmap
+     */
+    public boolean contains(int value) {
+        if (value < 0)
+            return false;
+        int index = findContainer((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * Get the number of ints.
+     * @return the number of ints
+     */
+    public long getCardinality() {
+        long result = 0;
+        for (int index = 0; index < size; index++)
+            result += containers[index].cardinality();
+        return result;
+    }
+    /**
+     * Find out if the bitmap is empty.
+     * @return {@code true} if there's no int
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    /**
+     * Keep only the ints which are in another bitmap. It's the same as {@link #and(ISSRoaringBitmap, ISSRoaringBitmap)},
+     * but bitmap containers are changed in place instead of copied.
+     * @param other the other bitmap, which isn't changed
+     * @return this bitmap
+     */
+    public ISSRoaringBitmap retainAll(ISSRoaringBitmap other) {
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i])
+                j++;
+            if (j == other.size || other.keys[j] != keys[i])
+                continue;
+            Container container = containers[i].retainAll(other.containers[j]);
+            if (container.cardinality() > 0) {
+                keys[count] = keys[i];
+                containers[count++] = container;
+            }
+        }
+        Arrays.fill(containers, count, size, null);
+        size = count;
+        return this;
+    }
+    /**
+     * Remove every int which is in another bitmap. It's the same as {@link #andNot(ISSRoaringBitmap, ISSRoaringBitmap)},
+     * but bitmap containers are changed in place instead of copied.
+     * @param other the other bitmap, which isn't changed
+     * @return this bitmap
+     */
+    public ISSRoaringBitmap removeAll(ISSRoaringBitmap other) {
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i])
+                j++;
+            Container container = (j < other.size && other.keys[j] == keys[i] ? containers[i].removeAll(other.containers[j]) : containers[i]);
+            if (container.cardinality() > 0) {
+                keys[count] = keys[i];
+                containers[count++] = container;
+            }
+        }
+        Arrays.fill(containers, count, size, null);
+        size = count;
+        return this;
+    }
+    /**
+     * Add every int in another bitmap. It's the same as {@link #or(ISSRoaringBitmap, ISSRoaringBitmap)},
+     * but bitmap containers are changed in place instead of copied.
+     * @param other the other bitmap, which isn't changed
+     * @return this bitmap
+     */
+    public ISSRoaringBitmap addAll(ISSRoaringBitmap other) {
+        int j = 0;
+        for (int i = 0; i < size && j < other.size; i++) {
+            if (keys[i] > other.keys[j]) {
+                insertContainer(i, other.keys[j], other.containers[j].copy());
+                j++;
+            }
+            else if (keys[i] == other.keys[j]) {
+                containers[i] = containers[i].addAll(other.containers[j]);
+                j++;
+            }
+        }
+        for (; j < other.size; j++)
+            append(other.keys[j], other.containers[j].copy());
+        return this;
+    }
+
+    /**
+     * Remove every int.
+     */
+    public void clear() {
+        Arrays.fill(containers, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Call a function for every int in ascending order.
+     * @param consumer the function
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int index = 0; index < size; index++)
+            containers[index].forEach(keys[index] << 16, consumer);
+    }
+    /**
+     * Get an iterator of every int in ascending order. The bitmap must not be changed while it's used.
+     * @return the iterator
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int containerIndex = -1;
+            private char[] values = new char[0];
+            private int valueIndex = 0;
+            private int high;
+
+            @Override
+            public boolean hasNext() {
+                while (valueIndex == values.length) {
+                    if (++containerIndex >= size)
+                        return false;
+                    values = containers[containerIndex].toArray();
+                    valueIndex = 0;
+                    high = keys[containerIndex] << 16;
+                }
+                return true;
+            }
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return high | values[valueIndex++];
+            }
+        };
+    }
+    /**
+     * Get every int in ascending order.
+     * @return the array of ints
+     */
+    public int[] toArray() {
+        long cardinality = getCardinality();
+        if (cardinality > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many ints for an array: "+cardinality);
+        int[] result = new int[(int) cardinality];
+        int[] position = new int[1];
+        forEach(value -> result[position[0]++] = value);
+        return result;
+    }
+
+    /**
+     * Turn every container into the smallest of the three forms. It's worth calling before the bitmap is
+     * written or kept for a long time.
+     * @return this bitmap
+     */
+    public ISSRoaringBitmap runOptimize() {
+        for (int index = 0; index < size; index++)
+            containers[index] = containers[index].optimize();
+        return this;
+    }
+
+    /**
+     * Get a copy of the bitmap.
+     * @return the copy
+     */
+    public ISSRoaringBitmap copy() {
+        ISSRoaringBitmap result = new ISSRoaringBitmap(size);
+        for (int index = 0; index < size; index++)
+            result.append(keys[index], containers[index].copy());
+        return result;
+    }
+
+    /**
+     * Get the size of the serialized form, which is about the memory held by the containers.
+     * @return the number of bytes
+     */
+    public long getSizeInBytes() {
+        long result = 4;
+        for (int index = 0; index < size; index++)
+            result += 7 + containers[index].sizeInBytes();
+        return result;
+    }
+
+    /**
+     * Write the bitmap as bytes, which can be read by {@link #fromByteBuffer(ByteBuffer)}.<p>
+     * The format is <code>container count | (key | type | count | values)...</code> in big-endian.
+     * @return the bytes
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(getSizeInBytes(), Integer.MAX_VALUE - 8));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(size);
+            for (int index = 0; index < size; index++) {
+                out.writeChar(keys[index]);
+                containers[index].write(out);
+            }
+        }
+        catch (IOException e) {
+            // Never thrown by ByteArrayOutputStream.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ISSRoaringBitmap))
+            return false;
+        ISSRoaringBitmap other = (ISSRoaringBitmap) obj;
+        if (size != other.size)
+            return false;
+        for (int index = 0; index < size; index++) {
+            if (keys[index] != other.keys[index] || !Arrays.equals(containers[index].toArray(), other.containers[index].toArray()))
+                return false;
+        }
+        return true;
+    }
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int index = 0; index < size; index++)
+            result = 31 * (31 * result + keys[index]) + Arrays.hashCode(containers[index].toArray());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("{");
+        PrimitiveIterator.OfInt iterator = iterator();
+        for (int count = 0; iterator.hasNext(); count++) {
+            if (count == 32) {
+                result.append(",...");
+                break;
+            }
+            result.append(count == 0 ? "" : ",").append(iterator.nextInt());
+        }
+        return result.append("}").toString();
+    }
+
+
+    private static void checkValue(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Only non-negative ints can be added: "+value);
+    }
+
+    private int findContainer(char high) {
+        // The last container is checked first, since ordinals are mostly added in ascending order.
+        if (size > 0 && keys[size - 1] == high)
+            return size - 1;
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+    private void insertContainer(int index, char high, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = high;
+        containers[index] = container;
+        size++;
+    }
+    /** Add a container after every other container. */
+    private void append(char high, Container container) {
+        insertContainer(size, high, container);
+    }
+
+
+    /**
+     * 65536 values with the same high 16 bits. A change may return another container, which replaces
+     * this one.
+     */
+    private static abstract class Container {
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract boolean contains(char value);
+        abstract int cardinality();
+        abstract Container and(Container other);
+        abstract Container or(Container other);
+        abstract Container andNot(Container other);
+        abstract BitmapContainer toBitmap();
+        /** Set the bits of every value in a bitmap of 1024 words. */
+        abstract void orInto(long[] words);
+        /** Get the values in ascending order. */
+        abstract char[] toArray();
+        abstract void forEach(int high, IntConsumer consumer);
+        abstract Container copy();
+        abstract int sizeInBytes();
+        abstract void write(DataOutputStream out) throws IOException;
+        abstract int countRuns();
+
+        // Only a bitmap container is changed in place. The others are small, or never changed.
+        Container retainAll(Container other) {
+            return and(other);
+        }
+        Container removeAll(Container other) {
+            return andNot(other);
+        }
+        Container addAll(Container other) {
+            return or(other);
+        }
+
+        /** Turn into the smallest form. */
+        Container optimize() {
+            int cardinality = cardinality();
+            int runSize = 4 * countRuns();
+            int arraySize = (cardinality <= ARRAY_MAX ? 2 * cardinality : Integer.MAX_VALUE);
+            int bitmapSize = 8 * 1024;
+            if (runSize < arraySize && runSize < bitmapSize)
+                return (this instanceof RunContainer ? this : RunContainer.fromArray(toArray()));
+            if (arraySize <= bitmapSize)
+                return (this instanceof ArrayContainer ? this : new ArrayContainer(toArray(), cardinality));
+            return (this instanceof BitmapContainer ? this : toBitmap());
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0)
+                return this;
+            if (cardinality == ARRAY_MAX)
+                return toBitmap().add(value);
+            index = -index - 1;
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX));
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[Math.min(cardinality, other.cardinality())];
+            int count = 0;
+            if (other instanceof ArrayContainer && cardinality * GALLOP_RATIO < ((ArrayContainer) other).cardinality)
+                count = gallop(this, (ArrayContainer) other, result);
+            else if (other instanceof ArrayContainer && ((ArrayContainer) other).cardinality * GALLOP_RATIO < cardinality)
+                count = gallop((ArrayContainer) other, this, result);
+            else if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < array.cardinality) {
+                    if (values[i] < array.values[j])
+                        i++;
+                    else if (values[i] > array.values[j])
+                        j++;
+                    else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i]))
+                        result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+        /**
+         * Intersect a small array with a much larger one. Every value of the small array is found in
+         * the large array by doubling the step from the last match, then binary search within the step,
+         * so most of the large array is skipped.
+         */
+        private static int gallop(ArrayContainer small, ArrayContainer large, char[] result) {
+            int count = 0;
+            int position = 0;
+            for (int i = 0; i < small.cardinality && position < large.cardinality; i++) {
+                position = advance(large, position, small.values[i]);
+                if (position < large.cardinality && large.values[position] == small.values[i])
+                    result[count++] = small.values[i];
+            }
+            return count;
+        }
+        /** Find the first index from {@code from} whose value isn't less than {@code target}. */
+        private static int advance(ArrayContainer array, int from, char target) {
+            if (array.values[from] >= target)
+                return from;
+            // values[low] < target, and values[high] >= target if high is in the array.
+            int low = from;
+            int high = from + 1;
+            for (int step = 1; high < array.cardinality && array.values[high] < target; high = from + step) {
+                low = high;
+                step <<= 1;
+            }
+            int index = Arrays.binarySearch(array.values, low + 1, Math.min(high, array.cardinality), target);
+            return (index >= 0 ? index : -index - 1);
+        }
+        @Override
+        Container or(Container other) {
+            if (!(other instanceof ArrayContainer))
+                return other.or(this);
+            ArrayContainer array = (ArrayContainer) other;
+            char[] result = new char[cardinality + array.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j == array.cardinality || (i < cardinality && values[i] < array.values[j]))
+                    result[count++] = values[i++];
+                else if (i == cardinality || values[i] > array.values[j])
+                    result[count++] = array.values[j++];
+                else {
+                    result[count++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer merged = new ArrayContainer(result, count);
+            return (count > ARRAY_MAX ? merged.toBitmap() : merged);
+        }
+        @Override
+        Container andNot(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            if (other instanceof ArrayContainer && cardinality * GALLOP_RATIO >= ((ArrayContainer) other).cardinality) {
+                // Merged, since each value is looked up in an array of similar size.
+                ArrayContainer array = (ArrayContainer) other;
+                int j = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    while (j < array.cardinality && array.values[j] < values[i])
+                        j++;
+                    if (j == array.cardinality || array.values[j] != values[i])
+                        result[count++] = values[i];
+                }
+            }
+            else if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int position = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    position = (position < array.cardinality ? advance(array, position, values[i]) : position);
+                    if (position == array.cardinality || array.values[position] != values[i])
+                        result[count++] = values[i];
+                }
+            }
+            else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (!other.contains(values[i]))
+                        result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            long[] words = new long[1024];
+            orInto(words);
+            return new BitmapContainer(words, cardinality);
+        }
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < cardinality; i++)
+                words[values[i] >>> 6] |= 1L << values[i];
+        }
+        @Override
+        char[] toArray() {
+            return Arrays.copyOf(values, cardinality);
+        }
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < cardinality; i++)
+                consumer.accept(high | values[i]);
+        }
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+        @Override
+        int sizeInBytes() {
+            return 2 * cardinality;
+        }
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(TYPE_ARRAY);
+            out.writeInt(cardinality);
+            for (int i = 0; i < cardinality; i++)
+                out.writeChar(values[i]);
+        }
+        @Override
+        int countRuns() {
+            int runs = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1)
+                    runs++;
+            }
+            return runs;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+        @Override
+        Container remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) != 0) {
+                words[value >>> 6] &= ~bit;
+                cardinality--;
+            }
+            return (cardinality <= ARRAY_MAX ? toArrayContainer() : this);
+        }
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+            // The bits are counted first, so a small result is made as an array without a bitmap.
+            long[] otherWords = other.toBitmap().words;
+            int count = 0;
+            for (int i = 0; i < 1024; i++)
+                count += Long.bitCount(words[i] & otherWords[i]);
+            if (count <= ARRAY_MAX) {
+                char[] values = new char[count];
+                int index = 0;
+                for (int i = 0; i < 1024; i++) {
+                    for (long word = words[i] & otherWords[i]; word != 0; word &= word - 1)
+                        values[index++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                }
+                return new ArrayContainer(values, count);
+            }
+            long[] result = new long[1024];
+            for (int i = 0; i < 1024; i++)
+                result[i] = words[i] & otherWords[i];
+            return new BitmapContainer(result, count);
+        }
+        @Override
+        Container or(Container other) {
+            long[] result = words.clone();
+            other.orInto(result);
+            return fromWords(result);
+        }
+        @Override
+        Container andNot(Container other) {
+            long[] result = words.clone();
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++)
+                    result[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+            }
+            else {
+                long[] otherWords = other.toBitmap().words;
+                for (int i = 0; i < 1024; i++)
+                    result[i] &= ~otherWords[i];
+            }
+            return fromWords(result);
+        }
+        @Override
+        Container retainAll(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+            long[] otherWords = other.toBitmap().words;
+            for (int i = 0; i < 1024; i++)
+                words[i] &= otherWords[i];
+            return recount();
+        }
+        @Override
+        Container removeAll(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++)
+                    words[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+            }
+            else {
+                long[] otherWords = other.toBitmap().words;
+                for (int i = 0; i < 1024; i++)
+                    words[i] &= ~otherWords[i];
+            }
+            return recount();
+        }
+        @Override
+        Container addAll(Container other) {
+            other.orInto(words);
+            return recount();
+        }
+        /** Count the bits after the words are changed in place. */
+        private Container recount() {
+            cardinality = 0;
+            for (long word: words)
+                cardinality += Long.bitCount(word);
+            return (cardinality <= ARRAY_MAX ? toArrayContainer() : this);
+        }
+
+        /** Make the container of the result of a bitwise operation. */
+        private static Container fromWords(long[] words) {
+            int cardinality = 0;
+            for (long word: words)
+                cardinality += Long.bitCount(word);
+            BitmapContainer result = new BitmapContainer(words, cardinality);
+            return (cardinality <= ARRAY_MAX ? result.toArrayContainer() : result);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < 1024; i++)
+                words[i] |= this.words[i];
+        }
+        private ArrayContainer toArrayContainer() {
+            return new ArrayContainer(toArray(), cardinality);
+        }
+        @Override
+        char[] toArray() {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < 1024; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    result[count++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+            }
+            return result;
+        }
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < 1024; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    consumer.accept(high | ((i << 6) + Long.numberOfTrailingZeros(word)));
+            }
+        }
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+        @Override
+        int sizeInBytes() {
+            return 8 * 1024;
+        }
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(TYPE_BITMAP);
+            out.writeInt(cardinality);
+            for (long word: words)
+                out.writeLong(word);
+        }
+        @Override
+        int countRuns() {
+            // A run starts at every set bit whose lower neighbour is clear.
+            int runs = 0;
+            long previous = 0;
+            for (long word: words) {
+                runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            return runs;
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        /** (start, length - 1) of every run, sorted by start. */
+        private final char[] runs;
+        private final int runCount;
+        private final int cardinality;
+
+        RunContainer(char[] runs, int runCount) {
+            this.runs = runs;
+            this.runCount = runCount;
+            int count = 0;
+            for (int i = 0; i < runCount; i++)
+                count += runs[2 * i + 1] + 1;
+            this.cardinality = count;
+        }
+        static RunContainer fromArray(char[] values) {
+            char[] runs = new char[2 * values.length];
+            int runCount = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (runCount > 0 && values[i] == runs[2 * runCount - 2] + runs[2 * runCount - 1] + 1)
+                    runs[2 * runCount - 1]++;
+                else {
+                    runs[2 * runCount] = values[i];
+                    runs[2 * runCount + 1] = 0;
+                    runCount++;
+                }
+            }
+            return new RunContainer(Arrays.copyOf(runs, 2 * runCount), runCount);
+        }
+
+        // Runs are never changed in place. A changed run container is turned into an array or a bitmap.
+        @Override
+        Container add(char value) {
+            return (cardinality < ARRAY_MAX ? new ArrayContainer(toArray(), cardinality) : toBitmap()).add(value);
+        }
+        @Override
+        Container remove(char value) {
+            return (cardinality <= ARRAY_MAX ? new ArrayContainer(toArray(), cardinality) : toBitmap()).remove(value);
+        }
+        @Override
+        boolean contains(char value) {
+            int low = 0;
+            int high = runCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char start = runs[2 * middle];
+                if (value < start)
+                    high = middle - 1;
+                else if (value > start + runs[2 * middle + 1])
+                    low = middle + 1;
+                else
+                    return true;
+            }
+            return false;
+        }
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+            return toBitmap().and(other);
+        }
+        @Override
+        Container or(Container other) {
+            return toBitmap().or(other);
+        }
+        @Override
+        Container andNot(Container other) {
+            return toBitmap().andNot(other);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            long[] words = new long[1024];
+            orInto(words);
+            return new BitmapContainer(words, cardinality);
+        }
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < runCount; i++) {
+                int start = runs[2 * i];
+                int end = start + runs[2 * i + 1];
+                for (int value = start; value <= end; ) {
+                    // Whole words are filled at once.
+                    if ((value & 63) == 0 && value + 63 <= end) {
+                        words[value >>> 6] = -1L;
+                        value += 64;
+                    }
+                    else {
+                        words[value >>> 6] |= 1L << value;
+                        value++;
+                    }
+                }
+            }
+        }
+        @Override
+        char[] toArray() {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < runCount; i++) {
+                int start = runs[2 * i];
+                for (int value = start, end = start + runs[2 * i + 1]; value <= end; value++)
+                    result[count++] = (char) value;
+            }
+            return result;
+        }
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < runCount; i++) {
+                int start = runs[2 * i];
+                for (int value = start, end = start + runs[2 * i + 1]; value <= end; value++)
+                    consumer.accept(high | value);
+            }
+        }
+        @Override
+        Container copy() {
+            return this;
+        }
+        @Override
+        int sizeInBytes() {
+            return 4 * runCount;
+        }
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(TYPE_RUN);
+            out.writeInt(runCount);
+            for (int i = 0; i < 2 * runCount; i++)
+                out.writeChar(runs[i]);
+        }
+        @Override
+        int countRuns() {
+            return runCount;
+        }
+    }
+}